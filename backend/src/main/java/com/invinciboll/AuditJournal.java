@@ -0,0 +1,770 @@
+package com.invinciboll;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.entities.TempInvoice;
+import com.invinciboll.enums.AuditAction;
+import com.invinciboll.events.InvoicePersistedEvent;
+import com.invinciboll.events.InvoicesDeletedEvent;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Append-only journal of what happened to invoices, to show auditors (GoBD) when an invoice was
+ * uploaded, persisted, printed or deleted. Callers only put the record on a queue, a background
+ * thread writes the queued records with one write per batch and forces the segment to disk at
+ * least every audit.fsync-interval. A crash loses the records of that interval at most.
+ *
+ * <p>Records are text lines in segment files named after their first sequence number. Every line
+ * ends with the SHA-256 of the previous line's hash and its own content, so changed, removed or
+ * reordered records break the chain. A segment is sealed at audit.segment-size and never written
+ * again. Sealing writes its index next to it, the segment's time range and the invoice ids sorted
+ * with the offsets of their records. The index of the open segment is kept in memory.
+ */
+@Service
+public class AuditJournal {
+    private static final Logger logger = LoggerFactory.getLogger(AuditJournal.class);
+
+    public record Entry(long sequence, Instant timestamp, AuditAction action, UUID invoiceId, String fileHash,
+            String detail) {
+    }
+
+    private record Pending(Instant timestamp, AuditAction action, UUID invoiceId, String fileHash, String detail) {
+    }
+
+    private record ParsedLine(Entry entry, String content, String hash) {
+    }
+
+    private record Segment(long firstSequence, Path file, long lastSequence, Instant minTimestamp,
+            Instant maxTimestamp, String lastHash) {
+    }
+
+    @FunctionalInterface
+    private interface LineConsumer {
+        boolean accept(long offset, String line) throws IOException;
+    }
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String GENESIS_HASH = "0".repeat(64);
+
+    private static final int MAX_DETAIL_LENGTH = 512;
+    private static final int MAX_LINE_BYTES = 4096;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    // Index file: magic, version, first and last sequence, time range in millis, last hash, entry
+    // count, then the entries (invoice id, offset) sorted by invoice id and offset
+    private static final int INDEX_MAGIC = 0x41554458; // "AUDX"
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 8 + 64 + 4;
+    private static final int INDEX_ENTRY_SIZE = 8 + 8 + 8;
+
+    private final AppConfig appConfig;
+    private final Path journalPath;
+    private final BlockingQueue<Pending> queue;
+    private final MessageDigest digest;
+
+    // Guarded by this, the writer thread is the only one changing them
+    private final List<Segment> sealed = new ArrayList<>();
+    private SegmentIndex open;
+
+    // Owned by the writer thread
+    private FileChannel channel;
+    private long nextSequence;
+    private String previousHash;
+
+    private Thread writer;
+    private volatile boolean cancelled;
+
+    /**
+     * Records of one segment by invoice id, with the time range and the last record.
+     */
+    private static final class SegmentIndex {
+        final long firstSequence;
+        final Path file;
+        final Map<UUID, List<Long>> offsets = new HashMap<>();
+        long size;
+        long lastSequence;
+        Instant minTimestamp;
+        Instant maxTimestamp;
+        String lastHash;
+
+        SegmentIndex(long firstSequence, Path file) {
+            this.firstSequence = firstSequence;
+            this.file = file;
+            this.lastSequence = firstSequence - 1;
+        }
+
+        void add(long offset, Entry entry, String hash) {
+            if (entry.invoiceId() != null) {
+                offsets.computeIfAbsent(entry.invoiceId(), id -> new ArrayList<>(2)).add(offset);
+            }
+            if (minTimestamp == null || entry.timestamp().isBefore(minTimestamp)) {
+                minTimestamp = entry.timestamp();
+            }
+            if (maxTimestamp == null || entry.timestamp().isAfter(maxTimestamp)) {
+                maxTimestamp = entry.timestamp();
+            }
+            lastSequence = entry.sequence();
+            lastHash = hash;
+        }
+
+        Segment toSegment() {
+            return new Segment(firstSequence, file, lastSequence, minTimestamp, maxTimestamp, lastHash);
+        }
+    }
+
+    public AuditJournal(AppConfig appConfig) {
+        this.appConfig = appConfig;
+        this.journalPath = Paths.get(System.getProperty("user.dir")).resolve(appConfig.getAuditDir());
+        this.queue = new ArrayBlockingQueue<>(appConfig.getAuditQueueCapacity());
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // should never happen
+            throw new RuntimeException("Algorithm SHA-256 not found: " + e.getMessage());
+        }
+        try {
+            Files.createDirectories(journalPath);
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening audit journal: " + e.getMessage(), e);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startOnStartup() {
+        writer = new Thread(this::run, "audit-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Writes the records still queued and closes the open segment.
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        cancelled = true;
+        if (writer != null) {
+            writer.join(appConfig.getAuditFsyncInterval().toMillis() + 5000);
+        } else {
+            flushRemaining();
+        }
+    }
+
+    /**
+     * Queues a record, blocking only while the queue is full.
+     */
+    public void record(AuditAction action, UUID invoiceId, String fileHash, String detail) {
+        Pending pending = new Pending(Instant.now(), action, invoiceId, fileHash, sanitize(detail));
+        if (queue.offer(pending)) {
+            return;
+        }
+        logger.warn("Audit journal queue is full, waiting for the writer");
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Lost audit record {} of invoice {}", action, invoiceId);
+        }
+    }
+
+    @EventListener
+    public void onInvoicePersisted(InvoicePersistedEvent event) {
+        TempInvoice invoice = event.invoice();
+        InvoiceEntity entity = event.entity();
+        record(AuditAction.PERSISTED, entity.getInvoiceId(), entity.getFileHash(),
+                "fileFormat=" + entity.getFileFormat()
+                + (invoice.getXmlFormat() != null ? " xmlFormat=" + invoice.getXmlFormat() : "")
+                + " file=" + entity.getOriginalFileSavePath());
+    }
+
+    @EventListener
+    public void onInvoicesDeleted(InvoicesDeletedEvent event) {
+        // The invoice row is gone, so keep what identifies it for the auditor
+        for (InvoiceEntity invoice : event.invoices()) {
+            record(AuditAction.DELETED, invoice.getInvoiceId(), invoice.getFileHash(),
+                    "seller=" + Objects.toString(invoice.getSellerName(), "")
+                    + " reference=" + Objects.toString(invoice.getInvoiceReference(), ""));
+        }
+    }
+
+    /**
+     * Records of an invoice and/or within a time range (from inclusive, to exclusive), in the order
+     * they were written. Any of the criteria may be null. Records still queued are not returned.
+     */
+    public List<Entry> find(UUID invoiceId, Instant from, Instant to, int limit) throws IOException {
+        List<Segment> segments;
+        long openSize;
+        Segment openSegment;
+        List<Long> openOffsets;
+        synchronized (this) {
+            segments = new ArrayList<>(sealed);
+            openSize = open.size;
+            openSegment = open.toSegment();
+            openOffsets = invoiceId != null ? new ArrayList<>(open.offsets.getOrDefault(invoiceId, List.of())) : null;
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (entries.size() >= limit) {
+                break;
+            }
+            if (!overlaps(segment, from, to)) {
+                continue;
+            }
+            if (invoiceId != null) {
+                collect(segment.file(), lookup(indexFileOf(segment.file()), invoiceId), from, to, limit, entries);
+            } else {
+                scan(segment.file(), Files.size(segment.file()), from, to, limit, entries);
+            }
+        }
+        if (entries.size() < limit && overlaps(openSegment, from, to)) {
+            if (invoiceId != null) {
+                collect(openSegment.file(), openOffsets, from, to, limit, entries);
+            } else {
+                scan(openSegment.file(), openSize, from, to, limit, entries);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Checks the hash chain and the sequence numbers of all written records.
+     */
+    public Map<String, Object> verify() throws IOException {
+        List<Segment> segments;
+        long openSize;
+        synchronized (this) {
+            segments = new ArrayList<>(sealed);
+            segments.add(open.toSegment());
+            openSize = open.size;
+        }
+
+        MessageDigest verifyDigest;
+        try {
+            verifyDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // should never happen
+            throw new RuntimeException("Algorithm SHA-256 not found: " + e.getMessage());
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        long[] checked = {0};
+        long[] expectedSequence = {segments.get(0).firstSequence()};
+        String[] hash = {GENESIS_HASH};
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            long size = i == segments.size() - 1 ? openSize : Files.size(segment.file());
+            forEachLine(segment.file(), size, (offset, line) -> {
+                ParsedLine parsed = parse(line);
+                if (parsed == null || parsed.entry().sequence() != expectedSequence[0]
+                        || !parsed.hash().equals(chainHash(verifyDigest, hash[0], parsed.content()))) {
+                    result.put("brokenAt", segment.file().getFileName() + ":" + offset);
+                    result.put("expectedSequence", expectedSequence[0]);
+                    return false;
+                }
+                hash[0] = parsed.hash();
+                expectedSequence[0]++;
+                checked[0]++;
+                return true;
+            });
+            if (result.containsKey("brokenAt")) {
+                break;
+            }
+        }
+        result.put("valid", !result.containsKey("brokenAt"));
+        result.put("records", checked[0]);
+        result.put("segments", segments.size());
+        return result;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        long lastForced = System.nanoTime();
+        boolean unforced = false;
+        long fsyncIntervalNanos = appConfig.getAuditFsyncInterval().toNanos();
+        while (!cancelled || !queue.isEmpty() || !batch.isEmpty()) {
+            try {
+                if (batch.isEmpty()) {
+                    Pending first = queue.poll(fsyncIntervalNanos, TimeUnit.NANOSECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    write(batch);
+                    batch.clear();
+                    unforced = true;
+                    rotateIfFull();
+                }
+                // Group commit: one force for everything written since the last one
+                if (unforced && (System.nanoTime() - lastForced >= fsyncIntervalNanos || queue.isEmpty())) {
+                    channel.force(false);
+                    lastForced = System.nanoTime();
+                    unforced = false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException e) {
+                // The batch is kept and written again, callers block once the queue is full
+                logger.error("Failed to write the audit journal, retrying: {}", e.getMessage());
+                try {
+                    Thread.sleep(appConfig.getAuditFsyncInterval().toMillis());
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        closeChannel();
+    }
+
+    private void flushRemaining() {
+        List<Pending> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        try {
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            logger.error("Failed to write {} audit records on shutdown: {}", batch.size(), e.getMessage());
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the audit journal: {}", e.getMessage());
+        }
+    }
+
+    private void write(List<Pending> batch) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(batch.size() * 256);
+        List<Entry> entries = new ArrayList<>(batch.size());
+        List<Long> offsets = new ArrayList<>(batch.size());
+        List<String> hashes = new ArrayList<>(batch.size());
+        String hash = previousHash;
+        for (int i = 0; i < batch.size(); i++) {
+            Pending pending = batch.get(i);
+            Entry entry = new Entry(nextSequence + i, pending.timestamp(), pending.action(), pending.invoiceId(),
+                    pending.fileHash(), pending.detail());
+            String content = format(entry);
+            hash = chainHash(digest, hash, content);
+            offsets.add(open.size + out.size());
+            out.writeBytes((content + "\t" + hash + "\n").getBytes(StandardCharsets.UTF_8));
+            entries.add(entry);
+            hashes.add(hash);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        try {
+            long position = open.size;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            // Drop what was written of the batch, the retry writes it again with the same sequences
+            channel.truncate(open.size);
+            throw e;
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < entries.size(); i++) {
+                open.add(offsets.get(i), entries.get(i), hashes.get(i));
+            }
+            open.size += out.size();
+        }
+        nextSequence += batch.size();
+        previousHash = hash;
+    }
+
+    // Seals the open segment once it is full, a failed attempt is repeated after the next write
+    private void rotateIfFull() throws IOException {
+        if (open.size < appConfig.getAuditSegmentSize().toBytes()) {
+            return;
+        }
+        channel.force(false);
+        Path indexFile = indexFileOf(open.file);
+        writeIndex(indexFile, open);
+
+        SegmentIndex next = new SegmentIndex(nextSequence, segmentFileOf(nextSequence));
+        FileChannel nextChannel;
+        try {
+            nextChannel = FileChannel.open(next.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            // Still written to, so it must not look sealed after a restart
+            Files.deleteIfExists(indexFile);
+            throw e;
+        }
+        closeChannel();
+        channel = nextChannel;
+        synchronized (this) {
+            sealed.add(open.toSegment());
+            open = next;
+        }
+        logger.info("Sealed audit journal segment {}, continuing with {}", sealed.get(sealed.size() - 1).file().getFileName(),
+                next.file.getFileName());
+    }
+
+    /**
+     * Loads the indexes of the sealed segments and reopens the last one. A record torn by a crash
+     * at the end of the last segment is cut off, the records before it are kept.
+     */
+    private void recover() throws IOException {
+        List<Path> segmentFiles;
+        try (Stream<Path> files = Files.list(journalPath)) {
+            segmentFiles = files
+                .filter(file -> file.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                        && file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                .sorted(Comparator.comparingLong(AuditJournal::firstSequenceOf))
+                .toList();
+        }
+
+        for (int i = 0; i < segmentFiles.size() - 1; i++) {
+            sealed.add(loadSealed(segmentFiles.get(i)));
+        }
+
+        SegmentIndex last = null;
+        if (!segmentFiles.isEmpty()) {
+            Path lastFile = segmentFiles.get(segmentFiles.size() - 1);
+            if (Files.exists(indexFileOf(lastFile))) {
+                // Sealed, the next segment was not created yet
+                sealed.add(loadSealed(lastFile));
+            } else {
+                last = scanSegment(lastFile);
+                long size = Files.size(lastFile);
+                if (last.size < size) {
+                    logger.warn("Cutting off {} bytes of a torn record at the end of {}", size - last.size, lastFile);
+                    try (FileChannel truncating = FileChannel.open(lastFile, StandardOpenOption.WRITE)) {
+                        truncating.truncate(last.size);
+                    }
+                }
+            }
+        }
+
+        Segment previous = sealed.isEmpty() ? null : sealed.get(sealed.size() - 1);
+        if (last == null) {
+            long firstSequence = previous != null ? previous.lastSequence() + 1 : 1;
+            last = new SegmentIndex(firstSequence, segmentFileOf(firstSequence));
+        }
+        open = last;
+        channel = FileChannel.open(open.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+        nextSequence = open.lastSequence + 1;
+        if (open.lastHash != null) {
+            previousHash = open.lastHash;
+        } else {
+            previousHash = previous != null ? previous.lastHash() : GENESIS_HASH;
+        }
+        logger.info("Opened audit journal with {} sealed segments, next record is {}", sealed.size(), nextSequence);
+    }
+
+    private Segment loadSealed(Path file) throws IOException {
+        Path indexFile = indexFileOf(file);
+        if (Files.exists(indexFile)) {
+            try {
+                return readIndexHeader(file, indexFile);
+            } catch (IOException e) {
+                logger.warn("Rebuilding invalid audit index {}: {}", indexFile, e.getMessage());
+            }
+        }
+        SegmentIndex index = scanSegment(file);
+        writeIndex(indexFile, index);
+        return index.toSegment();
+    }
+
+    private static SegmentIndex scanSegment(Path file) throws IOException {
+        SegmentIndex index = new SegmentIndex(firstSequenceOf(file), file);
+        index.size = forEachLine(file, Files.size(file), (offset, line) -> {
+            ParsedLine parsed = parse(line);
+            if (parsed == null) {
+                logger.warn("Skipping unreadable audit record at {}:{}", file.getFileName(), offset);
+            } else {
+                index.add(offset, parsed.entry(), parsed.hash());
+            }
+            return true;
+        });
+        return index;
+    }
+
+    private static void writeIndex(Path indexFile, SegmentIndex index) throws IOException {
+        List<long[]> entries = new ArrayList<>();
+        for (Map.Entry<UUID, List<Long>> invoice : index.offsets.entrySet()) {
+            for (long offset : invoice.getValue()) {
+                entries.add(new long[] {invoice.getKey().getMostSignificantBits(), invoice.getKey().getLeastSignificantBits(), offset});
+            }
+        }
+        entries.sort(AuditJournal::compareIndexEntries);
+
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER_SIZE + entries.size() * INDEX_ENTRY_SIZE);
+        buffer.putInt(INDEX_MAGIC);
+        buffer.putInt(INDEX_VERSION);
+        buffer.putLong(index.firstSequence);
+        buffer.putLong(index.lastSequence);
+        // Rounded outwards, so the range always contains every record
+        buffer.putLong(index.minTimestamp != null ? index.minTimestamp.toEpochMilli() : Long.MAX_VALUE);
+        buffer.putLong(index.maxTimestamp != null ? index.maxTimestamp.toEpochMilli() + 1 : Long.MIN_VALUE);
+        buffer.put(Objects.requireNonNullElse(index.lastHash, GENESIS_HASH).getBytes(StandardCharsets.US_ASCII));
+        buffer.putInt(entries.size());
+        for (long[] entry : entries) {
+            buffer.putLong(entry[0]);
+            buffer.putLong(entry[1]);
+            buffer.putLong(entry[2]);
+        }
+        buffer.flip();
+
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (FileChannel indexChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                indexChannel.write(buffer);
+            }
+            indexChannel.force(true);
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Segment readIndexHeader(Path file, Path indexFile) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && indexChannel.read(header) >= 0) {
+                // read until the header is complete
+            }
+        }
+        header.flip();
+        if (header.remaining() < INDEX_HEADER_SIZE || header.getInt() != INDEX_MAGIC || header.getInt() != INDEX_VERSION) {
+            throw new IOException("Not an audit index");
+        }
+        long firstSequence = header.getLong();
+        long lastSequence = header.getLong();
+        long minMillis = header.getLong();
+        long maxMillis = header.getLong();
+        byte[] lastHash = new byte[64];
+        header.get(lastHash);
+        boolean empty = lastSequence < firstSequence;
+        return new Segment(firstSequence, file, lastSequence,
+                empty ? null : Instant.ofEpochMilli(minMillis),
+                empty ? null : Instant.ofEpochMilli(maxMillis),
+                new String(lastHash, StandardCharsets.US_ASCII));
+    }
+
+    // Offsets of the records of an invoice in a sealed segment, by binary search in its index
+    private static List<Long> lookup(Path indexFile, UUID invoiceId) throws IOException {
+        long msb = invoiceId.getMostSignificantBits();
+        long lsb = invoiceId.getLeastSignificantBits();
+        List<Long> offsets = new ArrayList<>();
+        try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            int count = index.getInt(INDEX_HEADER_SIZE - 4);
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int position = INDEX_HEADER_SIZE + mid * INDEX_ENTRY_SIZE;
+                if (compareIds(index.getLong(position), index.getLong(position + 8), msb, lsb) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int i = low; i < count; i++) {
+                int position = INDEX_HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+                if (index.getLong(position) != msb || index.getLong(position + 8) != lsb) {
+                    break;
+                }
+                offsets.add(index.getLong(position + 16));
+            }
+        }
+        return offsets;
+    }
+
+    private static void collect(Path file, List<Long> offsets, Instant from, Instant to, int limit, List<Entry> entries)
+            throws IOException {
+        if (offsets.isEmpty()) {
+            return;
+        }
+        try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_LINE_BYTES);
+            for (long offset : offsets) {
+                if (entries.size() >= limit) {
+                    return;
+                }
+                buffer.clear();
+                while (buffer.hasRemaining() && reader.read(buffer, offset + buffer.position()) > 0) {
+                    // read until the buffer is full or the end of the file
+                }
+                int length = 0;
+                while (length < buffer.position() && buffer.get(length) != '\n') {
+                    length++;
+                }
+                ParsedLine parsed = parse(new String(buffer.array(), 0, length, StandardCharsets.UTF_8));
+                if (parsed != null && inRange(parsed.entry(), from, to)) {
+                    entries.add(parsed.entry());
+                }
+            }
+        }
+    }
+
+    private static void scan(Path file, long size, Instant from, Instant to, int limit, List<Entry> entries) throws IOException {
+        forEachLine(file, size, (offset, line) -> {
+            ParsedLine parsed = parse(line);
+            if (parsed != null && inRange(parsed.entry(), from, to)) {
+                entries.add(parsed.entry());
+            }
+            return entries.size() < limit;
+        });
+    }
+
+    /**
+     * Passes the complete lines before the given size to the consumer until it returns false.
+     * Returns the end of the last complete line passed.
+     */
+    private static long forEachLine(Path file, long size, LineConsumer consumer) throws IOException {
+        try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            long position = 0;
+            long lineStart = 0;
+            while (position < size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - position));
+                int read = reader.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer.get(i);
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    long offset = lineStart;
+                    lineStart = position + i + 1;
+                    String text = line.toString(StandardCharsets.UTF_8);
+                    line.reset();
+                    if (!consumer.accept(offset, text)) {
+                        return lineStart;
+                    }
+                }
+                position += read;
+            }
+            return lineStart;
+        }
+    }
+
+    private static String format(Entry entry) {
+        return entry.sequence() + "\t" + entry.timestamp() + "\t" + entry.action() + "\t"
+                + (entry.invoiceId() != null ? entry.invoiceId() : "") + "\t"
+                + Objects.toString(entry.fileHash(), "") + "\t" + entry.detail();
+    }
+
+    // Null if the line is not a record
+    private static ParsedLine parse(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 7) {
+            return null;
+        }
+        try {
+            Entry entry = new Entry(Long.parseLong(fields[0]), Instant.parse(fields[1]), AuditAction.valueOf(fields[2]),
+                    fields[3].isEmpty() ? null : UUID.fromString(fields[3]),
+                    fields[4].isEmpty() ? null : fields[4], fields[5]);
+            return new ParsedLine(entry, line.substring(0, line.lastIndexOf('\t')), fields[6]);
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static String chainHash(MessageDigest digest, String previousHash, String content) {
+        digest.update(previousHash.getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) '\t');
+        digest.update(content.getBytes(StandardCharsets.UTF_8));
+        return FormatDetector.toHexString(digest.digest());
+    }
+
+    // One line per record, whatever the caller passes
+    private static String sanitize(String detail) {
+        if (detail == null) {
+            return "";
+        }
+        String sanitized = detail.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        return sanitized.length() > MAX_DETAIL_LENGTH ? sanitized.substring(0, MAX_DETAIL_LENGTH) : sanitized;
+    }
+
+    private static boolean overlaps(Segment segment, Instant from, Instant to) {
+        if (segment.minTimestamp() == null) {
+            return false;
+        }
+        return (from == null || !segment.maxTimestamp().isBefore(from)) && (to == null || segment.minTimestamp().isBefore(to));
+    }
+
+    private static boolean inRange(Entry entry, Instant from, Instant to) {
+        return (from == null || !entry.timestamp().isBefore(from)) && (to == null || entry.timestamp().isBefore(to));
+    }
+
+    private static int compareIndexEntries(long[] a, long[] b) {
+        int compared = compareIds(a[0], a[1], b[0], b[1]);
+        return compared != 0 ? compared : Long.compare(a[2], b[2]);
+    }
+
+    private static int compareIds(long msbA, long lsbA, long msbB, long lsbB) {
+        int compared = Long.compare(msbA, msbB);
+        return compared != 0 ? compared : Long.compare(lsbA, lsbB);
+    }
+
+    private Path segmentFileOf(long firstSequence) {
+        return journalPath.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+    }
+
+    private static Path indexFileOf(Path segmentFile) {
+        String fileName = segmentFile.getFileName().toString();
+        return segmentFile.resolveSibling(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private static long firstSequenceOf(Path segmentFile) {
+        String fileName = segmentFile.getFileName().toString();
+        return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,319 @@
+package com.invinciboll;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.exceptions.UploadRejectedException;
+
+/**
+ * Resumable uploads in chunks: an upload is started, its chunks are appended to a part file in the
+ * tempfiles directory and, once complete, the part file is handed to the processing pipeline like
+ * a streamed upload. The header is sniffed and the hash computed while the chunks pass through,
+ * so completing an upload does not read the file again.
+ *
+ * <p>Whatever arrived of an interrupted chunk is kept, the client asks for the current offset and
+ * continues from there. Only the part file is authoritative: if it does not match the state held
+ * in memory (after a restart, or when another node sharing the tempfiles directory appended to
+ * it), the state is rebuilt from the file.
+ */
+@Service
+public class ChunkedUploadService {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedUploadService.class);
+
+    // Part files are named "part_<uploadId>.<ext>"
+    public static final String PART_PREFIX = "part_";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AppConfig appConfig;
+    private final Map<UUID, Session> sessions = new ConcurrentHashMap<>();
+
+    private static final class Session {
+        private final UUID uploadId;
+        private final Path partFile;
+        // -1 if not known, i.e. for sessions rebuilt from the part file
+        private final long totalSize;
+        private final byte[] header = new byte[FormatDetector.HEADER_LENGTH];
+        private MessageDigest digest;
+        private int headerLength;
+        private long size;
+
+        private Session(UUID uploadId, Path partFile, long totalSize) {
+            this.uploadId = uploadId;
+            this.partFile = partFile;
+            this.totalSize = totalSize;
+            reset();
+        }
+
+        private void reset() {
+            digest = FormatDetector.newFileDigest();
+            headerLength = 0;
+            size = 0;
+        }
+
+        private void update(byte[] buffer, int length) {
+            if (headerLength < header.length) {
+                int headerBytes = Math.min(length, header.length - headerLength);
+                System.arraycopy(buffer, 0, header, headerLength, headerBytes);
+                headerLength += headerBytes;
+            }
+            digest.update(buffer, 0, length);
+            size += length;
+        }
+
+        private byte[] getHeader() {
+            return Arrays.copyOf(header, headerLength);
+        }
+    }
+
+    /**
+     * An assembled upload, ready to be taken over by a TempInvoice. The part file has to be moved
+     * or deleted by the caller.
+     */
+    public record CompletedUpload(Path partFile, StreamingUpload.Result result) {
+    }
+
+    public ChunkedUploadService(AppConfig appConfig) {
+        this.appConfig = appConfig;
+    }
+
+    /**
+     * Creates an empty part file for a new upload. The total size is optional (-1), if given the
+     * completed upload must match it.
+     */
+    public UUID start(String filename, long totalSize) throws IOException, UploadRejectedException {
+        long maxBytes = appConfig.getUploadMaxFileSize().toBytes();
+        if (totalSize > maxBytes) {
+            throw new UploadRejectedException("File exceeds the maximum upload size of " + maxBytes + " bytes.",
+                    UploadRejectedException.Reason.TOO_LARGE);
+        }
+
+        UUID uploadId = UUID.randomUUID();
+        String extension = FilenameUtils.getExtension(filename);
+        Path partFile = appConfig.getTempfilesPath().resolve(PART_PREFIX + uploadId + (extension.isEmpty() ? "" : "." + extension));
+        Files.createDirectories(partFile.getParent());
+        Files.createFile(partFile);
+        sessions.put(uploadId, new Session(uploadId, partFile, totalSize));
+        return uploadId;
+    }
+
+    /**
+     * Number of bytes received so far, i.e. the offset of the next chunk.
+     */
+    public long getOffset(UUID uploadId) throws IOException, UploadRejectedException {
+        Session session = getSession(uploadId);
+        synchronized (session) {
+            resync(session);
+            return session.size;
+        }
+    }
+
+    /**
+     * Appends a chunk at the given offset and returns the new offset. A chunk at another offset than
+     * the current end of the part file is rejected, the client has to ask for the offset and resume
+     * from there. If the client goes away in the middle of the chunk, everything received up to
+     * that point is kept.
+     */
+    public long append(UUID uploadId, long offset, InputStream chunk) throws IOException, UploadRejectedException {
+        long maxBytes = appConfig.getUploadMaxFileSize().toBytes();
+        Session session = getSession(uploadId);
+        synchronized (session) {
+            resync(session);
+            if (offset != session.size) {
+                throw new UploadRejectedException("Chunk offset " + offset + " does not match the received "
+                        + session.size + " bytes.", UploadRejectedException.Reason.OFFSET_MISMATCH);
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (FileChannel channel = FileChannel.open(session.partFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (true) {
+                    int bytesRead;
+                    try {
+                        bytesRead = chunk.read(buffer);
+                    } catch (IOException e) {
+                        // Client gone, keep what arrived so far
+                        logger.debug("Chunk of upload {} interrupted after {} bytes: {}", uploadId, session.size - offset, e.getMessage());
+                        break;
+                    }
+                    if (bytesRead == -1) {
+                        break;
+                    }
+
+                    if (session.size + bytesRead > maxBytes) {
+                        discard(session);
+                        throw new UploadRejectedException("File exceeds the maximum upload size of " + maxBytes + " bytes.",
+                                UploadRejectedException.Reason.TOO_LARGE);
+                    }
+
+                    // If this fails, the file may hold part of the buffer and is hashed again on the next request
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                    boolean headerWasComplete = session.headerLength == session.header.length;
+                    session.update(buffer, bytesRead);
+
+                    if (!headerWasComplete && session.headerLength == session.header.length
+                            && !FormatDetector.isSupportedHeader(session.header)) {
+                        discard(session);
+                        throw new UploadRejectedException("File format is invalid, must be PDF or XML.",
+                                UploadRejectedException.Reason.INVALID_CONTENT);
+                    }
+                }
+            }
+            return session.size;
+        }
+    }
+
+    /**
+     * Finishes an upload after its last chunk. The expected hash is optional, if given it has to
+     * match the hash of the received data.
+     */
+    public CompletedUpload complete(UUID uploadId, String expectedFileHash) throws IOException, UploadRejectedException {
+        Session session = getSession(uploadId);
+        synchronized (session) {
+            resync(session);
+            if (session.totalSize >= 0 && session.size != session.totalSize) {
+                throw new UploadRejectedException("Upload is incomplete, received " + session.size + " of "
+                        + session.totalSize + " bytes.", UploadRejectedException.Reason.OFFSET_MISMATCH);
+            }
+            if (!FormatDetector.isSupportedHeader(session.getHeader())) {
+                discard(session);
+                throw new UploadRejectedException("File is too short to be a PDF or XML file.",
+                        UploadRejectedException.Reason.INVALID_CONTENT);
+            }
+
+            String fileHash = FormatDetector.toHexString(session.digest.digest());
+            if (expectedFileHash != null && !expectedFileHash.equalsIgnoreCase(fileHash)) {
+                // The digest is used up, the part file is hashed again if the client resumes
+                session.reset();
+                throw new UploadRejectedException("File hash " + fileHash + " does not match the expected "
+                        + expectedFileHash + ".", UploadRejectedException.Reason.HASH_MISMATCH);
+            }
+
+            // Written without sync per chunk, make sure the file is complete before it is processed
+            try (FileChannel channel = FileChannel.open(session.partFile, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            sessions.remove(uploadId);
+            return new CompletedUpload(session.partFile, new StreamingUpload.Result(session.getHeader(), fileHash, session.size));
+        }
+    }
+
+    public void abort(UUID uploadId) throws IOException {
+        Session session = sessions.remove(uploadId);
+        Path partFile = session != null ? session.partFile : findPartFile(uploadId);
+        if (partFile != null) {
+            Files.deleteIfExists(partFile);
+        }
+    }
+
+    /**
+     * Drops the state of an upload whose part file was swept.
+     */
+    public void forget(UUID uploadId) {
+        sessions.remove(uploadId);
+    }
+
+    // The state held in memory, recreated from the part file after a restart
+    private Session getSession(UUID uploadId) throws IOException, UploadRejectedException {
+        Session session = sessions.get(uploadId);
+        if (session != null) {
+            return session;
+        }
+        synchronized (sessions) {
+            session = sessions.get(uploadId);
+            if (session == null) {
+                Path partFile = findPartFile(uploadId);
+                if (partFile == null) {
+                    throw unknownUpload(uploadId);
+                }
+                // Empty until resync() hashes the part file
+                session = new Session(uploadId, partFile, -1);
+                sessions.put(uploadId, session);
+            }
+            return session;
+        }
+    }
+
+    // Hashes the part file again if it does not match the state, called with the session locked
+    private void resync(Session session) throws IOException, UploadRejectedException {
+        long partSize;
+        try {
+            partSize = Files.size(session.partFile);
+        } catch (NoSuchFileException e) {
+            sessions.remove(session.uploadId);
+            throw unknownUpload(session.uploadId);
+        }
+        if (partSize == session.size) {
+            return;
+        }
+
+        logger.info("Rebuilding the state of upload {} from its part file ({} bytes)", session.uploadId, partSize);
+        session.reset();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(session.partFile)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                session.update(buffer, bytesRead);
+            }
+        }
+    }
+
+    private static UploadRejectedException unknownUpload(UUID uploadId) {
+        return new UploadRejectedException("Unknown or expired upload " + uploadId + ".",
+                UploadRejectedException.Reason.UNKNOWN_UPLOAD);
+    }
+
+    private Path findPartFile(UUID uploadId) throws IOException {
+        Path tempFilesPath = appConfig.getTempfilesPath();
+        if (!Files.isDirectory(tempFilesPath)) {
+            return null;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tempFilesPath, PART_PREFIX + uploadId + "*")) {
+            for (Path file : files) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private void discard(Session session) throws IOException {
+        sessions.remove(session.uploadId);
+        Files.deleteIfExists(session.partFile);
+    }
+
+    /**
+     * The upload id of a part file, or null for other files.
+     */
+    public static UUID parseUploadId(Path file) {
+        String fileName = file.getFileName().toString();
+        if (!fileName.startsWith(PART_PREFIX)) {
+            return null;
+        }
+        String id = FilenameUtils.removeExtension(fileName.substring(PART_PREFIX.length()));
+        try {
+            return UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
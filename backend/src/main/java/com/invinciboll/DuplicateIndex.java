@@ -0,0 +1,140 @@
+package com.invinciboll;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.events.InvoicePersistedEvent;
+import com.invinciboll.events.InvoicesDeletedEvent;
+
+/**
+ * Finds stored invoices with the same semantic fingerprint (seller, reference, issue date, total)
+ * as a new upload, e.g. the same invoice as XRechnung XML and as ZUGFeRD PDF. The first 64 bits of
+ * every stored fingerprint are kept in memory, so uploads without a near-duplicate, the common
+ * case, are answered without touching the database. Candidates are confirmed with an indexed query
+ * on the full fingerprint.
+ */
+@Component
+public class DuplicateIndex {
+    private static final Logger logger = LoggerFactory.getLogger(DuplicateIndex.class);
+
+    private static final int BATCH_SIZE = 500;
+
+    private final InvoiceDao invoiceDao;
+
+    private final Set<Long> fingerprintPrefixes = ConcurrentHashMap.newKeySet();
+    // Until loaded, every lookup goes to the database
+    private volatile boolean loaded;
+
+    public DuplicateIndex(InvoiceDao invoiceDao) {
+        this.invoiceDao = invoiceDao;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOnStartup() {
+        Thread thread = new Thread(this::load, "duplicate-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void load() {
+        try {
+            int backfilled = backfill();
+            invoiceDao.streamSemanticFingerprints(this::add);
+            loaded = true;
+            logger.info("Duplicate index loaded with {} fingerprints, {} computed for older invoices",
+                    fingerprintPrefixes.size(), backfilled);
+        } catch (Exception e) {
+            logger.warn("Failed to load the duplicate index, near-duplicates are looked up in the database: {}", e.getMessage());
+        }
+    }
+
+    // Invoices stored before the fingerprint was recorded. Only the fingerprint is written, the rows
+    // read here may be changed meanwhile by the hash migration, re-processing or archiving
+    private int backfill() {
+        int backfilled = 0;
+        UUID lastInvoiceId = null;
+        while (true) {
+            List<InvoiceEntity> batch = invoiceDao.findBySemanticFingerprintIsNull(lastInvoiceId, BATCH_SIZE);
+            if (batch.isEmpty()) {
+                return backfilled;
+            }
+            for (InvoiceEntity invoice : batch) {
+                // Incomplete key information has no fingerprint, those stay null
+                if (invoice.getSemanticFingerprint() != null
+                        && invoiceDao.updateSemanticFingerprintIfNull(invoice.getInvoiceId(), invoice.getSemanticFingerprint())) {
+                    backfilled++;
+                }
+            }
+            lastInvoiceId = batch.get(batch.size() - 1).getInvoiceId();
+        }
+    }
+
+    @EventListener
+    public void onInvoicePersisted(InvoicePersistedEvent event) {
+        add(event.entity().getSemanticFingerprint());
+    }
+
+    @EventListener
+    public void onInvoicesDeleted(InvoicesDeletedEvent event) {
+        Set<String> semanticFingerprints = new HashSet<>();
+        for (InvoiceEntity invoice : event.invoices()) {
+            if (invoice.getSemanticFingerprint() != null) {
+                semanticFingerprints.add(invoice.getSemanticFingerprint());
+            }
+        }
+        if (semanticFingerprints.isEmpty()) {
+            return;
+        }
+        // Locked with add(), so an invoice persisted while the database is asked keeps its prefix
+        synchronized (fingerprintPrefixes) {
+            // Near-duplicates of a deleted invoice may still be stored
+            semanticFingerprints.removeAll(invoiceDao.findExistingSemanticFingerprints(semanticFingerprints));
+            for (String semanticFingerprint : semanticFingerprints) {
+                fingerprintPrefixes.remove(prefix(semanticFingerprint));
+            }
+        }
+    }
+
+    /**
+     * Registers the fingerprint of a stored invoice, e.g. after its key information changed.
+     */
+    public void add(String semanticFingerprint) {
+        if (semanticFingerprint != null) {
+            synchronized (fingerprintPrefixes) {
+                fingerprintPrefixes.add(prefix(semanticFingerprint));
+            }
+        }
+    }
+
+    /**
+     * Stored invoices with the same seller, reference, issue date and total, except the given
+     * invoice itself.
+     */
+    public List<InvoiceEntity> findNearDuplicates(KeyInformation keyInformation, UUID invoiceId) {
+        String semanticFingerprint = keyInformation != null ? keyInformation.semanticFingerprint() : null;
+        if (semanticFingerprint == null) {
+            return List.of();
+        }
+        if (loaded && !fingerprintPrefixes.contains(prefix(semanticFingerprint))) {
+            return List.of();
+        }
+        return invoiceDao.findBySemanticFingerprint(semanticFingerprint).stream()
+                .filter(invoice -> !invoice.getInvoiceId().equals(invoiceId))
+                .toList();
+    }
+
+    private static long prefix(String semanticFingerprint) {
+        return Long.parseUnsignedLong(semanticFingerprint.substring(0, 16), 16);
+    }
+}
@@ -0,0 +1,102 @@
+package com.invinciboll;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.entities.InvoiceEntity;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Replaces the MD5 file hashes of invoices stored by earlier versions with SHA-256 hashes of
+ * their original files, so duplicate checks and the hash pre-check of the browser find them. Runs
+ * in the background after startup and is a no-op once no MD5 hashes are left. The file names
+ * containing the old hash are kept, they only serve as storage location.
+ */
+@Component
+public class FileHashMigration {
+    private static final Logger logger = LoggerFactory.getLogger(FileHashMigration.class);
+
+    private static final int BATCH_SIZE = 200;
+
+    private final InvoiceDao invoiceDao;
+    private final InvoiceArchive invoiceArchive;
+    private final ThumbnailService thumbnailService;
+
+    private volatile boolean cancelled;
+
+    public FileHashMigration(InvoiceDao invoiceDao, InvoiceArchive invoiceArchive, ThumbnailService thumbnailService) {
+        this.invoiceDao = invoiceDao;
+        this.invoiceArchive = invoiceArchive;
+        this.thumbnailService = thumbnailService;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startOnStartup() {
+        Thread thread = new Thread(this::run, "file-hash-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @PreDestroy
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void run() {
+        int migrated = 0;
+        int failed = 0;
+        UUID lastInvoiceId = null;
+        while (!cancelled) {
+            List<InvoiceEntity> batch = invoiceDao.findByFileHashLength(FormatDetector.LEGACY_FILE_HASH_LENGTH,
+                    lastInvoiceId, BATCH_SIZE);
+            if (batch.isEmpty()) {
+                break;
+            }
+            for (InvoiceEntity invoice : batch) {
+                try {
+                    migrate(invoice.getInvoiceId());
+                    migrated++;
+                } catch (Exception e) {
+                    // Keeps its MD5 hash and is tried again on the next start
+                    failed++;
+                    logger.warn("Failed to migrate the file hash of invoice {}: {}", invoice.getInvoiceId(), e.getMessage());
+                }
+            }
+            lastInvoiceId = batch.get(batch.size() - 1).getInvoiceId();
+        }
+        if (migrated > 0 || failed > 0) {
+            logger.info("Migrated {} file hashes to {}, {} failed", migrated, FormatDetector.FILE_HASH_ALGORITHM, failed);
+        }
+    }
+
+    private void migrate(UUID invoiceId) throws IOException {
+        // Archiving or reprocessing may have changed the invoice since the batch was read
+        invoiceArchive.getLock().lock();
+        try {
+            InvoiceEntity invoice = invoiceDao.findById(invoiceId);
+            if (invoice == null || !FormatDetector.isLegacyFileHash(invoice.getFileHash())) {
+                return;
+            }
+            String legacyHash = invoice.getFileHash();
+            String fileHash;
+            try (InputStream in = invoiceArchive.open(invoice.getOriginalFileSavePath())) {
+                fileHash = FormatDetector.computeHash(in, FormatDetector.FILE_HASH_ALGORITHM);
+            }
+            invoice.setFileHash(fileHash);
+            invoiceDao.update(invoice);
+            thumbnailService.renameThumbnail(legacyHash, fileHash);
+        } finally {
+            invoiceArchive.getLock().unlock();
+        }
+    }
+}
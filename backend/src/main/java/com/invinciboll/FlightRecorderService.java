@@ -0,0 +1,118 @@
+package com.invinciboll;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.events.PipelineStageEvent;
+
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * On-demand JDK Flight Recorder recordings to diagnose slow invoices in production. A recording
+ * contains the pipeline stage events next to the regular JVM events of the configured settings
+ * ("default" has around one percent overhead). Only one recording is managed at a time, the file
+ * of a stopped recording is kept until the next one is started.
+ */
+@Service
+public class FlightRecorderService {
+    private static final Logger logger = LoggerFactory.getLogger(FlightRecorderService.class);
+
+    private final AppConfig appConfig;
+
+    private Recording recording;
+    private Path recordingFile;
+    private Instant startedAt;
+
+    public FlightRecorderService(AppConfig appConfig) {
+        this.appConfig = appConfig;
+    }
+
+    public synchronized boolean start() throws IOException, ParseException {
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            return false;
+        }
+        discard();
+
+        recording = new Recording(Configuration.getConfiguration(appConfig.getJfrSettings()));
+        recording.setName("e-invoice-manager");
+        recording.setToDisk(true);
+        recording.setMaxAge(appConfig.getJfrMaxAge());
+        recording.setMaxSize(appConfig.getJfrMaxSize().toBytes());
+        recording.enable(PipelineStageEvent.class).withThreshold(appConfig.getJfrStageThreshold());
+        recording.start();
+        startedAt = Instant.now();
+        logger.info("Started JFR recording with settings '{}'", appConfig.getJfrSettings());
+        return true;
+    }
+
+    /**
+     * Stops the running recording and keeps it for download.
+     */
+    public synchronized boolean stop() throws IOException {
+        if (recording == null || recording.getState() != RecordingState.RUNNING) {
+            return false;
+        }
+        recording.stop();
+        recordingFile = Files.createTempFile("recording", ".jfr");
+        recording.dump(recordingFile);
+        recording.close();
+        recording = null;
+        logger.info("Stopped JFR recording, {} bytes", Files.size(recordingFile));
+        return true;
+    }
+
+    /**
+     * Returns the file of the stopped recording or a snapshot of the running one, null if there
+     * is neither. Snapshots are written to a new temp file the caller has to delete.
+     */
+    public synchronized Path getRecordingFile() throws IOException {
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            Path snapshot = Files.createTempFile("recording-snapshot", ".jfr");
+            recording.dump(snapshot);
+            return snapshot;
+        }
+        return recordingFile;
+    }
+
+    public synchronized boolean isSnapshot(Path file) {
+        return file != null && !file.equals(recordingFile);
+    }
+
+    public synchronized Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", recording != null && recording.getState() == RecordingState.RUNNING);
+        status.put("startedAt", startedAt);
+        status.put("settings", appConfig.getJfrSettings());
+        status.put("recordingAvailable", recordingFile != null);
+        return status;
+    }
+
+    @PreDestroy
+    public synchronized void discard() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+        if (recordingFile != null) {
+            try {
+                Files.deleteIfExists(recordingFile);
+            } catch (IOException e) {
+                logger.warn("Failed to delete JFR recording {}: {}", recordingFile, e.getMessage());
+            }
+            recordingFile = null;
+        }
+    }
+}
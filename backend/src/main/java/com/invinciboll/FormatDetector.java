@@ -1,18 +1,28 @@
 package com.invinciboll;
 
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.mustangproject.ZUGFeRD.ZUGFeRDInvoiceImporter;
 
 import com.invinciboll.enums.FileFormat;
 import com.invinciboll.enums.XMLFormat;
+import com.invinciboll.exceptions.ParserException;
+import com.invinciboll.exceptions.UnsupportedFormatException;
 
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
@@ -20,21 +30,44 @@ import net.sf.saxon.s9api.XdmNodeKind;
 
 public class FormatDetector {
 
+    // Number of leading bytes needed to tell the supported file formats apart, XML may start with
+    // a byte order mark and some whitespace
+    public static final int HEADER_LENGTH = 64;
+
+    // Algorithm of the stored file hashes. Older databases contain MD5 hashes, FileHashMigration
+    // converts them.
+    public static final String FILE_HASH_ALGORITHM = "SHA-256";
+    public static final int LEGACY_FILE_HASH_LENGTH = 32;
+    private static final Pattern FILE_HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    // Only used to read up to the root element, without DTDs so nothing external is resolved
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+
     public static FileFormat detectFileFormat(Path inputFile) throws IOException {
         String filePath = inputFile.toString();
-        byte[] header = new byte[4];
+        byte[] header;
         try (FileInputStream fis = new FileInputStream(filePath)) {
-            fis.read(header, 0, 4);
+            header = fis.readNBytes(HEADER_LENGTH);
         } catch (IOException e) {
             throw new IOException("Error reading file header: " + e.getMessage());
         }
 
+        return detectFileFormat(header, inputFile);
+    }
+
+    /**
+     * Detects the file format from an already sniffed header. The file itself is only opened again
+     * for PDFs, to check for embedded ZUGFeRD/Factur-X XML.
+     */
+    public static FileFormat detectFileFormat(byte[] header, Path inputFile) {
         if (isXML(header)) {
             return FileFormat.XML;
         }
 
         if (isPDF(header)) {
-            if (isZUGFeRDPdf(filePath)) {
+            if (isZUGFeRDPdf(inputFile.toString())) {
                 return FileFormat.ZF_PDF;
             }
             return FileFormat.PDF;
@@ -43,35 +76,99 @@ public class FormatDetector {
         return FileFormat.INVALID;
     }
 
+    public static boolean isSupportedHeader(byte[] header) {
+        return isXML(header) || isPDF(header);
+    }
+
     public static String computeFileHash(Path inputFile, String hashAlgorithm) throws IOException {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
+        try (InputStream is = Files.newInputStream(inputFile)) {
+            return computeHash(is, hashAlgorithm);
+        } catch (IOException e) {
+           throw new IOException("Error reading file: " + e.getMessage());
+        }
+    }
 
-            try (InputStream is = Files.newInputStream(inputFile);
-                DigestInputStream dis = new DigestInputStream(is, md)) {
-                while (dis.read() != -1) {
-                    // No need to process the data, just read to update the digest
-                }
-            }
+    public static String computeFileHash(Path inputFile) throws IOException {
+        return computeFileHash(inputFile, FILE_HASH_ALGORITHM);
+    }
 
-            byte[] digest = md.digest();
+    public static String computeHash(InputStream in, String hashAlgorithm) throws IOException {
+        MessageDigest md = newDigest(hashAlgorithm);
 
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : digest) {
-                hexString.append(String.format("%02x", b));
+        try (DigestInputStream dis = new DigestInputStream(in, md)) {
+            byte[] buffer = new byte[8192];
+            while (dis.read(buffer) != -1) {
+                // No need to process the data, just read to update the digest
             }
-            return hexString.toString();
+        }
+
+        return toHexString(md.digest());
+    }
+
+    /**
+     * Digest used for the stored file hashes. Streaming uploads hash incrementally with it, so
+     * their hashes match the ones computed from files on disk, and browsers compute the same hash
+     * with Web Crypto (crypto.subtle.digest("SHA-256", ...)) for the upload pre-check.
+     */
+    public static MessageDigest newFileDigest() {
+        return newDigest(FILE_HASH_ALGORITHM);
+    }
+
+    private static MessageDigest newDigest(String hashAlgorithm) {
+        try {
+            return MessageDigest.getInstance(hashAlgorithm);
         } catch (NoSuchAlgorithmException e) {
             // should never happen
-            throw new RuntimeException("Algorithm MD5 not found: " + e.getMessage());
-        } catch (IOException e) {
-           throw new IOException("Error reading file: " + e.getMessage());
+            throw new RuntimeException("Algorithm " + hashAlgorithm + " not found: " + e.getMessage());
         }
     }
 
+    // Lower case hex SHA-256, as stored in file_hash
+    public static boolean isFileHash(String hash) {
+        return hash != null && FILE_HASH_PATTERN.matcher(hash).matches();
+    }
+
+    // Hashes stored before the switch to SHA-256 (hex MD5)
+    public static boolean isLegacyFileHash(String hash) {
+        return hash != null && hash.length() == LEGACY_FILE_HASH_LENGTH;
+    }
+
+    public static String toHexString(byte[] digest) {
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : digest) {
+            hexString.append(String.format("%02x", b));
+        }
+        return hexString.toString();
+    }
+
+    // XML declaration, comment or root element, optionally after a byte order mark and whitespace
     private static boolean isXML(byte[] header) {
-        return header.length >= 4
-            && header[0] == '<' && header[1] == '?' && header[2] == 'x' && header[3] == 'm';
+        if (header.length >= 4 && (header[0] & 0xFF) == 0xFE && (header[1] & 0xFF) == 0xFF) {
+            return header[2] == 0 && header[3] == '<'; // UTF-16 big endian
+        }
+        if (header.length >= 4 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xFE) {
+            return header[2] == '<' && header[3] == 0; // UTF-16 little endian
+        }
+
+        int i = startsWithUtf8Bom(header) ? UTF8_BOM.length : 0;
+        while (i < header.length && isXmlWhitespace(header[i])) {
+            i++;
+        }
+        if (i + 1 >= header.length || header[i] != '<') {
+            return false;
+        }
+        byte next = header[i + 1];
+        return next == '?' || next == '!' || next == '_' || next == ':'
+            || (next >= 'A' && next <= 'Z') || (next >= 'a' && next <= 'z');
+    }
+
+    private static boolean startsWithUtf8Bom(byte[] header) {
+        return header.length >= 3
+            && header[0] == UTF8_BOM[0] && header[1] == UTF8_BOM[1] && header[2] == UTF8_BOM[2];
+    }
+
+    private static boolean isXmlWhitespace(int b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
     }
 
     private static boolean isPDF(byte[] header) {
@@ -90,6 +187,81 @@ public class FormatDetector {
         }
     }
 
+    /**
+     * Opens an XML file positioned at its first markup, i.e. without a UTF-8 byte order mark and
+     * leading whitespace, which parsers reject before the XML declaration.
+     */
+    public static InputStream openXml(Path inputFile) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(inputFile));
+        try {
+            in.mark(UTF8_BOM.length);
+            byte[] bom = in.readNBytes(UTF8_BOM.length);
+            if (!startsWithUtf8Bom(bom)) {
+                in.reset();
+            }
+            while (true) {
+                in.mark(1);
+                int b = in.read();
+                if (b == -1 || !isXmlWhitespace(b)) {
+                    in.reset();
+                    return in;
+                }
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Determines the XML format from the first start element only, without building a tree.
+     * Unknown root elements are rejected with an UnsupportedFormatException.
+     */
+    public static XMLFormat sniffXmlFormat(InputStream xml) throws ParserException {
+        try {
+            return sniffXmlFormat(xmlInputFactory.createXMLStreamReader(xml));
+        } catch (XMLStreamException e) {
+            throw new ParserException("Unable to read XML root element: " + e.getMessage(), e);
+        }
+    }
+
+    public static XMLFormat sniffXmlFormat(Reader xml) throws ParserException {
+        try {
+            return sniffXmlFormat(xmlInputFactory.createXMLStreamReader(xml));
+        } catch (XMLStreamException e) {
+            throw new ParserException("Unable to read XML root element: " + e.getMessage(), e);
+        }
+    }
+
+    private static XMLFormat sniffXmlFormat(XMLStreamReader reader) throws ParserException, XMLStreamException {
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    String namespaceURI = reader.getNamespaceURI();
+                    String localName = reader.getLocalName();
+                    XMLFormat xmlFormat = toXmlFormat(namespaceURI, localName);
+                    if (xmlFormat == XMLFormat.UNKNOWN) {
+                        throw new UnsupportedFormatException("Unsupported XML format, root element is {"
+                                + (namespaceURI != null ? namespaceURI : "") + "}" + localName
+                                + ". Expected a UBL invoice, UBL credit note or CII invoice.");
+                    }
+                    return xmlFormat;
+                }
+            }
+            throw new ParserException("The provided XML does not have a root element.", null);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
     public static XMLFormat detectXmlFormat(XdmNode xmlDocument) {
         // Get the root element explicitly
         XdmNode rootElement = null;
@@ -110,6 +282,10 @@ public class FormatDetector {
         String localName = rootName.getLocalName(); // Local name of the root element
         String namespaceURI = rootName.getNamespaceURI(); // Namespace URI of the root element
 
+        return toXmlFormat(namespaceURI, localName);
+    }
+
+    private static XMLFormat toXmlFormat(String namespaceURI, String localName) {
         // Check for UBL namespaces and root elements
         if ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2".equals(namespaceURI) && "Invoice".equals(localName)) {
             return XMLFormat.UBL_INVOICE;
@@ -0,0 +1,296 @@
+package com.invinciboll;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.database.ReviewInvoiceStore;
+import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.entities.TempInvoice;
+import com.invinciboll.enums.AuditAction;
+import com.invinciboll.enums.FileFormat;
+import com.invinciboll.enums.WorkloadClass;
+import com.invinciboll.events.InvoicePersistedEvent;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Ingests invoices dropped into the configured hot folders, e.g. by a scanner or the ERP.
+ * Files are picked up once they stopped changing, deduplicated by file hash and processed in
+ * parallel. E-invoices with complete key information are persisted right away, everything else
+ * is queued for manual review in the {@link ReviewInvoiceStore}. Handled files are moved to the ".processed" or
+ * ".failed" subdirectory of their hot folder.
+ */
+@Component
+public class HotFolderIngestor {
+    private static final Logger logger = LoggerFactory.getLogger(HotFolderIngestor.class);
+
+    private static final String PROCESSED_DIR = ".processed";
+    private static final String FAILED_DIR = ".failed";
+
+    private final AppConfig appConfig;
+    private final InvoiceDao invoiceDao;
+    private final PendingInvoiceStore pendingInvoiceStore;
+    private final ReviewInvoiceStore reviewInvoiceStore;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ProcessingScheduler processingScheduler;
+    private final AuditJournal auditJournal;
+    private final InvoiceArchive invoiceArchive;
+
+    private final List<Path> hotFolders = new ArrayList<>();
+    // Files seen but not yet settled, with the size and modification time of the last check
+    private final Map<Path, FileState> candidates = new ConcurrentHashMap<>();
+    // Files handed to the executor and not yet moved away
+    private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+
+    private WatchService watchService;
+    private Thread watchThread;
+    private ScheduledExecutorService debouncer;
+    private ThreadPoolExecutor executor;
+    private volatile Instant lastRescan = Instant.EPOCH;
+
+    private record FileState(long size, long lastModified, Instant since) {
+    }
+
+    public HotFolderIngestor(AppConfig appConfig, InvoiceDao invoiceDao, PendingInvoiceStore pendingInvoiceStore,
+            ReviewInvoiceStore reviewInvoiceStore, ApplicationEventPublisher eventPublisher,
+            ProcessingScheduler processingScheduler, AuditJournal auditJournal, InvoiceArchive invoiceArchive) {
+        this.appConfig = appConfig;
+        this.invoiceDao = invoiceDao;
+        this.pendingInvoiceStore = pendingInvoiceStore;
+        this.reviewInvoiceStore = reviewInvoiceStore;
+        this.eventPublisher = eventPublisher;
+        this.processingScheduler = processingScheduler;
+        this.auditJournal = auditJournal;
+        this.invoiceArchive = invoiceArchive;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!appConfig.isHotfolderEnabled()) {
+            return;
+        }
+
+        watchService = FileSystems.getDefault().newWatchService();
+        for (String dir : appConfig.getHotfolderDirs()) {
+            if (dir.isBlank()) {
+                continue;
+            }
+            Path hotFolder = Path.of(dir.trim()).toAbsolutePath();
+            Files.createDirectories(hotFolder.resolve(PROCESSED_DIR));
+            Files.createDirectories(hotFolder.resolve(FAILED_DIR));
+            hotFolder.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+            hotFolders.add(hotFolder);
+            logger.info("Watching hot folder {}", hotFolder);
+        }
+
+        int threads = appConfig.getHotfolderThreads() > 0
+                ? appConfig.getHotfolderThreads()
+                : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadNumber = new AtomicInteger();
+        // Bounded queue, settled files stay candidates while it is full instead of piling up work
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4),
+                runnable -> new Thread(runnable, "hotfolder-worker-" + threadNumber.incrementAndGet()));
+
+        watchThread = new Thread(this::watch, "hotfolder-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+
+        debouncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hotfolder-debouncer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        debouncer.scheduleWithFixedDelay(this::submitSettledFiles, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (watchService == null) {
+            return;
+        }
+        debouncer.shutdownNow();
+        watchService.close();
+        executor.shutdown();
+    }
+
+    /**
+     * Pending invoices from the hot folders that still need manual input, oldest first.
+     */
+    public List<TempInvoice> getReviewQueue() {
+        return reviewInvoiceStore.findAll();
+    }
+
+    @EventListener
+    public void onInvoicePersisted(InvoicePersistedEvent event) {
+        // Reviewed invoices continue as regular pending ones, e.g. to be printed
+        TempInvoice invoice = event.invoice();
+        if (reviewInvoiceStore.release(invoice.getInvoiceId())) {
+            pendingInvoiceStore.put(invoice);
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path hotFolder = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        lastRescan = Instant.EPOCH; // Rescan on the next tick
+                        continue;
+                    }
+                    addCandidate(hotFolder.resolve((Path) event.context()));
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+
+    private void addCandidate(Path file) {
+        String fileName = file.getFileName().toString().toLowerCase();
+        if (!fileName.endsWith(".pdf") && !fileName.endsWith(".xml")) {
+            return;
+        }
+        if (!inFlight.contains(file)) {
+            candidates.putIfAbsent(file, new FileState(-1, -1, Instant.now()));
+        }
+    }
+
+    private void submitSettledFiles() {
+        try {
+            if (Instant.now().isAfter(lastRescan.plus(appConfig.getHotfolderRescanInterval()))) {
+                rescan();
+            }
+
+            Instant settledBefore = Instant.now().minus(appConfig.getHotfolderSettleTime());
+            for (Map.Entry<Path, FileState> entry : candidates.entrySet()) {
+                Path file = entry.getKey();
+                if (!Files.isRegularFile(file)) {
+                    candidates.remove(file);
+                    continue;
+                }
+
+                // Partially written files still change size or modification time
+                FileState previous = entry.getValue();
+                long size = Files.size(file);
+                long lastModified = Files.getLastModifiedTime(file).toMillis();
+                if (size != previous.size() || lastModified != previous.lastModified()) {
+                    candidates.put(file, new FileState(size, lastModified, Instant.now()));
+                } else if (previous.since().isBefore(settledBefore) && executor.getQueue().remainingCapacity() > 0) {
+                    candidates.remove(file);
+                    inFlight.add(file);
+                    try {
+                        executor.execute(() -> ingest(file));
+                    } catch (RejectedExecutionException e) {
+                        // Full or shutting down, checked again on the next tick
+                        inFlight.remove(file);
+                        candidates.put(file, previous);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Error while checking hot folder files: {}", e.getMessage());
+        }
+    }
+
+    private void rescan() {
+        lastRescan = Instant.now();
+        for (Path hotFolder : hotFolders) {
+            try (Stream<Path> files = Files.list(hotFolder)) {
+                files.filter(Files::isRegularFile).forEach(this::addCandidate);
+            } catch (IOException e) {
+                logger.warn("Failed to scan hot folder {}: {}", hotFolder, e.getMessage());
+            }
+        }
+    }
+
+    private void ingest(Path file) {
+        TempInvoice invoice = new TempInvoice(appConfig);
+        boolean success = false;
+        try {
+            try (InputStream in = Files.newInputStream(file)) {
+                invoice.setFile(in, file.getFileName().toString(), appConfig.getUploadMaxFileSize().toBytes());
+            }
+
+            // Dedupe on the hash computed while copying, before any expensive processing
+            if (invoiceDao.existsByFileHash(invoice.getFileHash())) {
+                logger.info("Skipping {}, invoice already exists", file);
+                invoice.deleteTempFiles();
+                success = true;
+                return;
+            }
+
+            invoice.process(processingScheduler, WorkloadClass.BULK);
+            auditJournal.record(AuditAction.UPLOADED, invoice.getInvoiceId(), invoice.getFileHash(),
+                    "fileFormat=" + invoice.getFileFormat() + " fileSize=" + invoice.getFileSize()
+                    + " source=hot-folder file=" + file.getFileName());
+
+            if (invoice.getFileFormat() != FileFormat.PDF && invoice.getKeyInformation().isComplete()) {
+                InvoiceEntity invoiceEntity = invoice.persist(invoiceDao, invoiceArchive);
+                eventPublisher.publishEvent(new InvoicePersistedEvent(invoice, invoiceEntity));
+                invoice.deleteTempFiles();
+                logger.info("Persisted {} as invoice {}", file, invoice.getInvoiceId());
+            } else {
+                reviewInvoiceStore.put(invoice);
+                logger.info("Queued {} for review as invoice {}", file, invoice.getInvoiceId());
+            }
+            success = true;
+        } catch (Exception e) {
+            logger.warn("Failed to ingest {}: {}", file, e.getMessage());
+            invoice.deleteTempFiles();
+        } finally {
+            moveAway(file, success ? PROCESSED_DIR : FAILED_DIR);
+            inFlight.remove(file);
+        }
+    }
+
+    private void moveAway(Path file, String targetDir) {
+        Path target = file.resolveSibling(targetDir).resolve(file.getFileName());
+        try {
+            if (Files.exists(target)) {
+                target = target.resolveSibling(System.currentTimeMillis() + "_" + file.getFileName());
+            }
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Failed to move {} to {}: {}", file, targetDir, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,683 @@
+package com.invinciboll;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Year;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.entities.InvoiceEntity;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Cold storage for the output directories of closed years. Each year is packed into one ZIP
+ * archive under "<output.dir>/archive/<year>.zip", the save paths of its invoices then point into
+ * the archive as "<archive>!/<entry>". The ZIP central directory gives random access by entry, so
+ * a single file is read without touching the rest of the archive. Files read by path are
+ * extracted to a size bounded cache, least recently read files are evicted first.
+ */
+@Service
+public class InvoiceArchive {
+    private static final Logger logger = LoggerFactory.getLogger(InvoiceArchive.class);
+
+    public static final String ENTRY_SEPARATOR = "!/";
+    // PDFs being rendered again by the ReprocessingJob, not yet swapped in
+    public static final String REPROCESS_SUFFIX = ".reprocess";
+    // Copies of invoices being persisted, renamed once complete on disk
+    public static final String PERSIST_SUFFIX = ".persist";
+    private static final String ARCHIVE_DIR = "archive";
+
+    // Cached files younger than this may still be in use by the reader that extracted them
+    private static final long EVICTION_GRACE_MILLIS = 60_000;
+    private static final int SAVE_PATH_LOCK_STRIPES = 64;
+
+    private final AppConfig appConfig;
+    private final InvoiceDao invoiceDao;
+    private final Path cachePath;
+
+    // Held while a year is archived and while files of archived invoices are replaced
+    private final ReentrantLock lock = new ReentrantLock();
+    // By save path, so only persists and cleanups of the same paths wait for each other
+    private final Lock[] savePathLocks = new Lock[SAVE_PATH_LOCK_STRIPES];
+    // Open archives, the central directory is only read once per archive
+    private final Map<Path, OpenArchive> archives = new ConcurrentHashMap<>();
+
+    public InvoiceArchive(AppConfig appConfig, InvoiceDao invoiceDao) {
+        this.appConfig = appConfig;
+        this.invoiceDao = invoiceDao;
+        this.cachePath = Paths.get(System.getProperty("user.dir")).resolve(appConfig.getArchiveCacheDir());
+        for (int i = 0; i < savePathLocks.length; i++) {
+            savePathLocks[i] = new ReentrantLock();
+        }
+    }
+
+    public static boolean isArchived(String savePath) {
+        return savePath != null && savePath.contains(ENTRY_SEPARATOR);
+    }
+
+    /**
+     * Path of a stored file relative to the output base directory, "<year>/<seller>/<file>", the
+     * same whether the file is loose or archived.
+     */
+    public static String relativePath(String savePath) {
+        if (isArchived(savePath)) {
+            return yearOf(archiveFile(savePath)) + "/" + entryName(savePath);
+        }
+        Path file = Path.of(savePath);
+        int nameCount = file.getNameCount();
+        return toEntryName(file.subpath(Math.max(nameCount - 3, 0), nameCount));
+    }
+
+    /**
+     * Lock to hold while replacing a file of a possibly archived invoice and updating its save
+     * paths, so the change cannot interleave with archiving the invoice's year.
+     */
+    public ReentrantLock getLock() {
+        return lock;
+    }
+
+    /**
+     * Locks to hold while writing the files of a new invoice at the given loose paths and storing
+     * its row, so the cleanup of a deleted invoice with the same save paths cannot interleave.
+     * Sorted, so two persists locking the same stripes cannot deadlock.
+     */
+    public List<Lock> getSavePathLocks(Path... looseFiles) {
+        return Arrays.stream(looseFiles)
+                .mapToInt(InvoiceArchive::stripe)
+                .distinct()
+                .sorted()
+                .mapToObj(stripe -> savePathLocks[stripe])
+                .toList();
+    }
+
+    /**
+     * Returns a readable file for the save path: the path itself for loose files, an extracted
+     * copy in the cache for archived ones.
+     */
+    public Path resolve(String savePath) throws IOException {
+        if (!isArchived(savePath)) {
+            return Path.of(savePath);
+        }
+
+        Path archiveFile = archiveFile(savePath);
+        String entryName = entryName(savePath);
+        Path cached = cachePath.resolve(yearOf(archiveFile)).resolve(entryName).normalize();
+        if (!cached.startsWith(cachePath)) {
+            throw new IOException("Invalid archive entry: " + entryName);
+        }
+
+        if (Files.exists(cached)) {
+            // The modification time doubles as last access time for the LRU eviction
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+            return cached;
+        }
+
+        Files.createDirectories(cached.getParent());
+        Path tempFile = Files.createTempFile(cached.getParent(), cached.getFileName().toString(), ".tmp");
+        try (InputStream in = openEntry(archiveFile, entryName)) {
+            Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+
+        enforceCacheSize();
+        return cached;
+    }
+
+    /**
+     * Opens the file behind the save path for reading, archived files are read straight from the
+     * archive without going through the cache.
+     */
+    public InputStream open(String savePath) throws IOException {
+        if (!isArchived(savePath)) {
+            return Files.newInputStream(Path.of(savePath));
+        }
+        return openEntry(archiveFile(savePath), entryName(savePath));
+    }
+
+    /**
+     * The archive entry behind the save path with its size and CRC, or null for loose files.
+     */
+    public ZipEntry getEntry(String savePath) throws IOException {
+        if (!isArchived(savePath)) {
+            return null;
+        }
+        OpenArchive archive = acquireArchive(archiveFile(savePath));
+        ZipEntry entry;
+        try {
+            entry = archive.zipFile.getEntry(entryName(savePath));
+        } finally {
+            archive.release();
+        }
+        if (entry == null) {
+            throw new IOException("Entry " + entryName(savePath) + " not found in " + archiveFile(savePath));
+        }
+        return entry;
+    }
+
+    public boolean exists(String savePath) {
+        if (savePath == null) {
+            return false;
+        }
+        if (!isArchived(savePath)) {
+            return Files.isReadable(Path.of(savePath));
+        }
+        try {
+            return getEntry(savePath) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Where a file behind the save path is written when it is replaced: the path itself for loose
+     * files, its place in the year directory for archived ones. The next archiving run of that year
+     * takes it back into the archive.
+     */
+    public Path toLoosePath(String savePath) {
+        if (!isArchived(savePath)) {
+            return Path.of(savePath);
+        }
+        Path archiveFile = archiveFile(savePath);
+        return Path.of(appConfig.getOutputBaseDir(), yearOf(archiveFile)).resolve(entryName(savePath));
+    }
+
+    @Scheduled(cron = "${archive.cron}")
+    public void archiveClosedYears() {
+        if (!appConfig.isArchiveEnabled()) {
+            return;
+        }
+        for (Year year : findClosedYears()) {
+            try {
+                archiveYear(year);
+            } catch (IOException e) {
+                logger.warn("Failed to archive year {}: {}", year, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Years with loose files in the output directory that are past the configured number of years
+     * kept uncompressed.
+     */
+    public List<Year> findClosedYears() {
+        Year newestClosed = Year.now().minusYears(1L + appConfig.getArchiveKeepYears());
+        List<Year> years = new ArrayList<>();
+        try (Stream<Path> dirs = Files.list(Path.of(appConfig.getOutputBaseDir()))) {
+            dirs.filter(Files::isDirectory)
+                .map(dir -> dir.getFileName().toString())
+                .filter(name -> name.matches("\\d{4}"))
+                .map(Year::parse)
+                .filter(year -> !year.isAfter(newestClosed))
+                .sorted()
+                .forEach(years::add);
+        } catch (IOException e) {
+            logger.warn("Failed to list output directory: {}", e.getMessage());
+        }
+        return years;
+    }
+
+    /**
+     * Packs the loose files of a year into its archive, merging them with an existing archive of
+     * that year, and points the save paths of its invoices into the archive. The new archive is
+     * written next to the old one and swapped in atomically; the loose files are only deleted once
+     * the database refers to the archive, so an interrupted run is simply repeated.
+     *
+     * @return the number of files moved into the archive
+     */
+    public int archiveYear(Year year) throws IOException {
+        if (!Year.now().isAfter(year)) {
+            throw new IllegalArgumentException("Year " + year + " is not closed yet");
+        }
+
+        lock.lock();
+        try {
+            Path yearDir = Path.of(appConfig.getOutputBaseDir(), year.toString());
+            Path archiveDir = Path.of(appConfig.getOutputBaseDir(), ARCHIVE_DIR);
+            Path archiveFile = archiveDir.resolve(year + ".zip");
+            if (!Files.isDirectory(yearDir)) {
+                return 0;
+            }
+
+            // Entry name to loose file, sorted so the archive lists sellers together
+            Map<String, Path> looseFiles = new LinkedHashMap<>();
+            try (Stream<Path> files = Files.walk(yearDir)) {
+                for (Path file : files
+                        .filter(Files::isRegularFile)
+                        .filter(file -> !file.getFileName().toString().endsWith(REPROCESS_SUFFIX))
+                        .filter(file -> !file.getFileName().toString().endsWith(PERSIST_SUFFIX))
+                        .sorted()
+                        .collect(Collectors.toList())) {
+                    looseFiles.put(toEntryName(yearDir.relativize(file)), file);
+                }
+            }
+            if (looseFiles.isEmpty()) {
+                FileUtils.deleteDirectory(yearDir.toFile());
+                return 0;
+            }
+
+            Files.createDirectories(archiveDir);
+            Path tempArchive = archiveDir.resolve(year + ".zip.tmp");
+            try {
+                writeArchive(tempArchive, archiveFile, looseFiles, Set.of());
+                // Closed before the move where no reader holds it, a file in use cannot be replaced
+                // on every platform; again after it, in case a reader opened the old file meanwhile
+                retireArchive(archiveFile);
+                Files.move(tempArchive, archiveFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                retireArchive(archiveFile);
+            } finally {
+                Files.deleteIfExists(tempArchive);
+            }
+            // Extracted copies may be outdated now
+            FileUtils.deleteDirectory(cachePath.resolve(year.toString()).toFile());
+
+            String yearPrefix = yearDir.toString() + File.separator;
+            for (InvoiceEntity invoice : invoiceDao.findBySavePathPrefix(yearPrefix)) {
+                invoice.setOriginalFileSavePath(toArchivePath(invoice.getOriginalFileSavePath(), yearDir, archiveFile));
+                invoice.setGeneratedFileSavePath(toArchivePath(invoice.getGeneratedFileSavePath(), yearDir, archiveFile));
+                invoiceDao.update(invoice);
+            }
+
+            for (Path file : looseFiles.values()) {
+                Files.deleteIfExists(file);
+            }
+            deleteEmptyDirectories(yearDir);
+
+            logger.info("Archived {} files of year {} to {}", looseFiles.size(), year, archiveFile);
+            return looseFiles.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the files behind the save paths of deleted invoices, with the copies archiving may
+     * have left: the entry in the archive of the year for a loose file (its year may have been
+     * archived since the path was read), the loose replacement for an archived one. Every affected
+     * archive is written again once, without the entries. Save paths are derived from the file, so
+     * a path an invoice stored again since uses, loose or archived, is left alone.
+     */
+    public void deleteFiles(Collection<String> savePaths) throws IOException {
+        lock.lock();
+        try {
+            Map<Path, Set<String>> entriesByArchive = new LinkedHashMap<>();
+            for (String savePath : savePaths) {
+                if (savePath == null) {
+                    continue;
+                }
+                Path looseFile = toLoosePath(savePath);
+                Path archiveFile = archiveFileOf(looseFile);
+                String entryName = null;
+                if (archiveFile != null) {
+                    Path yearDir = Path.of(appConfig.getOutputBaseDir(), yearOf(archiveFile));
+                    entryName = toEntryName(yearDir.relativize(looseFile));
+                }
+                Lock savePathLock = savePathLocks[stripe(looseFile)];
+                savePathLock.lock();
+                try {
+                    if (isInUse(looseFile.toString())
+                            || (entryName != null && isInUse(archiveFile + ENTRY_SEPARATOR + entryName))) {
+                        logger.info("Keeping {}, it belongs to an invoice stored again", savePath);
+                        continue;
+                    }
+                    Files.deleteIfExists(looseFile);
+                } finally {
+                    savePathLock.unlock();
+                }
+                if (archiveFile != null && Files.exists(archiveFile)) {
+                    entriesByArchive.computeIfAbsent(archiveFile, key -> new HashSet<>()).add(entryName);
+                }
+            }
+            for (Map.Entry<Path, Set<String>> entries : entriesByArchive.entrySet()) {
+                removeEntries(entries.getKey(), entries.getValue());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isInUse(String savePath) {
+        for (InvoiceEntity invoice : invoiceDao.findBySavePathPrefix(savePath)) {
+            if (savePath.equals(invoice.getOriginalFileSavePath()) || savePath.equals(invoice.getGeneratedFileSavePath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeEntries(Path archiveFile, Set<String> entryNames) throws IOException {
+        OpenArchive archive = acquireArchive(archiveFile);
+        Set<String> present = new HashSet<>();
+        try {
+            for (String entryName : entryNames) {
+                if (archive.zipFile.getEntry(entryName) != null) {
+                    present.add(entryName);
+                }
+            }
+        } finally {
+            archive.release();
+        }
+        if (present.isEmpty()) {
+            return;
+        }
+
+        Path tempArchive = archiveFile.resolveSibling(archiveFile.getFileName() + ".tmp");
+        try {
+            writeArchive(tempArchive, archiveFile, Map.of(), present);
+            retireArchive(archiveFile);
+            Files.move(tempArchive, archiveFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            retireArchive(archiveFile);
+        } finally {
+            Files.deleteIfExists(tempArchive);
+        }
+
+        Path yearCache = cachePath.resolve(yearOf(archiveFile));
+        for (String entryName : present) {
+            Path cached = yearCache.resolve(entryName).normalize();
+            if (cached.startsWith(yearCache)) {
+                Files.deleteIfExists(cached);
+            }
+        }
+        logger.info("Removed {} files of deleted invoices from {}", present.size(), archiveFile);
+    }
+
+    // The archive the loose file is packed into when its year is archived, null outside the year directories
+    private Path archiveFileOf(Path looseFile) {
+        Path baseDir = Path.of(appConfig.getOutputBaseDir());
+        if (!looseFile.startsWith(baseDir)) {
+            return null;
+        }
+        Path relativePath = baseDir.relativize(looseFile);
+        String year = relativePath.getName(0).toString();
+        if (relativePath.getNameCount() < 2 || !year.matches("\\d{4}")) {
+            return null;
+        }
+        return baseDir.resolve(ARCHIVE_DIR).resolve(year + ".zip");
+    }
+
+    private void writeArchive(Path tempArchive, Path archiveFile, Map<String, Path> looseFiles,
+            Set<String> removedEntries) throws IOException {
+        try (OutputStream out = Files.newOutputStream(tempArchive);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            // Entries of the existing archive, unless a loose file replaces them
+            if (Files.exists(archiveFile)) {
+                OpenArchive existing = acquireArchive(archiveFile);
+                try {
+                    Enumeration<? extends ZipEntry> entries = existing.zipFile.entries();
+                    while (entries.hasMoreElements()) {
+                        ZipEntry entry = entries.nextElement();
+                        if (looseFiles.containsKey(entry.getName()) || removedEntries.contains(entry.getName())) {
+                            continue;
+                        }
+                        ZipEntry copy = new ZipEntry(entry.getName());
+                        copy.setLastModifiedTime(entry.getLastModifiedTime());
+                        zip.putNextEntry(copy);
+                        try (InputStream in = existing.zipFile.getInputStream(entry)) {
+                            in.transferTo(zip);
+                        }
+                        zip.closeEntry();
+                    }
+                } finally {
+                    existing.release();
+                }
+            }
+
+            for (Map.Entry<String, Path> looseFile : looseFiles.entrySet()) {
+                ZipEntry entry = new ZipEntry(looseFile.getKey());
+                entry.setLastModifiedTime(Files.getLastModifiedTime(looseFile.getValue()));
+                zip.putNextEntry(entry);
+                Files.copy(looseFile.getValue(), zip);
+                zip.closeEntry();
+            }
+        }
+
+        // The loose files are deleted right after, so the archive has to be on disk first
+        try (FileChannel channel = FileChannel.open(tempArchive, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private String toArchivePath(String savePath, Path yearDir, Path archiveFile) {
+        if (savePath == null || isArchived(savePath)) {
+            return savePath;
+        }
+        Path file = Path.of(savePath);
+        if (!file.startsWith(yearDir)) {
+            return savePath;
+        }
+        return archiveFile + ENTRY_SEPARATOR + toEntryName(yearDir.relativize(file));
+    }
+
+    // The archive stays open for the returned stream until it is closed
+    private InputStream openEntry(Path archiveFile, String entryName) throws IOException {
+        OpenArchive archive = acquireArchive(archiveFile);
+        try {
+            ZipEntry entry = archive.zipFile.getEntry(entryName);
+            if (entry == null) {
+                throw new IOException("Entry " + entryName + " not found in " + archiveFile);
+            }
+            return new FilterInputStream(archive.zipFile.getInputStream(entry)) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        archive.release();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            archive.release();
+            throw e;
+        }
+    }
+
+    /**
+     * The open archive with a reader registered, to be released when done with it. An archive
+     * retired meanwhile is opened again.
+     */
+    private OpenArchive acquireArchive(Path archiveFile) throws IOException {
+        while (true) {
+            OpenArchive archive = archives.get(archiveFile);
+            if (archive == null) {
+                OpenArchive opened = new OpenArchive(new ZipFile(archiveFile.toFile()));
+                archive = archives.putIfAbsent(archiveFile, opened);
+                if (archive == null) {
+                    archive = opened;
+                } else {
+                    opened.retire();
+                }
+            }
+            if (archive.acquire()) {
+                return archive;
+            }
+            archives.remove(archiveFile, archive);
+        }
+    }
+
+    // Drops the cached handle of a replaced archive, it is closed once its last reader is done
+    private void retireArchive(Path archiveFile) {
+        OpenArchive archive = archives.remove(archiveFile);
+        if (archive != null) {
+            archive.retire();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        for (Path archiveFile : List.copyOf(archives.keySet())) {
+            retireArchive(archiveFile);
+        }
+    }
+
+    private void enforceCacheSize() {
+        List<Path> cachedFiles;
+        try (Stream<Path> files = Files.walk(cachePath)) {
+            cachedFiles = files
+                .filter(Files::isRegularFile)
+                .filter(file -> !file.getFileName().toString().endsWith(".tmp"))
+                .sorted(Comparator.comparingLong(InvoiceArchive::lastModified))
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.warn("Failed to list archive cache directory: {}", e.getMessage());
+            return;
+        }
+
+        long totalBytes = cachedFiles.stream().mapToLong(InvoiceArchive::size).sum();
+        long evictBefore = System.currentTimeMillis() - EVICTION_GRACE_MILLIS;
+        for (Path cachedFile : cachedFiles) {
+            if (totalBytes <= appConfig.getArchiveCacheSize().toBytes() || lastModified(cachedFile) > evictBefore) {
+                break;
+            }
+            long size = size(cachedFile);
+            try {
+                Files.deleteIfExists(cachedFile);
+                totalBytes -= size;
+            } catch (IOException e) {
+                logger.warn("Failed to evict cached archive file {}: {}", cachedFile, e.getMessage());
+            }
+        }
+    }
+
+    private static void deleteEmptyDirectories(Path dir) throws IOException {
+        List<Path> dirs;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            dirs = paths.filter(Files::isDirectory)
+                .sorted(Comparator.reverseOrder())
+                .collect(Collectors.toList());
+        }
+        for (Path emptyCandidate : dirs) {
+            try (Stream<Path> children = Files.list(emptyCandidate)) {
+                if (children.findAny().isEmpty()) {
+                    Files.delete(emptyCandidate);
+                }
+            }
+        }
+    }
+
+    private static Path archiveFile(String savePath) {
+        return Path.of(savePath.substring(0, savePath.indexOf(ENTRY_SEPARATOR)));
+    }
+
+    private static String entryName(String savePath) {
+        return savePath.substring(savePath.indexOf(ENTRY_SEPARATOR) + ENTRY_SEPARATOR.length());
+    }
+
+    private static String yearOf(Path archiveFile) {
+        String fileName = archiveFile.getFileName().toString();
+        return fileName.substring(0, fileName.length() - ".zip".length());
+    }
+
+    private static int stripe(Path looseFile) {
+        return Math.floorMod(looseFile.toAbsolutePath().normalize().hashCode(), SAVE_PATH_LOCK_STRIPES);
+    }
+
+    private static String toEntryName(Path relativePath) {
+        return relativePath.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * A shared ZipFile counting its readers, so a replaced archive is closed as soon as the reads
+     * still going on it are done instead of whenever the handle is collected.
+     */
+    private static final class OpenArchive {
+        private final ZipFile zipFile;
+        private int readers;
+        private boolean retired;
+
+        OpenArchive(ZipFile zipFile) {
+            this.zipFile = zipFile;
+        }
+
+        synchronized boolean acquire() {
+            if (retired) {
+                return false;
+            }
+            readers++;
+            return true;
+        }
+
+        synchronized void release() {
+            readers--;
+            if (retired && readers == 0) {
+                closeZipFile();
+            }
+        }
+
+        synchronized void retire() {
+            if (retired) {
+                return;
+            }
+            retired = true;
+            if (readers == 0) {
+                closeZipFile();
+            }
+        }
+
+        private void closeZipFile() {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close archive {}: {}", zipFile.getName(), e.getMessage());
+            }
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+}
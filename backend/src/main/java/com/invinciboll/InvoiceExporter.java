@@ -0,0 +1,191 @@
+package com.invinciboll;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.entities.InvoiceEntity;
+
+/**
+ * Writes all invoices of a period as ZIP archive: an index.csv followed by the original and
+ * generated files, laid out as "<year>/<seller>/<file>" like the output directory. The archive is
+ * streamed, only the rows of the period are held in memory, so index and files list the same
+ * invoices.
+ */
+public class InvoiceExporter {
+    private static final Logger logger = LoggerFactory.getLogger(InvoiceExporter.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CSV_HEADER = "invoice_id;issued_date;seller_name;invoice_reference;invoice_type_code;"
+            + "total_sum;file_format;xml_format;file_hash;original_file;generated_file\r\n";
+
+    public static void writeZip(InvoiceDao invoiceDao, InvoiceArchive invoiceArchive, LocalDate from, LocalDate to, OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        // Speed over ratio, most of the volume are PDFs that are stored uncompressed anyway
+        zip.setLevel(Deflater.BEST_SPEED);
+
+        // Collect the rows once, so the index comes first and matches the files that follow
+        List<InvoiceEntity> invoices = new ArrayList<>();
+        invoiceDao.streamByIssuedDateBetween(from, to, invoices::add);
+
+        zip.putNextEntry(new ZipEntry("index.csv"));
+        Writer csv = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+        csv.write(CSV_HEADER);
+        for (InvoiceEntity invoice : invoices) {
+            writeCsvRow(csv, invoice);
+        }
+        csv.flush();
+        zip.closeEntry();
+
+        // Entry names are the stored paths, a file shared by several rows is only added once
+        Set<String> addedEntries = new HashSet<>();
+        for (InvoiceEntity invoice : invoices) {
+            addFileOnce(zip, invoiceArchive, invoice.getOriginalFileSavePath(), addedEntries);
+            addFileOnce(zip, invoiceArchive, invoice.getGeneratedFileSavePath(), addedEntries);
+        }
+
+        zip.finish();
+        zip.flush();
+    }
+
+    private static void addFileOnce(ZipOutputStream zip, InvoiceArchive invoiceArchive, String savePath, Set<String> addedEntries) throws IOException {
+        if (savePath == null) {
+            return;
+        }
+        String entryName = entryName(savePath);
+        if (addedEntries.add(entryName)) {
+            addFile(zip, invoiceArchive, savePath, entryName);
+        }
+    }
+
+    private static void addFile(ZipOutputStream zip, InvoiceArchive invoiceArchive, String savePath, String entryName) throws IOException {
+        if (InvoiceArchive.isArchived(savePath)) {
+            addArchivedFile(zip, invoiceArchive, savePath, entryName);
+            return;
+        }
+
+        Path file = Path.of(savePath);
+        if (!Files.isReadable(file)) {
+            logger.warn("Skipping missing file in export: {}", file);
+            return;
+        }
+
+        ZipEntry entry = new ZipEntry(entryName);
+        entry.setLastModifiedTime(Files.getLastModifiedTime(file));
+        if (entryName.toLowerCase().endsWith(".pdf")) {
+            // PDFs barely compress, store them and only pay for a CRC pass over the file
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(Files.size(file));
+            entry.setCrc(crc32(file));
+        }
+
+        zip.putNextEntry(entry);
+        Files.copy(file, zip);
+        zip.closeEntry();
+    }
+
+    // Size and CRC are known from the cold storage archive, so the file is only read once
+    private static void addArchivedFile(ZipOutputStream zip, InvoiceArchive invoiceArchive, String savePath, String entryName) throws IOException {
+        if (!invoiceArchive.exists(savePath)) {
+            logger.warn("Skipping missing file in export: {}", savePath);
+            return;
+        }
+
+        ZipEntry archived = invoiceArchive.getEntry(savePath);
+        ZipEntry entry = new ZipEntry(entryName);
+        entry.setLastModifiedTime(archived.getLastModifiedTime());
+        if (entryName.toLowerCase().endsWith(".pdf")) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(archived.getSize());
+            entry.setCrc(archived.getCrc());
+        }
+
+        zip.putNextEntry(entry);
+        try (InputStream in = invoiceArchive.open(savePath)) {
+            in.transferTo(zip);
+        }
+        zip.closeEntry();
+    }
+
+    private static long crc32(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, bytesRead);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static String entryName(String savePath) {
+        if (savePath == null) {
+            return "";
+        }
+        return InvoiceArchive.relativePath(savePath);
+    }
+
+    private static void writeCsvRow(Writer csv, InvoiceEntity invoice) throws IOException {
+        String generatedEntry = invoice.getOriginalFileSavePath().equals(invoice.getGeneratedFileSavePath())
+                ? ""
+                : entryName(invoice.getGeneratedFileSavePath());
+        csv.write(String.join(";",
+                csvValue(invoice.getInvoiceId()),
+                csvValue(invoice.getIssuedDate()),
+                csvText(invoice.getSellerName()),
+                csvText(invoice.getInvoiceReference()),
+                csvValue(invoice.getInvoiceTypeCode()),
+                csvValue(invoice.getTotalSum() != null ? invoice.getTotalSum().toPlainString() : null),
+                csvValue(invoice.getFileFormat()),
+                csvValue(invoice.getXmlFormat()),
+                csvValue(invoice.getFileHash()),
+                csvText(entryName(invoice.getOriginalFileSavePath())),
+                csvText(generatedEntry)));
+        csv.write("\r\n");
+    }
+
+    /**
+     * Text taken from the invoice itself. A spreadsheet would evaluate a value starting with one
+     * of =, +, -, @, tab or CR as a formula, so such values are prefixed with a quote and quoted.
+     */
+    private static String csvText(String text) {
+        if (text == null || text.isEmpty()) {
+            return "";
+        }
+        if ("=+-@\t\r".indexOf(text.charAt(0)) >= 0) {
+            return "\"'" + text.replace("\"", "\"\"") + "\"";
+        }
+        return csvValue(text);
+    }
+
+    private static String csvValue(Object value) {
+        if (value == null) {
+            return "";
+        }
+        String text = value.toString();
+        if (text.contains(";") || text.contains("\"") || text.contains("\n") || text.contains("\r")) {
+            return "\"" + text.replace("\"", "\"\"") + "\"";
+        }
+        return text;
+    }
+}
@@ -0,0 +1,156 @@
+package com.invinciboll;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.InvoiceTombstoneDao;
+import com.invinciboll.database.InvoiceTombstoneDao.Tombstone;
+import com.invinciboll.events.InvoicesDeletedEvent;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Removes the files of deleted invoices in the background, so deleting thousands of invoices only
+ * costs the database transaction. The tombstones are the queue: a batch of due tombstones is
+ * taken, the files are removed (archived files by writing their archive again, once per batch)
+ * and the tombstones are marked done. A failed removal is retried with growing delay, up to
+ * delete.cleanup-max-attempts times. Runs after every delete and every cleanup-interval, the
+ * latter picks up tombstones left by a restart or deleted on another node. Files an invoice
+ * uploaded again meanwhile uses are kept, see InvoiceArchive.deleteFiles.
+ */
+@Component
+public class InvoiceFileCleaner {
+    private static final Logger logger = LoggerFactory.getLogger(InvoiceFileCleaner.class);
+
+    private static final int BATCH_SIZE = 200;
+    private static final Duration MAX_RETRY_DELAY = Duration.ofHours(6);
+
+    private final AppConfig appConfig;
+    private final InvoiceTombstoneDao tombstoneDao;
+    private final InvoiceArchive invoiceArchive;
+
+    private final Semaphore wakeUp = new Semaphore(0);
+    private volatile boolean cancelled;
+
+    public InvoiceFileCleaner(AppConfig appConfig, InvoiceTombstoneDao tombstoneDao, InvoiceArchive invoiceArchive) {
+        this.appConfig = appConfig;
+        this.tombstoneDao = tombstoneDao;
+        this.invoiceArchive = invoiceArchive;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startOnStartup() {
+        Thread thread = new Thread(this::run, "invoice-file-cleaner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @EventListener
+    public void onInvoicesDeleted(InvoicesDeletedEvent event) {
+        wakeUp.release();
+    }
+
+    @PreDestroy
+    public void cancel() {
+        cancelled = true;
+        wakeUp.release();
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("pending", tombstoneDao.countPendingCleanup(appConfig.getDeleteCleanupMaxAttempts()));
+        statistics.put("failed", tombstoneDao.countFailedCleanup(appConfig.getDeleteCleanupMaxAttempts()));
+        return statistics;
+    }
+
+    private void run() {
+        while (!cancelled) {
+            try {
+                cleanUp();
+                tombstoneDao.purgeCleanedBefore(Instant.now().minus(appConfig.getDeleteTombstoneRetention()));
+            } catch (Exception e) {
+                logger.warn("Failed to clean up files of deleted invoices: {}", e.getMessage());
+            }
+            try {
+                wakeUp.tryAcquire(appConfig.getDeleteCleanupInterval().toMillis(), TimeUnit.MILLISECONDS);
+                wakeUp.drainPermits();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void cleanUp() {
+        int removed = 0;
+        while (!cancelled) {
+            List<Tombstone> batch = tombstoneDao.findDueForCleanup(Instant.now(),
+                    appConfig.getDeleteCleanupMaxAttempts(), BATCH_SIZE);
+            if (batch.isEmpty()) {
+                break;
+            }
+            try {
+                invoiceArchive.deleteFiles(savePaths(batch));
+                tombstoneDao.markFilesDeleted(batch.stream().map(Tombstone::invoiceId).toList(), Instant.now());
+                removed += batch.size();
+            } catch (Exception e) {
+                // One by one, so only the tombstones whose files cannot be removed are retried
+                removed += cleanUpOneByOne(batch);
+            }
+        }
+        if (removed > 0) {
+            logger.info("Removed the files of {} deleted invoices", removed);
+        }
+    }
+
+    private int cleanUpOneByOne(List<Tombstone> batch) {
+        int removed = 0;
+        List<UUID> done = new ArrayList<>();
+        for (Tombstone tombstone : batch) {
+            try {
+                invoiceArchive.deleteFiles(savePaths(List.of(tombstone)));
+                done.add(tombstone.invoiceId());
+                removed++;
+            } catch (Exception e) {
+                Duration delay = retryDelay(tombstone.cleanupAttempts());
+                tombstoneDao.recordCleanupFailure(tombstone.invoiceId(), e.getMessage(), Instant.now().plus(delay));
+                logger.warn("Failed to remove the files of deleted invoice {} (attempt {}), retrying in {}: {}",
+                        tombstone.invoiceId(), tombstone.cleanupAttempts() + 1, delay, e.getMessage());
+            }
+        }
+        tombstoneDao.markFilesDeleted(done, Instant.now());
+        return removed;
+    }
+
+    // Doubles with every failed attempt, starting at the cleanup interval
+    private Duration retryDelay(int failedAttempts) {
+        Duration delay = appConfig.getDeleteCleanupInterval().multipliedBy(1L << Math.min(failedAttempts, 16));
+        return delay.compareTo(MAX_RETRY_DELAY) > 0 ? MAX_RETRY_DELAY : delay;
+    }
+
+    private static Set<String> savePaths(List<Tombstone> tombstones) {
+        // Plain PDFs have the same original and generated file
+        Set<String> savePaths = new LinkedHashSet<>();
+        for (Tombstone tombstone : tombstones) {
+            savePaths.add(tombstone.originalFileSavePath());
+            savePaths.add(tombstone.generatedFileSavePath());
+        }
+        return savePaths;
+    }
+}
@@ -0,0 +1,437 @@
+package com.invinciboll;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.enums.FileFormat;
+import com.invinciboll.enums.WorkloadClass;
+import com.invinciboll.events.InvoicePersistedEvent;
+import com.invinciboll.events.InvoicesDeletedEvent;
+import com.invinciboll.exceptions.ParserException;
+
+import jakarta.annotation.PreDestroy;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Embedded full-text index over the contents of all invoices: references, IBANs and other
+ * identifiers, party names and line items of e-invoices taken from the XR tree, and the text of
+ * plain PDFs. Updated in the background on persist and delete, searchable within a second and
+ * committed every search.commit-interval. On startup invoices missing from the index are indexed
+ * from their stored files and deleted ones are removed, which also covers changes lost by a crash
+ * before the commit and builds the index for existing invoices.
+ */
+@Service
+public class InvoiceSearchIndex {
+    private static final Logger logger = LoggerFactory.getLogger(InvoiceSearchIndex.class);
+
+    public record Hit(UUID invoiceId, float score) {
+    }
+
+    public record Result(long totalHits, boolean complete, List<Hit> hits) {
+    }
+
+    // The indexed values of an e-invoice, queued instead of its XR tree
+    private record Fields(List<String> identifiers, List<String> parties, List<String> items, String content) {
+    }
+
+    private static final String INVOICE_ID = "invoiceId";
+    private static final String IDENTIFIERS = "identifiers";
+    // Identifiers lower case without whitespace, so "DE89 3704 0044" finds "DE8937040044"
+    private static final String IDENTIFIER_KEYS = "identifierKeys";
+    private static final String PARTIES = "parties";
+    private static final String ITEMS = "items";
+    private static final String CONTENT = "content";
+
+    private static final Map<String, Float> FIELD_BOOSTS = Map.of(
+            IDENTIFIERS, 4f,
+            PARTIES, 2f,
+            ITEMS, 1.5f,
+            CONTENT, 1f);
+    private static final float IDENTIFIER_KEY_BOOST = 10f;
+
+    private static final String IDENTIFIERS_XPATH = String.join(" | ",
+            "//xr:Invoice_number", "//xr:Preceding_Invoice_reference", "//xr:Buyer_reference",
+            "//xr:Purchase_order_reference", "//xr:Sales_order_reference", "//xr:Contract_reference",
+            "//xr:Project_reference", "//xr:Receiving_advice_reference", "//xr:Despatch_advice_reference",
+            "//xr:Tender_or_lot_reference", "//xr:Invoiced_object_identifier", "//xr:Buyer_accounting_reference",
+            "//xr:Payment_account_identifier", "//xr:Remittance_information", "//xr:Seller_identifier",
+            "//xr:Seller_VAT_identifier", "//xr:Buyer_identifier", "//xr:Buyer_VAT_identifier");
+    private static final String PARTIES_XPATH = String.join(" | ",
+            "//xr:Seller_name", "//xr:Seller_trading_name", "//xr:Buyer_name", "//xr:Buyer_trading_name",
+            "//xr:Payee_name", "//xr:Deliver_to_party_name");
+    private static final String ITEMS_XPATH = String.join(" | ",
+            "//xr:Item_name", "//xr:Item_description", "//xr:Invoice_note");
+    private static final String CONTENT_XPATH = "//text()";
+
+    // Deeper pages cost more than they are worth, the query should be refined instead
+    private static final int MAX_RESULT_WINDOW = 10000;
+    private static final int MAX_PDF_PAGES = 50;
+    private static final int RECONCILE_BATCH_SIZE = 200;
+    private static final long REFRESH_INTERVAL_MILLIS = 1000;
+
+    private final AppConfig appConfig;
+    private final InvoiceDao invoiceDao;
+    private final InvoiceArchive invoiceArchive;
+    private final ProcessingScheduler processingScheduler;
+    private final Analyzer analyzer;
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    // Index updates run one after another, in the order of the events
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "search-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean reconciling;
+
+    public InvoiceSearchIndex(AppConfig appConfig, InvoiceDao invoiceDao, InvoiceArchive invoiceArchive,
+            ProcessingScheduler processingScheduler) {
+        this.appConfig = appConfig;
+        this.invoiceDao = invoiceDao;
+        this.invoiceArchive = invoiceArchive;
+        this.processingScheduler = processingScheduler;
+        // No stop words, invoices mix German and English and short words can be part of a name
+        this.analyzer = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+        Path indexPath = Paths.get(System.getProperty("user.dir")).resolve(appConfig.getSearchDir());
+        try {
+            this.writer = new IndexWriter(FSDirectory.open(indexPath), new IndexWriterConfig(analyzer));
+            this.searcherManager = new SearcherManager(writer, null);
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening search index: " + e.getMessage(), e);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startOnStartup() {
+        executor.scheduleWithFixedDelay(this::refresh, REFRESH_INTERVAL_MILLIS, REFRESH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        long commitInterval = appConfig.getSearchCommitInterval().toMillis();
+        executor.scheduleWithFixedDelay(this::commit, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+
+        reconciling = true;
+        submit("reconciling the search index", () -> {
+            Set<UUID> indexed;
+            try {
+                indexed = indexedInvoiceIds();
+            } catch (IOException e) {
+                logger.warn("Failed to read the search index, not reconciling it: {}", e.getMessage());
+                reconciling = false;
+                return;
+            }
+            reconcile(indexed, null, 0);
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Not interrupted, an interrupted write closes the index; what is left is reconciled on startup
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            searcherManager.close();
+            writer.close(); // Commits
+        } catch (IOException e) {
+            logger.warn("Failed to close the search index: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @EventListener
+    public void onInvoicePersisted(InvoicePersistedEvent event) {
+        // Capture what is needed now, the temp invoice may be evicted before the job runs. Only the
+        // values are queued, a burst of persists must not keep their trees on the heap
+        InvoiceEntity entity = event.entity();
+        XdmNode xrContent = event.invoice().getXrContent();
+        Fields fields = null;
+        if (xrContent != null) {
+            try {
+                fields = fields(xrContent);
+            } catch (ParserException e) {
+                // Read again from the stored file
+                logger.warn("Failed to extract the search fields of invoice {}: {}", entity.getInvoiceId(), e.getMessage());
+            }
+        }
+        Fields extracted = fields;
+        submit("indexing invoice " + entity.getInvoiceId(), () -> index(entity, extracted));
+    }
+
+    @EventListener
+    public void onInvoicesDeleted(InvoicesDeletedEvent event) {
+        Term[] terms = event.invoices().stream()
+                .map(invoice -> new Term(INVOICE_ID, invoice.getInvoiceId().toString()))
+                .toArray(Term[]::new);
+        submit("removing " + terms.length + " deleted invoices from the search index", () -> {
+            try {
+                writer.deleteDocuments(terms);
+            } catch (IOException e) {
+                logger.warn("Failed to remove {} deleted invoices from the search index: {}", terms.length, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Invoices matching the query, best match first. Terms must all match, in any of the fields;
+     * quotes, wildcards and the other classic Lucene query syntax are supported. Exact identifiers
+     * rank highest.
+     *
+     * @throws IllegalArgumentException if the query cannot be parsed or the page is too deep
+     */
+    public Result search(String queryText, int page, int size) throws IOException {
+        if ((long) (page + 1) * size > MAX_RESULT_WINDOW) {
+            throw new IllegalArgumentException("Only the first " + MAX_RESULT_WINDOW + " results can be paged through, refine the query");
+        }
+        Query query = parse(queryText);
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            TopDocs topDocs = searcher.search(query, (page + 1) * size);
+            StoredFields storedFields = searcher.getIndexReader().storedFields();
+            List<Hit> hits = new ArrayList<>();
+            for (int i = page * size; i < topDocs.scoreDocs.length; i++) {
+                ScoreDoc scoreDoc = topDocs.scoreDocs[i];
+                String invoiceId = storedFields.document(scoreDoc.doc, Set.of(INVOICE_ID)).get(INVOICE_ID);
+                hits.add(new Hit(UUID.fromString(invoiceId), scoreDoc.score));
+            }
+            return new Result(topDocs.totalHits.value, !reconciling, hits);
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    private Query parse(String queryText) {
+        MultiFieldQueryParser parser = new MultiFieldQueryParser(
+                FIELD_BOOSTS.keySet().toArray(String[]::new), analyzer, FIELD_BOOSTS);
+        parser.setDefaultOperator(QueryParser.Operator.AND);
+        Query parsed;
+        try {
+            parsed = parser.parse(queryText);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid search query: " + e.getMessage(), e);
+        }
+        Query identifierKey = new BoostQuery(new TermQuery(new Term(IDENTIFIER_KEYS, identifierKey(queryText))),
+                IDENTIFIER_KEY_BOOST);
+        return new BooleanQuery.Builder()
+                .add(parsed, BooleanClause.Occur.SHOULD)
+                .add(identifierKey, BooleanClause.Occur.SHOULD)
+                .build();
+    }
+
+    // After shutdown the index is closed, what did not make it is reconciled on the next startup
+    private void submit(String task, Runnable runnable) {
+        try {
+            executor.submit(runnable);
+        } catch (RejectedExecutionException e) {
+            logger.info("Search index is shut down, skipped {}", task);
+        }
+    }
+
+    private void index(InvoiceEntity invoice, Fields fields) {
+        try {
+            writer.updateDocument(new Term(INVOICE_ID, invoice.getInvoiceId().toString()), document(invoice, fields));
+        } catch (IOException | ParserException | SaxonApiException | RuntimeException e) {
+            logger.warn("Failed to index invoice {}: {}", invoice.getInvoiceId(), e.getMessage());
+        }
+    }
+
+    private Document document(InvoiceEntity invoice, Fields fields) throws IOException, ParserException, SaxonApiException {
+        Document document = new Document();
+        document.add(new StringField(INVOICE_ID, invoice.getInvoiceId().toString(), Field.Store.YES));
+        // Key information is all there is of plain PDFs whose text cannot be extracted
+        addIdentifier(document, invoice.getInvoiceReference());
+        addText(document, PARTIES, invoice.getSellerName());
+
+        FileFormat fileFormat = FileFormat.valueOf(invoice.getFileFormat());
+        if (fileFormat == FileFormat.PDF) {
+            addText(document, CONTENT, extractPdfText(invoiceArchive.resolve(invoice.getOriginalFileSavePath())));
+            return document;
+        }
+
+        if (fields == null) {
+            fields = fields(parse(invoiceArchive.resolve(invoice.getOriginalFileSavePath()), fileFormat));
+        }
+        for (String identifier : fields.identifiers()) {
+            addIdentifier(document, identifier);
+        }
+        for (String party : fields.parties()) {
+            addText(document, PARTIES, party);
+        }
+        for (String item : fields.items()) {
+            addText(document, ITEMS, item);
+        }
+        addText(document, CONTENT, fields.content());
+        return document;
+    }
+
+    private static Fields fields(XdmNode xrContent) throws ParserException {
+        return new Fields(
+                XRechnungTransformer.extractStringValues(xrContent, IDENTIFIERS_XPATH),
+                XRechnungTransformer.extractStringValues(xrContent, PARTIES_XPATH),
+                XRechnungTransformer.extractStringValues(xrContent, ITEMS_XPATH),
+                String.join(" ", XRechnungTransformer.extractStringValues(xrContent, CONTENT_XPATH)));
+    }
+
+    private static void addIdentifier(Document document, String identifier) {
+        if (identifier == null || identifier.isBlank()) {
+            return;
+        }
+        document.add(new TextField(IDENTIFIERS, identifier, Field.Store.NO));
+        document.add(new StringField(IDENTIFIER_KEYS, identifierKey(identifier), Field.Store.NO));
+    }
+
+    private static void addText(Document document, String field, String text) {
+        if (text != null && !text.isBlank()) {
+            document.add(new TextField(field, text, Field.Store.NO));
+        }
+    }
+
+    private static String identifierKey(String identifier) {
+        return identifier.replaceAll("\\s+", "").toLowerCase(Locale.ROOT);
+    }
+
+    private XdmNode parse(Path originalFilePath, FileFormat fileFormat) throws IOException, ParserException, SaxonApiException {
+        XdmNode xmlContent;
+        try (ProcessingScheduler.Permit permit = processingScheduler.acquire(WorkloadClass.BULK)) {
+            xmlContent = XRechnungTransformer.parseXmlContent(originalFilePath, fileFormat);
+        }
+        try (ProcessingScheduler.Permit permit = processingScheduler.acquire(WorkloadClass.BULK)) {
+            return XRechnungTransformer.transformToXR(xmlContent, FormatDetector.detectXmlFormat(xmlContent));
+        }
+    }
+
+    private String extractPdfText(Path pdfPath) throws IOException {
+        try (ProcessingScheduler.Permit permit = processingScheduler.acquire(WorkloadClass.BULK);
+                PDDocument document = Loader.loadPDF(pdfPath.toFile())) {
+            PDFTextStripper stripper = new PDFTextStripper();
+            stripper.setEndPage(MAX_PDF_PAGES);
+            return stripper.getText(document);
+        }
+    }
+
+    private Set<UUID> indexedInvoiceIds() throws IOException {
+        Set<UUID> invoiceIds = new HashSet<>();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            StoredFields storedFields = reader.storedFields();
+            Bits liveDocs = MultiBits.getLiveDocs(reader);
+            for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                if (liveDocs == null || liveDocs.get(doc)) {
+                    invoiceIds.add(UUID.fromString(storedFields.document(doc, Set.of(INVOICE_ID)).get(INVOICE_ID)));
+                }
+            }
+        } finally {
+            searcherManager.release(searcher);
+        }
+        return invoiceIds;
+    }
+
+    // One batch per task, so persists and deletes in between are not held up by a long rebuild
+    private void reconcile(Set<UUID> indexed, UUID afterInvoiceId, int added) {
+        List<InvoiceEntity> batch;
+        try {
+            batch = invoiceDao.findAfter(afterInvoiceId, RECONCILE_BATCH_SIZE);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to reconcile the search index: {}", e.getMessage());
+            reconciling = false;
+            return;
+        }
+
+        int indexedInBatch = 0;
+        for (InvoiceEntity invoice : batch) {
+            // Invoices persisted since the start are not in the set and indexed once more, harmless
+            if (!indexed.remove(invoice.getInvoiceId())) {
+                index(invoice, null);
+                indexedInBatch++;
+            }
+        }
+        if (batch.size() == RECONCILE_BATCH_SIZE) {
+            UUID last = batch.get(batch.size() - 1).getInvoiceId();
+            int total = added + indexedInBatch;
+            submit("reconciling the search index", () -> reconcile(indexed, last, total));
+            return;
+        }
+
+        // Whatever is left was deleted while the index was not committed
+        try {
+            writer.deleteDocuments(indexed.stream().map(id -> new Term(INVOICE_ID, id.toString())).toArray(Term[]::new));
+        } catch (IOException e) {
+            logger.warn("Failed to remove deleted invoices from the search index: {}", e.getMessage());
+        }
+        commit();
+        refresh();
+        reconciling = false;
+        if (added + indexedInBatch > 0 || !indexed.isEmpty()) {
+            logger.info("Reconciled the search index, indexed {} and removed {} invoices", added + indexedInBatch, indexed.size());
+        }
+    }
+
+    private void refresh() {
+        try {
+            searcherManager.maybeRefresh();
+        } catch (IOException e) {
+            logger.warn("Failed to refresh the search index: {}", e.getMessage());
+        }
+    }
+
+    private void commit() {
+        try {
+            if (writer.hasUncommittedChanges()) {
+                writer.commit();
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to commit the search index: {}", e.getMessage());
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package com.invinciboll;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
+import java.util.Locale;
 
 public record KeyInformation(
     String invoiceReference,
@@ -10,6 +14,53 @@ public record KeyInformation(
     LocalDate issuedDate,
     BigDecimal totalSum
 ) {
+    // Fixed independently of the file hash, stored fingerprints stay comparable if that one changes
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+
+    /**
+     * True if every field was found, i.e. none is empty or one of the placeholders used by
+     * XRechnungTransformer.extractKeyInformation and the sanitizers for missing values.
+     */
+    public boolean isComplete() {
+        return invoiceReference != null && !invoiceReference.equals("_na_ref_")
+            && sellerName != null && !sellerName.equals("_")
+            && invoiceTypeCode != null && invoiceTypeCode != Integer.MIN_VALUE
+            && issuedDate != null && !issuedDate.equals(LocalDate.MIN)
+            && totalSum != null && totalSum.compareTo(BigDecimal.valueOf(-1)) != 0;
+    }
+
+    /**
+     * Hash over seller, reference, issue date and total, equal for the same invoice in different
+     * formats or exported again by the seller. Null if one of these fields is missing.
+     */
+    public String semanticFingerprint() {
+        return semanticFingerprint(sellerName, invoiceReference, issuedDate, totalSum);
+    }
+
+    public static String semanticFingerprint(String sellerName, String invoiceReference, LocalDate issuedDate, BigDecimal totalSum) {
+        if (sellerName == null || sellerName.equals("_")
+                || invoiceReference == null || invoiceReference.equals("_na_ref_")
+                || issuedDate == null || issuedDate.equals(LocalDate.MIN)
+                || totalSum == null || totalSum.compareTo(BigDecimal.valueOf(-1)) == 0) {
+            return null;
+        }
+
+        // Case and whitespace differ between formats and exports, so do trailing zeros of the total
+        String normalized = String.join("\n",
+                sellerName.strip().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT),
+                invoiceReference.replaceAll("\\s+", "").toUpperCase(Locale.ROOT),
+                issuedDate.toString(),
+                totalSum.stripTrailingZeros().toPlainString());
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // should never happen
+            throw new RuntimeException("Algorithm " + FINGERPRINT_ALGORITHM + " not found: " + e.getMessage());
+        }
+        return FormatDetector.toHexString(md.digest(normalized.getBytes(StandardCharsets.UTF_8)));
+    }
+
     @Override
     public String toString() {
         return """
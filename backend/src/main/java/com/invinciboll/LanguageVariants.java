@@ -0,0 +1,288 @@
+package com.invinciboll;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.apache.fop.apps.FOPException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.entities.TempInvoice;
+import com.invinciboll.enums.FileFormat;
+import com.invinciboll.enums.WorkloadClass;
+import com.invinciboll.events.InvoicePersistedEvent;
+import com.invinciboll.events.InvoicesDeletedEvent;
+import com.invinciboll.exceptions.ParserException;
+import com.invinciboll.exceptions.TransformationException;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * PDFs of e-invoices in another language than the stored one, rendered on request and kept in an
+ * on-disk cache keyed by file hash and language. The XR trees of recently persisted or rendered
+ * invoices are kept in memory and pending invoices still hold theirs, so switching the language
+ * only runs the FO transformation and FOP, the source is not parsed again.
+ *
+ * <p>Variant files are named after the stylesheet version, variants of an older version are never
+ * served and deleted on startup. The cache is bounded by size, least recently read variants are
+ * evicted first.
+ */
+@Service
+public class LanguageVariants {
+    private static final Logger logger = LoggerFactory.getLogger(LanguageVariants.class);
+
+    // Variants are named "<fileHash>_<language>_<version>.pdf", the version shortened to this length
+    private static final int VERSION_LENGTH = 16;
+
+    private final AppConfig appConfig;
+    private final InvoiceArchive invoiceArchive;
+    private final ProcessingScheduler processingScheduler;
+    private final InvoiceDao invoiceDao;
+    private final Path variantsPath;
+    private final Cache<String, XdmNode> xrTrees;
+
+    @FunctionalInterface
+    private interface XrSource {
+        XdmNode load() throws IOException, ParserException, SaxonApiException;
+    }
+
+    public LanguageVariants(AppConfig appConfig, InvoiceArchive invoiceArchive, ProcessingScheduler processingScheduler,
+            InvoiceDao invoiceDao) {
+        this.appConfig = appConfig;
+        this.invoiceArchive = invoiceArchive;
+        this.processingScheduler = processingScheduler;
+        this.invoiceDao = invoiceDao;
+        this.variantsPath = Paths.get(System.getProperty("user.dir")).resolve(appConfig.getVariantsDir());
+        this.xrTrees = Caffeine.newBuilder()
+                .maximumSize(appConfig.getVariantsXrCacheSize())
+                .build();
+        try {
+            Files.createDirectories(variantsPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Error creating variants directory: " + e.getMessage(), e);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void deleteOutdated() {
+        String suffix;
+        try {
+            suffix = "_" + versionTag() + ".pdf";
+        } catch (IOException e) {
+            logger.warn("Failed to determine the stylesheet version, keeping all language variants: {}", e.getMessage());
+            return;
+        }
+        try (Stream<Path> files = Files.list(variantsPath)) {
+            for (Path file : files.filter(file -> !file.getFileName().toString().endsWith(suffix)).toList()) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to delete outdated language variants: {}", e.getMessage());
+        }
+    }
+
+    @EventListener
+    public void onInvoicePersisted(InvoicePersistedEvent event) {
+        TempInvoice invoice = event.invoice();
+        String fileHash = event.entity().getFileHash();
+        if (invoice.getFileFormat() == FileFormat.PDF) {
+            return;
+        }
+        if (invoice.getXrContent() != null) {
+            xrTrees.put(fileHash, invoice.getXrContent());
+        }
+
+        // The previewed PDF is the variant in the language of the upload, no need to render it again
+        Path previewed = invoice.getTempGeneratedFilePath();
+        if (invoice.getLanguage().equals(XRechnungTransformer.getDefaultLanguage()) || previewed == null || !Files.exists(previewed)) {
+            return;
+        }
+        try {
+            Path variant = variantPath(fileHash, invoice.getLanguage());
+            Path tempVariant = Files.createTempFile(variantsPath, fileHash, ".tmp");
+            try {
+                Files.copy(previewed, tempVariant, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tempVariant, variant, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempVariant);
+            }
+            enforceSizeLimit();
+        } catch (IOException e) {
+            logger.debug("Could not keep the previewed PDF of invoice {} as variant: {}", event.entity().getInvoiceId(), e.getMessage());
+        }
+    }
+
+    @EventListener
+    public void onInvoicesDeleted(InvoicesDeletedEvent event) {
+        Set<String> fileHashes = new HashSet<>();
+        for (InvoiceEntity invoice : event.invoices()) {
+            if (invoice.getFileHash() != null) {
+                fileHashes.add(invoice.getFileHash());
+            }
+        }
+        // Variants are shared by invoices of the same file, keep those still stored
+        fileHashes.removeAll(invoiceDao.findExistingFileHashes(fileHashes));
+        if (fileHashes.isEmpty()) {
+            return;
+        }
+        xrTrees.invalidateAll(fileHashes);
+        try (Stream<Path> files = Files.list(variantsPath)) {
+            for (Path file : files.toList()) {
+                String fileName = file.getFileName().toString();
+                int separator = fileName.indexOf('_');
+                if (separator > 0 && fileHashes.contains(fileName.substring(0, separator))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to delete language variants of deleted invoices: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * The PDF of a pending invoice in the given language. Plain PDFs are returned as they are.
+     */
+    public Path getVariant(TempInvoice invoice, String language) throws IOException, ParserException, TransformationException {
+        if (invoice.getFileFormat() == FileFormat.PDF) {
+            return invoice.getTempOriginalFilePath();
+        }
+        if (language.equals(invoice.getLanguage()) && invoice.getTempGeneratedFilePath() != null) {
+            return invoice.getTempGeneratedFilePath();
+        }
+        return render(invoice.getFileHash(), language, () -> invoice.getXrContent() != null
+                ? invoice.getXrContent()
+                : parse(invoice.getTempOriginalFilePath(), invoice.getFileFormat()));
+    }
+
+    /**
+     * The PDF of a stored invoice in the given language, the stored one if it is up to date and in
+     * that language. Plain PDFs are returned as they are.
+     */
+    public Path getVariant(InvoiceEntity invoice, String language) throws IOException, ParserException, TransformationException {
+        FileFormat fileFormat = FileFormat.valueOf(invoice.getFileFormat());
+        if (fileFormat == FileFormat.PDF) {
+            return invoiceArchive.resolve(invoice.getGeneratedFileSavePath());
+        }
+        // Only the stylesheet version tells the language of the stored PDF
+        if (language.equals(XRechnungTransformer.getDefaultLanguage())
+                && XRechnungTransformer.getStylesheetVersion().equals(invoice.getStylesheetVersion())) {
+            return invoiceArchive.resolve(invoice.getGeneratedFileSavePath());
+        }
+        return render(invoice.getFileHash(), language,
+                () -> parse(invoiceArchive.resolve(invoice.getOriginalFileSavePath()), fileFormat));
+    }
+
+    private Path render(String fileHash, String language, XrSource xrSource) throws IOException, ParserException, TransformationException {
+        Path variant = variantPath(fileHash, language);
+        if (Files.exists(variant)) {
+            try {
+                // The modification time doubles as last access time for the LRU eviction
+                Files.setLastModifiedTime(variant, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                logger.debug("Could not touch language variant {}: {}", variant, e.getMessage());
+            }
+            return variant;
+        }
+
+        // Concurrent requests for the same variant render it twice, the last one replaces the first
+        Path tempVariant = Files.createTempFile(variantsPath, fileHash, ".tmp");
+        try {
+            XdmNode xrContent = xrTrees.getIfPresent(fileHash);
+            if (xrContent == null) {
+                xrContent = xrSource.load();
+                xrTrees.put(fileHash, xrContent);
+            }
+            try (ProcessingScheduler.Permit permit = processingScheduler.acquire(WorkloadClass.INTERACTIVE)) {
+                XdmNode foContent = XRechnungTransformer.transformToFO(xrContent, language);
+                XRechnungTransformer.renderPDF(foContent, tempVariant.toString());
+            }
+            Files.move(tempVariant, variant, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (SaxonApiException | FOPException e) {
+            throw new TransformationException("Error rendering the " + language + " variant: " + e.getMessage(), e);
+        } finally {
+            Files.deleteIfExists(tempVariant);
+        }
+
+        enforceSizeLimit();
+        return variant;
+    }
+
+    private XdmNode parse(Path originalFilePath, FileFormat fileFormat) throws IOException, ParserException, SaxonApiException {
+        XdmNode xmlContent;
+        try (ProcessingScheduler.Permit permit = processingScheduler.acquire(WorkloadClass.INTERACTIVE)) {
+            xmlContent = XRechnungTransformer.parseXmlContent(originalFilePath, fileFormat);
+        }
+        try (ProcessingScheduler.Permit permit = processingScheduler.acquire(WorkloadClass.INTERACTIVE)) {
+            return XRechnungTransformer.transformToXR(xmlContent, FormatDetector.detectXmlFormat(xmlContent));
+        }
+    }
+
+    private Path variantPath(String fileHash, String language) throws IOException {
+        return variantsPath.resolve(fileHash + "_" + language + "_" + versionTag() + ".pdf");
+    }
+
+    private static String versionTag() throws IOException {
+        return XRechnungTransformer.getStylesheetVersion().substring(0, VERSION_LENGTH);
+    }
+
+    private void enforceSizeLimit() {
+        List<Path> variants;
+        try (Stream<Path> files = Files.list(variantsPath)) {
+            variants = files
+                .filter(file -> file.getFileName().toString().endsWith(".pdf"))
+                .sorted(Comparator.comparingLong(LanguageVariants::lastModified))
+                .toList();
+        } catch (IOException e) {
+            logger.warn("Failed to list variants directory: {}", e.getMessage());
+            return;
+        }
+
+        long totalBytes = variants.stream().mapToLong(LanguageVariants::size).sum();
+        for (Path variant : variants) {
+            if (totalBytes <= appConfig.getVariantsMaxCacheBytes()) {
+                break;
+            }
+            long size = size(variant);
+            try {
+                Files.deleteIfExists(variant);
+                totalBytes -= size;
+            } catch (IOException e) {
+                logger.warn("Failed to evict language variant {}: {}", variant, e.getMessage());
+            }
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.invinciboll;
+
+import java.awt.Dimension;
+
+import org.apache.fop.render.intermediate.IFDocumentHandler;
+import org.apache.fop.render.intermediate.IFDocumentHandlerProxy;
+import org.apache.fop.render.intermediate.IFException;
+
+import com.invinciboll.exceptions.ResourceLimitExceededException;
+
+/**
+ * Aborts FOP rendering once a document exceeds the page limit or its stage deadline, or the
+ * rendering thread is interrupted. FOP checks in with every page, so even a layout loop over an
+ * endless page sequence is stopped.
+ */
+public class PageLimitingDocumentHandler extends IFDocumentHandlerProxy {
+
+    private final ResourceGuard.Limits limits;
+    private final String stage;
+    private final long deadline;
+    private int pages;
+
+    public PageLimitingDocumentHandler(IFDocumentHandler delegate, ResourceGuard.Limits limits, String stage) {
+        super(delegate);
+        this.limits = limits;
+        this.stage = stage;
+        this.deadline = limits.deadline();
+    }
+
+    @Override
+    public void startPage(int index, String name, String pageMasterName, Dimension size) throws IFException {
+        pages++;
+        if (pages > limits.maxFoPages()) {
+            throw new IFException("Rendering aborted", new ResourceLimitExceededException(
+                    "Resource limit exceeded in " + stage + ": document exceeds " + limits.maxFoPages() + " pages"));
+        }
+        if (System.nanoTime() - deadline > 0) {
+            throw new IFException("Rendering aborted", new ResourceLimitExceededException(
+                    "Resource limit exceeded in " + stage + ": stage took longer than " + limits.stageTimeout().toSeconds() + "s"));
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new IFException("Rendering aborted", new ResourceLimitExceededException(
+                    "Resource limit exceeded in " + stage + ": stage was interrupted"));
+        }
+        super.startPage(index, name, pageMasterName, size);
+    }
+}
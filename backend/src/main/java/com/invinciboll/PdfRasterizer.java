@@ -0,0 +1,30 @@
+package com.invinciboll;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+public class PdfRasterizer {
+    public static void renderFirstPage(Path pdfPath, Path outputPNGPath, float dpi) throws IOException {
+        try (PDDocument document = Loader.loadPDF(pdfPath.toFile())) {
+            if (document.getNumberOfPages() == 0) {
+                throw new IOException("PDF has no pages: " + pdfPath);
+            }
+
+            PDFRenderer renderer = new PDFRenderer(document);
+            BufferedImage image = renderer.renderImageWithDPI(0, dpi, ImageType.RGB);
+            if (!ImageIO.write(image, "png", outputPNGPath.toFile())) {
+                throw new IOException("No PNG writer available");
+            }
+        } catch (IOException e) {
+            throw new IOException("Failed to rasterize PDF '" + pdfPath + "'. " + e.getMessage(), e);
+        }
+    }
+}
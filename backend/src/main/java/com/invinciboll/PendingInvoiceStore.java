@@ -0,0 +1,18 @@
+package com.invinciboll;
+
+import java.util.UUID;
+
+import com.invinciboll.entities.TempInvoice;
+
+/**
+ * Holds processed invoices between upload and persist/print.
+ */
+public interface PendingInvoiceStore {
+    void put(TempInvoice invoice);
+
+    // Returns null if the invoice is unknown or expired
+    TempInvoice get(UUID invoiceId);
+
+    // Removes the invoice and deletes its temp files
+    void remove(UUID invoiceId);
+}
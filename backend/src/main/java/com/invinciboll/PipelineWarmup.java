@@ -0,0 +1,109 @@
+package com.invinciboll;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.entities.TempInvoice;
+
+/**
+ * Pushes a bundled sample invoice through the whole processing pipeline on startup: stylesheet
+ * compilation, parsing, both transformations, FOP with its fonts, PDF rasterizing and the XPath
+ * extraction. Application runners complete before Spring reports the application ready, so the
+ * readiness probe only reports up once the first real upload no longer pays for class loading and
+ * initialization. A failed warm-up is logged, it does not keep the application from starting.
+ */
+@Component
+public class PipelineWarmup implements ApplicationRunner {
+    private static final Logger logger = LoggerFactory.getLogger(PipelineWarmup.class);
+
+    private static final String SAMPLE_INVOICE = "warmup/sample-invoice.xml";
+
+    private final AppConfig appConfig;
+    private final ConfigurableApplicationContext context;
+
+    private volatile long readyAfterMillis = -1;
+    private final List<Long> iterationMillis = new CopyOnWriteArrayList<>();
+    private volatile String error;
+
+    public PipelineWarmup(AppConfig appConfig, ConfigurableApplicationContext context) {
+        this.appConfig = appConfig;
+        this.context = context;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (appConfig.isWarmupEnabled()) {
+            long started = System.nanoTime();
+            try {
+                XRechnungTransformer.precompileStylesheets();
+                for (int i = 0; i < appConfig.getWarmupIterations(); i++) {
+                    long iterationStarted = System.nanoTime();
+                    runSample();
+                    iterationMillis.add((System.nanoTime() - iterationStarted) / 1_000_000);
+                }
+            } catch (Exception e) {
+                error = e.getMessage();
+                logger.warn("Pipeline warm-up failed, the first uploads will be slow: {}", e.getMessage());
+            }
+            logger.info("Pipeline warm-up took {} ms, iterations {} ms", (System.nanoTime() - started) / 1_000_000, iterationMillis);
+        }
+
+        readyAfterMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        logger.info("Ready for fast requests {} ms after JVM start", readyAfterMillis);
+
+        if (appConfig.isWarmupExitAfter()) {
+            // Training run of the AppCDS build, the class list is dumped on exit
+            System.exit(SpringApplication.exit(context, () -> 0));
+        }
+    }
+
+    private void runSample() throws Exception {
+        TempInvoice invoice = new TempInvoice(appConfig);
+        Path scratchDir = Files.createTempDirectory(Files.createDirectories(appConfig.getRenderScratchPath()), "warmup");
+        try {
+            try (InputStream in = new ClassPathResource(SAMPLE_INVOICE).getInputStream()) {
+                invoice.setFile(in, "warmup-invoice.xml", appConfig.getUploadMaxFileSize().toBytes());
+            }
+            invoice.process();
+
+            XRechnungTransformer.extractLineItems(invoice.getXrContent(), invoice.getInvoiceId(), invoice.getKeyInformation().issuedDate());
+            XRechnungTransformer.extractVatBreakdown(invoice.getXrContent(), invoice.getInvoiceId(), invoice.getKeyInformation().issuedDate());
+            // Thumbnails of e-invoices and of plain PDFs
+            XRechnungTransformer.renderPNG(invoice.getFoContent(), scratchDir.resolve("fo.png"), appConfig.getThumbnailsDpi());
+            PdfRasterizer.renderFirstPage(invoice.getTempGeneratedFilePath(), scratchDir.resolve("pdf.png"), appConfig.getThumbnailsDpi());
+        } finally {
+            invoice.deleteTempFiles();
+            FileUtils.deleteQuietly(scratchDir.toFile());
+        }
+    }
+
+    /**
+     * Warm-up timings and the time from JVM start until the application was ready for fast
+     * requests, -1 while still starting.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", appConfig.isWarmupEnabled());
+        statistics.put("iterationMillis", iterationMillis);
+        statistics.put("readyAfterMillis", readyAfterMillis);
+        statistics.put("error", error);
+        return statistics;
+    }
+}
@@ -0,0 +1,199 @@
+package com.invinciboll;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.stereotype.Component;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.enums.WorkloadClass;
+
+/**
+ * Shares the CPU heavy processing stages (XSLT, FOP, ZUGFeRD extraction) between workload classes.
+ * A stage runs on the caller's thread once it got a slot. Free slots go to the waiting class with
+ * the lowest virtual time, which advances by 1/weight per slot, so backlogged classes share the
+ * slots by weight. Per class concurrency limits keep bulk work from occupying every slot.
+ */
+@Component
+public class ProcessingScheduler {
+
+    private final int capacity;
+    private final Map<WorkloadClass, ClassState> states = new EnumMap<>(WorkloadClass.class);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int running;
+    private double virtualTime;
+
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static class Waiter {
+        boolean granted;
+    }
+
+    private static class ClassState {
+        final WorkloadClass workloadClass;
+        final int maxConcurrency;
+        final double weight;
+        final Deque<Waiter> waiters = new ArrayDeque<>();
+        int running;
+        double pass;
+
+        long granted;
+        long totalWaitNanos;
+        long maxWaitNanos;
+
+        ClassState(WorkloadClass workloadClass, int maxConcurrency, double weight) {
+            this.workloadClass = workloadClass;
+            this.maxConcurrency = maxConcurrency;
+            this.weight = weight;
+        }
+    }
+
+    public ProcessingScheduler(AppConfig appConfig) {
+        this.capacity = appConfig.getSchedulerThreads() > 0
+                ? appConfig.getSchedulerThreads()
+                : Runtime.getRuntime().availableProcessors();
+
+        int interactiveLimit = appConfig.getSchedulerInteractiveMaxConcurrency() > 0
+                ? appConfig.getSchedulerInteractiveMaxConcurrency()
+                : capacity;
+        // By default one slot is always left for interactive work
+        int bulkLimit = appConfig.getSchedulerBulkMaxConcurrency() > 0
+                ? appConfig.getSchedulerBulkMaxConcurrency()
+                : Math.max(1, capacity - 1);
+
+        states.put(WorkloadClass.INTERACTIVE, new ClassState(WorkloadClass.INTERACTIVE, interactiveLimit,
+                appConfig.getSchedulerInteractiveWeight()));
+        states.put(WorkloadClass.BULK, new ClassState(WorkloadClass.BULK, bulkLimit,
+                appConfig.getSchedulerBulkWeight()));
+    }
+
+    /**
+     * Blocks until a slot for the given class is free. The slot is given back by closing the permit.
+     */
+    public Permit acquire(WorkloadClass workloadClass) {
+        ClassState state = states.get(workloadClass);
+        Waiter waiter = new Waiter();
+        long enqueued = System.nanoTime();
+
+        lock.lock();
+        try {
+            if (state.waiters.isEmpty() && state.running == 0) {
+                // Idle classes do not build up credit
+                state.pass = Math.max(state.pass, virtualTime);
+            }
+            state.waiters.addLast(waiter);
+            dispatch();
+
+            while (!waiter.granted) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    if (waiter.granted) {
+                        release(state);
+                    } else {
+                        state.waiters.remove(waiter);
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Interrupted while waiting for a processing slot");
+                }
+            }
+
+            long waitNanos = System.nanoTime() - enqueued;
+            state.granted++;
+            state.totalWaitNanos += waitNanos;
+            state.maxWaitNanos = Math.max(state.maxWaitNanos, waitNanos);
+        } finally {
+            lock.unlock();
+        }
+
+        return new Permit() {
+            private boolean closed;
+
+            @Override
+            public void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                lock.lock();
+                try {
+                    release(state);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+    }
+
+    /**
+     * Queue wait times and current load per workload class.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            statistics.put("capacity", capacity);
+            statistics.put("running", running);
+            for (ClassState state : states.values()) {
+                Map<String, Object> classStatistics = new LinkedHashMap<>();
+                classStatistics.put("maxConcurrency", state.maxConcurrency);
+                classStatistics.put("weight", state.weight);
+                classStatistics.put("running", state.running);
+                classStatistics.put("waiting", state.waiters.size());
+                classStatistics.put("granted", state.granted);
+                classStatistics.put("avgWaitMillis", state.granted > 0
+                        ? TimeUnit.NANOSECONDS.toMillis(state.totalWaitNanos / state.granted) : 0);
+                classStatistics.put("maxWaitMillis", TimeUnit.NANOSECONDS.toMillis(state.maxWaitNanos));
+                statistics.put(state.workloadClass.name(), classStatistics);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return statistics;
+    }
+
+    // Must hold the lock
+    private void release(ClassState state) {
+        state.running--;
+        running--;
+        dispatch();
+    }
+
+    // Must hold the lock
+    private void dispatch() {
+        boolean grantedAny = false;
+        while (running < capacity) {
+            ClassState next = null;
+            for (ClassState state : states.values()) {
+                if (!state.waiters.isEmpty() && state.running < state.maxConcurrency
+                        && (next == null || state.pass < next.pass)) {
+                    next = state;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+
+            next.waiters.removeFirst().granted = true;
+            next.running++;
+            running++;
+            virtualTime = next.pass;
+            next.pass += 1.0 / next.weight;
+            grantedAny = true;
+        }
+        if (grantedAny) {
+            changed.signalAll();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.invinciboll;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.database.ReprocessCheckpointDao;
+import com.invinciboll.database.ReprocessCheckpointDao.Checkpoint;
+import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.enums.FileFormat;
+import com.invinciboll.enums.WorkloadClass;
+import com.invinciboll.enums.XMLFormat;
+
+import jakarta.annotation.PreDestroy;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Re-renders the generated PDFs and re-extracts the key information and line items of stored
+ * e-invoices that were processed with an older stylesheet version, e.g. after upgrading the XSLTs
+ * or extracting more fields. Invoices are walked in id order in batches, processed in parallel as bulk work of the processing scheduler,
+ * and the position after each batch is checkpointed. New PDFs are rendered next to the old ones
+ * and swapped in with an atomic move, so readers never see a partially written file.
+ */
+@Component
+public class ReprocessingJob {
+    private static final Logger logger = LoggerFactory.getLogger(ReprocessingJob.class);
+
+    private final AppConfig appConfig;
+    private final InvoiceDao invoiceDao;
+    private final ReprocessCheckpointDao checkpointDao;
+    private final ProcessingScheduler processingScheduler;
+    private final ThumbnailService thumbnailService;
+    private final InvoiceArchive invoiceArchive;
+    private final DuplicateIndex duplicateIndex;
+
+    private Thread coordinator;
+    private volatile boolean cancelled;
+    private volatile String currentVersion;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public ReprocessingJob(AppConfig appConfig, InvoiceDao invoiceDao, ReprocessCheckpointDao checkpointDao,
+            ProcessingScheduler processingScheduler, ThumbnailService thumbnailService, InvoiceArchive invoiceArchive,
+            DuplicateIndex duplicateIndex) {
+        this.appConfig = appConfig;
+        this.invoiceDao = invoiceDao;
+        this.checkpointDao = checkpointDao;
+        this.processingScheduler = processingScheduler;
+        this.thumbnailService = thumbnailService;
+        this.invoiceArchive = invoiceArchive;
+        this.duplicateIndex = duplicateIndex;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startOnStartup() {
+        if (appConfig.isReprocessOnStartup()) {
+            start(false);
+        }
+    }
+
+    /**
+     * Starts the job in the background unless it is already running. With restart the checkpoint
+     * is dropped, so invoices that failed in an earlier run are tried again.
+     */
+    public synchronized boolean start(boolean restart) {
+        if (isRunning()) {
+            return false;
+        }
+        cancelled = false;
+        coordinator = new Thread(() -> run(restart), "reprocess-coordinator");
+        coordinator.setDaemon(true);
+        coordinator.start();
+        return true;
+    }
+
+    @PreDestroy
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isRunning() {
+        return coordinator != null && coordinator.isAlive();
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", isRunning());
+        status.put("stylesheetVersion", currentVersion);
+        status.put("startedAt", startedAt);
+        status.put("finishedAt", finishedAt);
+        status.put("processed", processed.get());
+        status.put("failed", failed.get());
+        return status;
+    }
+
+    private void run(boolean restart) {
+        String version;
+        try {
+            version = XRechnungTransformer.getStylesheetVersion();
+        } catch (IOException e) {
+            logger.warn("Not reprocessing, failed to read the stylesheets: {}", e.getMessage());
+            return;
+        }
+
+        currentVersion = version;
+        startedAt = Instant.now();
+        finishedAt = null;
+
+        if (restart) {
+            checkpointDao.delete(version);
+        }
+        Checkpoint checkpoint = checkpointDao.find(version);
+        UUID lastInvoiceId = checkpoint != null ? checkpoint.lastInvoiceId() : null;
+        processed.set(checkpoint != null ? checkpoint.processed() : 0);
+        failed.set(checkpoint != null ? checkpoint.failed() : 0);
+        logger.info("Reprocessing invoices for stylesheet version {}, starting after {}", version, lastInvoiceId);
+
+        int threads = Math.max(1, appConfig.getReprocessThreads());
+        ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "reprocess-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            while (!cancelled) {
+                List<InvoiceEntity> batch = invoiceDao.findByStylesheetVersionNot(version, lastInvoiceId,
+                        appConfig.getReprocessBatchSize());
+                if (batch.isEmpty()) {
+                    checkpointDao.save(new Checkpoint(version, lastInvoiceId, processed.get(), failed.get(), true, Instant.now()));
+                    logger.info("Reprocessing done, {} invoices processed, {} failed", processed.get(), failed.get());
+                    break;
+                }
+
+                List<Future<?>> futures = new ArrayList<>();
+                for (InvoiceEntity invoice : batch) {
+                    futures.add(workers.submit(() -> reprocessSafely(invoice, version)));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+
+                // The whole batch is done, so everything up to its last id can be skipped after a restart
+                lastInvoiceId = batch.get(batch.size() - 1).getInvoiceId();
+                checkpointDao.save(new Checkpoint(version, lastInvoiceId, processed.get(), failed.get(), false, Instant.now()));
+
+                Thread.sleep(appConfig.getReprocessBatchPause().toMillis());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("Reprocessing stopped: {}", e.getMessage());
+        } finally {
+            workers.shutdownNow();
+            finishedAt = Instant.now();
+        }
+    }
+
+    private void reprocessSafely(InvoiceEntity invoice, String version) {
+        try {
+            reprocess(invoice, version);
+            processed.incrementAndGet();
+        } catch (Exception e) {
+            // Stays on the old version and is picked up again by the next run with restart
+            failed.incrementAndGet();
+            logger.warn("Failed to reprocess invoice {}: {}", invoice.getInvoiceId(), e.getMessage());
+        }
+    }
+
+    private void reprocess(InvoiceEntity invoice, String version) throws Exception {
+        FileFormat fileFormat = FileFormat.valueOf(invoice.getFileFormat());
+        // Archived originals are read from the archive cache, a new PDF of an archived invoice is
+        // written to its year directory and taken into the archive again by the next archiving run
+        Path originalFilePath = invoiceArchive.resolve(invoice.getOriginalFileSavePath());
+        Path generatedFilePath = invoiceArchive.toLoosePath(invoice.getGeneratedFileSavePath());
+        Files.createDirectories(generatedFilePath.getParent());
+
+        XdmNode xmlContent;
+        XMLFormat xmlFormat;
+        try (ProcessingScheduler.Permit permit = processingScheduler.acquire(WorkloadClass.BULK)) {
+            xmlContent = XRechnungTransformer.parseXmlContent(originalFilePath, fileFormat);
+            xmlFormat = FormatDetector.detectXmlFormat(xmlContent);
+        }
+
+        XdmNode xrContent;
+        XdmNode foContent;
+        try (ProcessingScheduler.Permit permit = processingScheduler.acquire(WorkloadClass.BULK)) {
+            xrContent = XRechnungTransformer.transformToXR(xmlContent, xmlFormat);
+            foContent = XRechnungTransformer.transformToFO(xrContent);
+        }
+
+        Path renderedFilePath = generatedFilePath.resolveSibling(generatedFilePath.getFileName() + InvoiceArchive.REPROCESS_SUFFIX);
+        try {
+            try (ProcessingScheduler.Permit permit = processingScheduler.acquire(WorkloadClass.BULK)) {
+                XRechnungTransformer.renderPDF(foContent, renderedFilePath.toString());
+            }
+
+            // Keep the stored values (possibly corrected by hand) unless the new extraction found everything.
+            // The file paths stay as they are, they only serve as storage location.
+            KeyInformation keyInformation = XRechnungTransformer.extractKeyInformation(xrContent);
+            if (keyInformation.isComplete()) {
+                invoice.setSellerName(keyInformation.sellerName());
+                invoice.setInvoiceReference(keyInformation.invoiceReference());
+                invoice.setInvoiceTypeCode(keyInformation.invoiceTypeCode());
+                invoice.setIssuedDate(keyInformation.issuedDate());
+                invoice.setTotalSum(keyInformation.totalSum());
+            }
+            invoice.setXmlFormat(xmlFormat.toString());
+            invoice.setStylesheetVersion(version);
+
+            // The year may have been archived since the batch was read, so take the current paths
+            invoiceArchive.getLock().lock();
+            try {
+                InvoiceEntity current = invoiceDao.findById(invoice.getInvoiceId());
+                if (current == null) {
+                    // Deleted while rendering, its files are already queued for removal
+                    return;
+                }
+                generatedFilePath = invoiceArchive.toLoosePath(current.getGeneratedFileSavePath());
+                Files.createDirectories(generatedFilePath.getParent());
+                Files.move(renderedFilePath, generatedFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                invoice.setOriginalFileSavePath(current.getOriginalFileSavePath());
+                invoice.setGeneratedFileSavePath(generatedFilePath.toString());
+                invoiceDao.update(invoice);
+                duplicateIndex.add(invoice.getSemanticFingerprint());
+            } finally {
+                invoiceArchive.getLock().unlock();
+            }
+        } finally {
+            Files.deleteIfExists(renderedFilePath);
+        }
+        invoiceDao.saveLineItems(invoice.getInvoiceId(),
+                XRechnungTransformer.extractLineItems(xrContent, invoice.getInvoiceId(), invoice.getIssuedDate()),
+                XRechnungTransformer.extractVatBreakdown(xrContent, invoice.getInvoiceId(), invoice.getIssuedDate()));
+
+        thumbnailService.refresh(invoice, foContent);
+    }
+}
@@ -0,0 +1,160 @@
+package com.invinciboll;
+
+import java.time.Duration;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.exceptions.ResourceLimitExceededException;
+
+/**
+ * Enforces the per-document limits of a pipeline stage on a SAX stream: element depth, node
+ * count, text node length and a wall-clock deadline. Used as filter in front of the XML parsers
+ * and between XSLT output and tree building, so a pathological document aborts its stage with a
+ * ResourceLimitExceededException instead of occupying a processing thread and the heap.
+ * Cancellation is cooperative: the deadline and the interrupt flag are only checked when events
+ * pass the guard. Saxon and FOP cannot be stopped safely from outside, so a stylesheet that loops
+ * without producing output is not stopped by the stage timeout; it keeps its processing slot until
+ * it ends. Only the configured stylesheets are run, a document cannot bring its own.
+ */
+public class ResourceGuard extends XMLFilterImpl {
+
+    // Deadline and interrupt are only checked every few events, nanoTime is not free
+    private static final int CHECK_INTERVAL = 256;
+
+    public record Limits(int maxEntityExpansions, int maxDepth, long maxNodes, long maxTextLength,
+            Duration stageTimeout, int maxFoPages) {
+
+        public static Limits from(AppConfig appConfig) {
+            return new Limits(appConfig.getLimitsMaxEntityExpansions(), appConfig.getLimitsMaxDepth(),
+                    appConfig.getLimitsMaxNodes(), appConfig.getLimitsMaxTextLength(),
+                    appConfig.getLimitsStageTimeout(), appConfig.getLimitsMaxFoPages());
+        }
+
+        public long deadline() {
+            return System.nanoTime() + stageTimeout.toNanos();
+        }
+    }
+
+    private final String stage;
+    private final Limits limits;
+    private final long deadline;
+
+    private int depth;
+    private long nodes;
+    private long textLength;
+    private int eventsUntilCheck = CHECK_INTERVAL;
+
+    private ResourceGuard(String stage, Limits limits) {
+        this.stage = stage;
+        this.limits = limits;
+        this.deadline = limits.deadline();
+    }
+
+    /**
+     * A namespace aware parser for untrusted documents: no DTDs loaded from outside, limited
+     * entity expansion, and the stream limits of this guard.
+     */
+    public static XMLReader newParser(String stage, Limits limits) throws SAXException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            SAXParser parser = factory.newSAXParser();
+            setJaxpLimit(parser, "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit", limits.maxEntityExpansions());
+            setJaxpLimit(parser, "http://www.oracle.com/xml/jaxp/properties/maxElementDepth", limits.maxDepth());
+            // Bounds what the allowed expansions can produce, no more than a single text node may hold
+            setJaxpLimit(parser, "http://www.oracle.com/xml/jaxp/properties/totalEntitySizeLimit",
+                    (int) Math.min(limits.maxTextLength(), Integer.MAX_VALUE));
+
+            ResourceGuard guard = new ResourceGuard(stage, limits);
+            guard.setParent(parser.getXMLReader());
+            return guard;
+        } catch (ParserConfigurationException e) {
+            throw new SAXException("Unable to configure XML parser: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Guards a stream of SAX events produced by the pipeline itself, e.g. a transformation result.
+     */
+    public static ResourceGuard forOutput(String stage, Limits limits, ContentHandler target) {
+        ResourceGuard guard = new ResourceGuard(stage, limits);
+        guard.setContentHandler(target);
+        return guard;
+    }
+
+    // The JDK parser enforces these itself, other parsers are covered by the checks below
+    private static void setJaxpLimit(SAXParser parser, String property, int limit) {
+        try {
+            parser.setProperty(property, String.valueOf(limit));
+        } catch (SAXNotRecognizedException | SAXNotSupportedException e) {
+            // Not the JDK parser
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        depth++;
+        if (depth > limits.maxDepth()) {
+            throw exceeded("element depth exceeds " + limits.maxDepth());
+        }
+        textLength = 0;
+        countNodes(1 + atts.getLength());
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        depth--;
+        textLength = 0;
+        super.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (textLength == 0) {
+            countNodes(1);
+        }
+        textLength += length;
+        if (textLength > limits.maxTextLength()) {
+            throw exceeded("text node exceeds " + limits.maxTextLength() + " characters");
+        }
+        super.characters(ch, start, length);
+    }
+
+    private void countNodes(int count) throws SAXException {
+        nodes += count;
+        if (nodes > limits.maxNodes()) {
+            throw exceeded("document exceeds " + limits.maxNodes() + " nodes");
+        }
+        eventsUntilCheck -= count;
+        if (eventsUntilCheck <= 0) {
+            eventsUntilCheck = CHECK_INTERVAL;
+            if (System.nanoTime() - deadline > 0) {
+                throw exceeded("stage took longer than " + limits.stageTimeout().toSeconds() + "s");
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw exceeded("stage was interrupted");
+            }
+        }
+    }
+
+    private ResourceLimitExceededException exceeded(String reason) {
+        return new ResourceLimitExceededException("Resource limit exceeded in " + stage + ": " + reason);
+    }
+}
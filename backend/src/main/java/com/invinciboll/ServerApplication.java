@@ -4,11 +4,13 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 
 @SpringBootApplication(scanBasePackages = "com.invinciboll")
 @EntityScan(basePackages = "com.invinciboll.entities")
 @ComponentScan(basePackages = "com.invinciboll")
+@EnableScheduling
 public class ServerApplication {
 
     public static void main(String[] args) {
@@ -0,0 +1,70 @@
+package com.invinciboll;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import com.invinciboll.exceptions.UploadRejectedException;
+
+/**
+ * Writes an upload body straight to its target file. The magic bytes are sniffed and the file hash
+ * is computed while the data passes through, so invalid content is rejected after the first bytes
+ * and the file never has to be read again.
+ */
+public class StreamingUpload {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public record Result(byte[] header, String fileHash, long size) {
+    }
+
+    public static Result writeTo(InputStream in, Path target, long maxBytes) throws IOException, UploadRejectedException {
+        MessageDigest md = FormatDetector.newFileDigest();
+        byte[] header = new byte[FormatDetector.HEADER_LENGTH];
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int headerLength = 0;
+        long size = 0;
+
+        boolean completed = false;
+        try (OutputStream out = Files.newOutputStream(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                if (headerLength < header.length) {
+                    int headerBytes = Math.min(bytesRead, header.length - headerLength);
+                    System.arraycopy(buffer, 0, header, headerLength, headerBytes);
+                    headerLength += headerBytes;
+                    if (headerLength == header.length && !FormatDetector.isSupportedHeader(header)) {
+                        throw new UploadRejectedException("File format is invalid, must be PDF or XML.",
+                                UploadRejectedException.Reason.INVALID_CONTENT);
+                    }
+                }
+
+                size += bytesRead;
+                if (size > maxBytes) {
+                    throw new UploadRejectedException("File exceeds the maximum upload size of " + maxBytes + " bytes.",
+                            UploadRejectedException.Reason.TOO_LARGE);
+                }
+
+                md.update(buffer, 0, bytesRead);
+                out.write(buffer, 0, bytesRead);
+            }
+
+            if (headerLength < header.length && !FormatDetector.isSupportedHeader(Arrays.copyOf(header, headerLength))) {
+                throw new UploadRejectedException("File is too short to be a PDF or XML file.",
+                        UploadRejectedException.Reason.INVALID_CONTENT);
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                Files.deleteIfExists(target);
+            }
+        }
+
+        return new Result(Arrays.copyOf(header, headerLength), FormatDetector.toHexString(md.digest()), size);
+    }
+}
@@ -6,26 +6,48 @@ import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.github.benmanes.caffeine.cache.RemovalListener;
 import com.invinciboll.entities.TempInvoice;
 
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.time.Duration;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 
-public class TempInvoiceCache {
+public class TempInvoiceCache implements PendingInvoiceStore {
 
     private final Cache<UUID, TempInvoice> cache;
+    // Invoices pushed out of the cache by its size limit, kept without their parsed trees until they
+    // expire, so a burst of uploads does not drop pending invoices
+    private final Cache<UUID, TempInvoice> detached;
 
     public TempInvoiceCache() {
+        this(Duration.ofHours(24));
+    }
+
+    public TempInvoiceCache(Duration expireAfter) {
+        this.detached = Caffeine.newBuilder()
+                .expireAfterWrite(expireAfter)       // Counted from the eviction
+                .removalListener(new RemovalListener<UUID, TempInvoice>() {
+                    @Override
+                    public void onRemoval(UUID key, TempInvoice invoice, RemovalCause cause) {
+                        // The temp files are shared with the invoice if it was put again
+                        if (invoice != null && cause != RemovalCause.REPLACED && cache.getIfPresent(key) == null) {
+                            invoice.deleteTempFiles();
+                        }
+                    }
+                })
+                .build();
         this.cache = Caffeine.newBuilder()
-                .expireAfterWrite(24, TimeUnit.HOURS) // Set expiration time
+                .expireAfterWrite(expireAfter)       // Set expiration time
                 .maximumSize(50)                     // Set max cache size
                 .removalListener(new RemovalListener<UUID, TempInvoice>() {
                     @Override
                     public void onRemoval(UUID key, TempInvoice invoice, RemovalCause cause) {
-                        if (invoice != null) {
+                        if (invoice == null || cause == RemovalCause.REPLACED) {
+                            return;
+                        }
+                        if (cause == RemovalCause.SIZE) {
+                            // Only the memory is reclaimed, the invoice stays pending
+                            detached.put(key, invoice.detach());
+                        } else {
                             // Perform cleanup for temp files
-                            deleteTempFile(invoice.getTempGeneratedFilePath());
-                            deleteTempFile(invoice.getTempOriginalFilePath());
+                            invoice.deleteTempFiles();
                         }
                     }
                 })
@@ -33,30 +55,24 @@ public class TempInvoiceCache {
     }
 
     // Store an object in the cache
+    @Override
     public void put(TempInvoice invoice) {
         System.out.println("Put to cache - " + invoice.getInvoiceId());
         cache.put(invoice.getInvoiceId(), invoice);
+        detached.invalidate(invoice.getInvoiceId());
     }
 
     // Retrieve an object from the cache
+    @Override
     public TempInvoice get(UUID invoiceId) {
-        return cache.getIfPresent(invoiceId);
+        TempInvoice invoice = cache.getIfPresent(invoiceId);
+        return invoice != null ? invoice : detached.getIfPresent(invoiceId);
     }
 
     // Remove an object from the cache
+    @Override
     public void remove(UUID invoiceId) {
         cache.invalidate(invoiceId);
-    }
-
-    // Utility method to delete temp files
-    private void deleteTempFile(Path filePath) {
-        if (filePath != null && Files.exists(filePath)) {
-            try {
-                Files.delete(filePath);
-                System.out.println("Deleted temp file: " + filePath);
-            } catch (Exception e) {
-                System.err.println("Failed to delete temp file: " + filePath + " - " + e.getMessage());
-            }
-        }
+        detached.invalidate(invoiceId);
     }
 }
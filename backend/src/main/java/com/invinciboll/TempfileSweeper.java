@@ -0,0 +1,233 @@
+package com.invinciboll;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.ReviewInvoiceStore;
+
+/**
+ * Keeps the tempfiles directory in line with the pending invoices. Files of invoices that are no
+ * longer pending (e.g. after a crash or restart), part files of abandoned chunked uploads and
+ * scratch files left behind by interrupted renders are deleted, and the directory is kept below its
+ * byte quota by dropping the oldest pending invoices first. Part files and invoices waiting for
+ * review count towards the quota but are never dropped for it.
+ */
+@Component
+public class TempfileSweeper {
+    private static final Logger logger = LoggerFactory.getLogger(TempfileSweeper.class);
+
+    private final AppConfig appConfig;
+    private final PendingInvoiceStore pendingInvoiceStore;
+    private final ReviewInvoiceStore reviewInvoiceStore;
+    private final ChunkedUploadService chunkedUploadService;
+
+    // Usage as of the last sweep plus everything reserved or written since
+    private final AtomicLong usedBytes = new AtomicLong();
+    private volatile long fileCount;
+    private volatile Instant lastSweep;
+
+    public TempfileSweeper(AppConfig appConfig, PendingInvoiceStore pendingInvoiceStore,
+            ReviewInvoiceStore reviewInvoiceStore, ChunkedUploadService chunkedUploadService) {
+        this.appConfig = appConfig;
+        this.pendingInvoiceStore = pendingInvoiceStore;
+        this.reviewInvoiceStore = reviewInvoiceStore;
+        this.chunkedUploadService = chunkedUploadService;
+    }
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${tempfiles.sweep-interval-ms}")
+    public synchronized void sweep() {
+        Path tempFilesPath = appConfig.getTempfilesPath();
+        if (!Files.isDirectory(tempFilesPath)) {
+            return;
+        }
+
+        // Writes recorded while listing are kept by applying the difference instead of the total
+        long usedBytesBefore = usedBytes.get();
+        Instant graceThreshold = Instant.now().minus(appConfig.getTempfilesOrphanGracePeriod());
+        Instant chunkedThreshold = Instant.now().minus(appConfig.getUploadChunkedExpireAfter());
+        deleteStaleRenderFiles(graceThreshold);
+        Set<UUID> reviewInvoiceIds = reviewInvoiceStore.findInvoiceIds();
+
+        // Group the temp files by invoice, oldest invoice first
+        Map<UUID, List<Path>> filesByInvoice = new LinkedHashMap<>();
+        long totalBytes = 0;
+        long totalFiles = 0;
+        for (Path file : listByAge(tempFilesPath)) {
+            long size = file.toFile().length();
+            UUID uploadId = ChunkedUploadService.parseUploadId(file);
+            if (uploadId != null && isOlderThan(file, chunkedThreshold)) {
+                // Chunked upload that was not resumed in time, every chunk touches the part file
+                if (delete(file)) {
+                    chunkedUploadService.forget(uploadId);
+                    continue;
+                }
+            }
+            UUID invoiceId = parseInvoiceId(file);
+            if (invoiceId != null && reviewInvoiceIds.contains(invoiceId)) {
+                // Waiting for review, kept until resolved
+                invoiceId = null;
+            }
+            if (invoiceId != null && isOlderThan(file, graceThreshold) && pendingInvoiceStore.get(invoiceId) == null) {
+                // Orphaned: the invoice expired or the node crashed before cleaning up
+                if (delete(file)) {
+                    continue;
+                }
+            }
+            totalBytes += size;
+            totalFiles++;
+            if (invoiceId != null) {
+                filesByInvoice.computeIfAbsent(invoiceId, id -> new ArrayList<>()).add(file);
+            }
+        }
+
+        long quotaBytes = appConfig.getTempfilesQuota().toBytes();
+        for (Map.Entry<UUID, List<Path>> entry : filesByInvoice.entrySet()) {
+            if (totalBytes <= quotaBytes) {
+                break;
+            }
+            logger.info("Temp files exceed quota, dropping pending invoice {}", entry.getKey());
+            long invoiceBytes = entry.getValue().stream().mapToLong(file -> file.toFile().length()).sum();
+            pendingInvoiceStore.remove(entry.getKey());
+            entry.getValue().forEach(TempfileSweeper::delete);
+            totalBytes -= invoiceBytes;
+            totalFiles -= entry.getValue().size();
+        }
+
+        usedBytes.addAndGet(totalBytes - usedBytesBefore);
+        fileCount = totalFiles;
+        lastSweep = Instant.now();
+    }
+
+    /**
+     * Checks whether an upload of the given size would still fit, without reserving anything. Only
+     * for rejecting early, writes have to reserve their bytes with {@link #tryReserve(long)}.
+     */
+    public boolean hasCapacityFor(long bytes) {
+        long requested = Math.max(bytes, 0);
+        if (usedBytes.get() + requested > appConfig.getTempfilesQuota().toBytes()) {
+            return false;
+        }
+        return getUsableBytes() - requested >= appConfig.getTempfilesMinFreeSpace().toBytes();
+    }
+
+    /**
+     * Reserves the given number of bytes if they still fit into the quota and leave the configured
+     * minimum of free disk space. Unknown sizes (-1) reserve nothing and are only checked against
+     * free space. Reserved bytes count as written until they are released.
+     */
+    public boolean tryReserve(long bytes) {
+        long requested = Math.max(bytes, 0);
+        if (usedBytes.addAndGet(requested) > appConfig.getTempfilesQuota().toBytes()
+                || getUsableBytes() < appConfig.getTempfilesMinFreeSpace().toBytes()) {
+            usedBytes.addAndGet(-requested);
+            return false;
+        }
+        return true;
+    }
+
+    // Gives back a reservation that was not written
+    public void release(long bytes) {
+        usedBytes.addAndGet(-Math.max(bytes, 0));
+    }
+
+    public void recordWrite(long bytes) {
+        usedBytes.addAndGet(bytes);
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("usedBytes", usedBytes.get());
+        statistics.put("quotaBytes", appConfig.getTempfilesQuota().toBytes());
+        statistics.put("fileCount", fileCount);
+        statistics.put("usableBytes", getUsableBytes());
+        statistics.put("minFreeBytes", appConfig.getTempfilesMinFreeSpace().toBytes());
+        statistics.put("lastSweep", lastSweep);
+        return statistics;
+    }
+
+    private long getUsableBytes() {
+        try {
+            return Files.getFileStore(appConfig.getTempfilesPath()).getUsableSpace();
+        } catch (IOException e) {
+            logger.warn("Failed to determine free disk space: {}", e.getMessage());
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // Scratch files and directories of renders that died with the JVM, only renders write there
+    private void deleteStaleRenderFiles(Instant graceThreshold) {
+        Path renderScratchPath = appConfig.getRenderScratchPath();
+        if (!Files.isDirectory(renderScratchPath)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(renderScratchPath)) {
+            files.filter(file -> isOlderThan(file, graceThreshold))
+                 .forEach(file -> FileUtils.deleteQuietly(file.toFile()));
+        } catch (IOException e) {
+            logger.warn("Failed to list render scratch directory: {}", e.getMessage());
+        }
+    }
+
+    private static List<Path> listByAge(Path directory) {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                .filter(Files::isRegularFile)
+                .sorted(Comparator.comparingLong(file -> FileUtils.lastModifiedUnchecked(file.toFile())))
+                .toList();
+        } catch (IOException e) {
+            logger.warn("Failed to list temp files: {}", e.getMessage());
+            return List.of();
+        }
+    }
+
+    // Temp files are named "org_<invoiceId>.<ext>" and "gen_<invoiceId>.pdf"
+    private static UUID parseInvoiceId(Path file) {
+        String fileName = file.getFileName().toString();
+        if (!fileName.startsWith("org_") && !fileName.startsWith("gen_")) {
+            return null;
+        }
+        String id = fileName.substring(4);
+        int extensionIndex = id.indexOf('.');
+        if (extensionIndex >= 0) {
+            id = id.substring(0, extensionIndex);
+        }
+        try {
+            return UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean isOlderThan(Path file, Instant threshold) {
+        return FileUtils.lastModifiedUnchecked(file.toFile()) < threshold.toEpochMilli();
+    }
+
+    private static boolean delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+            logger.info("Deleted temp file: {}", file);
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to delete temp file {}: {}", file, e.getMessage());
+            return false;
+        }
+    }
+}
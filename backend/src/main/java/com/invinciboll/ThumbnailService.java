@@ -0,0 +1,275 @@
+package com.invinciboll;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.entities.TempInvoice;
+import com.invinciboll.enums.FileFormat;
+import com.invinciboll.events.InvoicePersistedEvent;
+import com.invinciboll.events.InvoicesDeletedEvent;
+
+import jakarta.annotation.PreDestroy;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Renders first page previews of persisted invoices in the background and keeps them in an
+ * on-disk cache keyed by file hash. The cache is bounded by size, least recently read previews
+ * are evicted first and rendered again from the stored files when they are requested.
+ */
+@Service
+public class ThumbnailService {
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailService.class);
+
+    private final AppConfig appConfig;
+    private final InvoiceArchive invoiceArchive;
+    private final InvoiceDao invoiceDao;
+    private final Path thumbnailsPath;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "thumbnail-renderer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // File hashes whose preview is queued for rendering again, and those that could not be rendered
+    private final Set<String> regenerating = ConcurrentHashMap.newKeySet();
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+
+    public ThumbnailService(AppConfig appConfig, InvoiceArchive invoiceArchive, InvoiceDao invoiceDao) {
+        this.appConfig = appConfig;
+        this.invoiceArchive = invoiceArchive;
+        this.invoiceDao = invoiceDao;
+        this.thumbnailsPath = Paths.get(System.getProperty("user.dir")).resolve(appConfig.getThumbnailsDir());
+        if (appConfig.isThumbnailsEnabled() && !Files.exists(thumbnailsPath)) {
+            try {
+                Files.createDirectories(thumbnailsPath);
+            } catch (IOException e) {
+                throw new RuntimeException("Error creating thumbnails directory: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    @EventListener
+    public void onInvoicePersisted(InvoicePersistedEvent event) {
+        if (!appConfig.isThumbnailsEnabled()) {
+            return;
+        }
+        // Capture what is needed now, the temp invoice may be evicted before the job runs
+        TempInvoice invoice = event.invoice();
+        XdmNode foContent = invoice.getFoContent();
+        FileFormat fileFormat = invoice.getFileFormat();
+        InvoiceEntity entity = event.entity();
+
+        executor.submit(() -> generate(entity, fileFormat, foContent));
+    }
+
+    @EventListener
+    public void onInvoicesDeleted(InvoicesDeletedEvent event) {
+        Set<String> fileHashes = new HashSet<>();
+        for (InvoiceEntity invoice : event.invoices()) {
+            if (invoice.getFileHash() != null) {
+                fileHashes.add(invoice.getFileHash());
+            }
+        }
+        executor.submit(() -> {
+            // Previews are shared by invoices of the same file, keep those still stored
+            fileHashes.removeAll(invoiceDao.findExistingFileHashes(fileHashes));
+            for (String fileHash : fileHashes) {
+                try {
+                    Files.deleteIfExists(thumbnailsPath.resolve(fileHash + ".png"));
+                } catch (IOException e) {
+                    logger.warn("Failed to delete thumbnail of deleted file {}: {}", fileHash, e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the preview of an invoice whose generated PDF was rendered again.
+     */
+    public void refresh(InvoiceEntity entity, XdmNode foContent) {
+        if (!appConfig.isThumbnailsEnabled()) {
+            return;
+        }
+        FileFormat fileFormat = FileFormat.valueOf(entity.getFileFormat());
+        executor.submit(() -> {
+            try {
+                Files.deleteIfExists(thumbnailsPath.resolve(entity.getFileHash() + ".png"));
+            } catch (IOException e) {
+                logger.warn("Failed to delete outdated thumbnail of invoice {}: {}", entity.getInvoiceId(), e.getMessage());
+                return;
+            }
+            generate(entity, fileFormat, foContent);
+        });
+    }
+
+    /**
+     * Returns the cached preview for the given file hash, or null if it has not been generated (yet).
+     */
+    public Path getThumbnail(String fileHash) {
+        if (fileHash == null) {
+            return null;
+        }
+        Path thumbnail = thumbnailsPath.resolve(fileHash + ".png");
+        if (!Files.exists(thumbnail)) {
+            return null;
+        }
+        try {
+            // The modification time doubles as last access time for the LRU eviction
+            Files.setLastModifiedTime(thumbnail, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.debug("Could not touch thumbnail {}: {}", thumbnail, e.getMessage());
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Queues rendering the preview of an invoice again from its stored files, e.g. after it was
+     * evicted from the cache. Returns false if no preview can be expected, because previews are
+     * disabled or rendering it failed before.
+     */
+    public boolean regenerate(InvoiceEntity entity) {
+        String fileHash = entity.getFileHash();
+        if (!appConfig.isThumbnailsEnabled() || fileHash == null || failed.contains(fileHash)) {
+            return false;
+        }
+        if (!regenerating.add(fileHash)) {
+            // Already queued
+            return true;
+        }
+        FileFormat fileFormat = FileFormat.valueOf(entity.getFileFormat());
+        try {
+            executor.submit(() -> {
+                try {
+                    // Without an FO tree e-invoices are rendered from the generated PDF
+                    if (!generate(entity, fileFormat, null)) {
+                        failed.add(fileHash);
+                    }
+                } finally {
+                    regenerating.remove(fileHash);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            regenerating.remove(fileHash);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves a cached preview to a new file hash, used when stored hashes are migrated.
+     */
+    public void renameThumbnail(String oldFileHash, String newFileHash) {
+        Path thumbnail = thumbnailsPath.resolve(oldFileHash + ".png");
+        if (!Files.exists(thumbnail)) {
+            return;
+        }
+        try {
+            Files.move(thumbnail, thumbnailsPath.resolve(newFileHash + ".png"), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("Failed to rename thumbnail {}: {}", thumbnail, e.getMessage());
+        }
+    }
+
+    private boolean generate(InvoiceEntity entity, FileFormat fileFormat, XdmNode foContent) {
+        Path thumbnail = thumbnailsPath.resolve(entity.getFileHash() + ".png");
+        if (Files.exists(thumbnail)) {
+            return true;
+        }
+
+        Path tempThumbnail = thumbnailsPath.resolve(entity.getFileHash() + ".png.tmp");
+        float dpi = appConfig.getThumbnailsDpi();
+        try {
+            if (fileFormat == FileFormat.PDF) {
+                PdfRasterizer.renderFirstPage(invoiceArchive.resolve(entity.getOriginalFileSavePath()), tempThumbnail, dpi);
+            } else if (foContent != null) {
+                XRechnungTransformer.renderPNG(foContent, tempThumbnail, dpi);
+            } else {
+                // No FO tree available anymore, fall back to the generated PDF
+                PdfRasterizer.renderFirstPage(invoiceArchive.resolve(entity.getGeneratedFileSavePath()), tempThumbnail, dpi);
+            }
+            Files.move(tempThumbnail, thumbnail, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            logger.warn("Failed to generate thumbnail for invoice {}: {}", entity.getInvoiceId(), e.getMessage());
+            try {
+                Files.deleteIfExists(tempThumbnail);
+            } catch (IOException ignored) {
+                // Nothing left to do
+            }
+            return false;
+        }
+
+        failed.remove(entity.getFileHash());
+        enforceSizeLimit();
+        return true;
+    }
+
+    private void enforceSizeLimit() {
+        List<Path> thumbnails;
+        try (Stream<Path> files = Files.list(thumbnailsPath)) {
+            thumbnails = files
+                .filter(file -> file.getFileName().toString().endsWith(".png"))
+                .sorted(Comparator.comparingLong(ThumbnailService::lastModified))
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.warn("Failed to list thumbnails directory: {}", e.getMessage());
+            return;
+        }
+
+        long totalBytes = thumbnails.stream().mapToLong(ThumbnailService::size).sum();
+        for (Path thumbnail : thumbnails) {
+            if (totalBytes <= appConfig.getThumbnailsMaxCacheBytes()) {
+                break;
+            }
+            long size = size(thumbnail);
+            try {
+                Files.deleteIfExists(thumbnail);
+                totalBytes -= size;
+            } catch (IOException e) {
+                logger.warn("Failed to evict thumbnail {}: {}", thumbnail, e.getMessage());
+            }
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
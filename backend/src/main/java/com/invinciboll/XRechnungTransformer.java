@@ -1,42 +1,68 @@
 package com.invinciboll;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
 import java.time.format.DateTimeParseException;
-
-import javax.xml.transform.sax.SAXResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.fop.apps.FOPException;
 import org.apache.fop.apps.FOUserAgent;
 import org.apache.fop.apps.Fop;
+import org.apache.fop.apps.FopConfParser;
 import org.apache.fop.apps.FopFactory;
+import org.apache.fop.apps.FopFactoryBuilder;
 import org.apache.fop.apps.MimeConstants;
+import org.apache.commons.io.FileUtils;
+import org.apache.fop.render.intermediate.IFDocumentHandler;
 import org.mustangproject.ZUGFeRD.ZUGFeRDInvoiceImporter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.entities.InvoiceLineEntity;
+import com.invinciboll.entities.VatBreakdownEntity;
 import com.invinciboll.enums.FileFormat;
 import com.invinciboll.enums.XMLFormat;
+import com.invinciboll.events.PipelineStageEvent;
 import com.invinciboll.exceptions.ParserException;
 import com.invinciboll.util.Util;
 
+import net.sf.saxon.s9api.BuildingContentHandler;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SAXDestination;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XPathCompiler;
-import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.s9api.XsltCompiler;
@@ -46,9 +72,22 @@ import net.sf.saxon.s9api.XsltTransformer;
 @Component
 public class XRechnungTransformer {
     private static final Processor processor = new Processor(false); // Saxon Processor (no schema validation)
-    private static final FopFactory fopFactory = FopFactory.newInstance(new File(".").toURI()); // FOP Factory
+    // Built from the managed FOP configuration on first use, shared so font and image caches are shared
+    private static volatile FopFactory fopFactory;
+
+    private static final String BUNDLED_FOP_CONFIG = "/fop/fop.xconf";
+
+    // Languages of the labels in xr-pdf.xsl, selected by its "lang" parameter
+    public static final Set<String> LANGUAGES = Set.of("de", "en");
+    private static final QName LANGUAGE_PARAMETER = new QName("lang");
+
+    // Bump when extractKeyInformation starts extracting more or different fields
+    public static final int EXTRACTION_VERSION = 2;
 
     private static AppConfig appConfig;
+    private static volatile String stylesheetVersion;
+    // Compiled stylesheets by path, an XsltExecutable is thread-safe and loaded once per transformation
+    private static final Map<String, XsltExecutable> executables = new ConcurrentHashMap<>();
 
     @Autowired
     public void setAppConfig(AppConfig appConfig) {
@@ -56,30 +95,122 @@ public class XRechnungTransformer {
     }
 
 
+    // Read on every use, so the limits can be changed in tests without a new transformer
+    private static ResourceGuard.Limits limits() {
+        return ResourceGuard.Limits.from(appConfig);
+    }
+
+    /**
+     * Fingerprint of everything that shapes the stored outputs of an e-invoice: the contents of all
+     * stylesheets in the directories of the configured ones (they import each other), the FOP
+     * configuration and PDF/A mode, the language of the generated PDFs and the extraction version.
+     * Computed once, all of them are only replaced on restart.
+     */
+    public static String getStylesheetVersion() throws IOException {
+        if (stylesheetVersion == null) {
+            stylesheetVersion = computeStylesheetVersion();
+        }
+        return stylesheetVersion;
+    }
+
+    private static String computeStylesheetVersion() throws IOException {
+        TreeSet<Path> stylesheets = new TreeSet<>();
+        for (String stylesheet : List.of(appConfig.getUblInvoiceToXR(), appConfig.getUblCreditNoteToXR(),
+                appConfig.getCiiToXR(), appConfig.getXrToFo())) {
+            Path directory = Path.of(stylesheet).toAbsolutePath().normalize().getParent();
+            try (Stream<Path> files = Files.list(directory)) {
+                files.filter(file -> file.getFileName().toString().endsWith(".xsl")).forEach(stylesheets::add);
+            }
+        }
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // should never happen
+            throw new RuntimeException("Algorithm SHA-256 not found: " + e.getMessage());
+        }
+        for (Path stylesheet : stylesheets) {
+            md.update(stylesheet.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            md.update(Files.readAllBytes(stylesheet));
+        }
+        if (appConfig.getFopConfig().isBlank()) {
+            try (InputStream in = XRechnungTransformer.class.getResourceAsStream(BUNDLED_FOP_CONFIG)) {
+                md.update(in.readAllBytes());
+            }
+        } else {
+            md.update(Files.readAllBytes(Path.of(appConfig.getFopConfig())));
+        }
+        md.update(appConfig.getFopPdfAMode().getBytes(StandardCharsets.UTF_8));
+        md.update(getDefaultLanguage().getBytes(StandardCharsets.UTF_8));
+        md.update(Integer.toString(EXTRACTION_VERSION).getBytes(StandardCharsets.UTF_8));
+        return FormatDetector.toHexString(md.digest());
+    }
+
+    /**
+     * Parses the XML of an e-invoice into a tree. The root element is sniffed first, so XML that is
+     * no supported e-invoice format is rejected with an UnsupportedFormatException before any tree
+     * is built. A byte order mark or whitespace before the XML declaration is tolerated. Parsing is
+     * subject to the configured resource limits.
+     */
     public static XdmNode parseXmlContent(Path inputPath, FileFormat fileFormat) throws IllegalArgumentException, IOException, ParserException {
         if (fileFormat != FileFormat.ZF_PDF && fileFormat != FileFormat.XML) {
             throw new IllegalArgumentException("Unsupported file format: " + fileFormat);
         }
 
-        String xmlContentString;
+        DocumentBuilder builder = processor.newDocumentBuilder();
 
         if (fileFormat == FileFormat.ZF_PDF) {
-            ZUGFeRDInvoiceImporter zii = new ZUGFeRDInvoiceImporter(inputPath.toString());
-            xmlContentString = zii.getUTF8(); // Extract XML content from ZF_PDF
-        } else  {
-            try{
-                xmlContentString = Files.readString(inputPath, StandardCharsets.UTF_8); // Read XML from file
-            } catch (IOException e) {
-                throw new IOException("Unable to read XML content from XML file", e);
+            String xmlContentString;
+            try (PipelineStageEvent stage = PipelineStageEvent.start("zugferd-extract")) {
+                ZUGFeRDInvoiceImporter zii = new ZUGFeRDInvoiceImporter(inputPath.toString());
+                xmlContentString = zii.getUTF8(); // Extract XML content from ZF_PDF
+                stage.succeeded();
+            }
+            if (xmlContentString == null) {
+                throw new ParserException("No XML content found in ZUGFeRD PDF", null);
+            }
+            if (xmlContentString.startsWith("\uFEFF")) {
+                xmlContentString = xmlContentString.substring(1);
+            }
+            xmlContentString = xmlContentString.stripLeading();
+
+            try (PipelineStageEvent stage = PipelineStageEvent.start("xml-sniff")) {
+                FormatDetector.sniffXmlFormat(new StringReader(xmlContentString));
+                stage.succeeded();
+            }
+
+            try (PipelineStageEvent stage = PipelineStageEvent.start("xml-parse")) {
+                // Parse the XML content string into an XdmNode
+                XdmNode xmlContent = builder.build(new SAXSource(ResourceGuard.newParser("xml-parse", limits()),
+                        new InputSource(new StringReader(xmlContentString))));
+                stage.succeeded();
+                return xmlContent;
+            } catch (SaxonApiException | SAXException e) {
+                throw new ParserException("Unable to parse XML content", e);
             }
         }
 
-        DocumentBuilder builder = processor.newDocumentBuilder();
-        try {
-            // Parse the XML content string into an XdmNode
-            return builder.build(new StreamSource(new StringReader(xmlContentString)));
-        } catch (SaxonApiException e) {
+        try (PipelineStageEvent stage = PipelineStageEvent.start("xml-sniff");
+             InputStream in = FormatDetector.openXml(inputPath)) {
+            FormatDetector.sniffXmlFormat(in);
+            stage.succeeded();
+        } catch (IOException e) {
+            throw new IOException("Unable to read XML content from XML file", e);
+        }
+
+        // Parse straight from the file, so the parser handles the declared encoding
+        try (PipelineStageEvent stage = PipelineStageEvent.start("xml-parse");
+             InputStream in = FormatDetector.openXml(inputPath)) {
+            InputSource inputSource = new InputSource(in);
+            inputSource.setSystemId(inputPath.toUri().toString());
+            XdmNode xmlContent = builder.build(new SAXSource(ResourceGuard.newParser("xml-parse", limits()), inputSource));
+            stage.succeeded();
+            return xmlContent;
+        } catch (SaxonApiException | SAXException e) {
             throw new ParserException("Unable to parse XML content", e);
+        } catch (IOException e) {
+            throw new IOException("Unable to read XML content from XML file", e);
         }
     }
 
@@ -101,21 +232,48 @@ public class XRechnungTransformer {
                 throw new IllegalStateException("Method should not be invoked for format: " + xmlFormat);
         }
 
-        // Compile the XSLT
-        XsltCompiler compiler = processor.newXsltCompiler();
-        XsltExecutable executable = compiler.compile(new StreamSource(xslToXR));
+        // Compiled on first use, or by the startup warm-up
+        XsltExecutable executable = getExecutable(xslToXR, "xslt-compile-xr");
+
+        try (PipelineStageEvent stage = PipelineStageEvent.start("xslt-to-xr")) {
+            // Set up the transformer
+            XsltTransformer transformer = executable.load();
+            transformer.setInitialContextNode(inputXmlDoc); // Set the input XML document as context
 
-        // Set up the transformer
-        XsltTransformer transformer = executable.load();
-        transformer.setInitialContextNode(inputXmlDoc); // Set the input XML document as context
+            // Build the result through the resource guard, so a runaway transformation is stopped
+            BuildingContentHandler destination = processor.newDocumentBuilder().newBuildingContentHandler();
+            transformer.setDestination(new SAXDestination(ResourceGuard.forOutput("xslt-to-xr", limits(), destination)));
+            transformer.transform();
+            stage.succeeded();
 
-        // Set up the destination for the transformed result
-        XdmDestination destination = new XdmDestination();
-        transformer.setDestination(destination);
-        transformer.transform();
+            // Return the resulting XdmNode
+            return destination.getDocumentNode();
+        }
+    }
 
-        // Return the resulting XdmNode
-        return destination.getXdmNode();
+    /**
+     * Compiles all configured stylesheets ahead of the first transformation.
+     */
+    public static void precompileStylesheets() throws SaxonApiException {
+        getExecutable(appConfig.getUblInvoiceToXR(), "xslt-compile-xr");
+        getExecutable(appConfig.getUblCreditNoteToXR(), "xslt-compile-xr");
+        getExecutable(appConfig.getCiiToXR(), "xslt-compile-xr");
+        getExecutable(appConfig.getXrToFo(), "xslt-compile-fo");
+    }
+
+    // Not computeIfAbsent, a failed compilation must not be cached and compiling takes seconds
+    private static XsltExecutable getExecutable(String stylesheet, String stageName) throws SaxonApiException {
+        XsltExecutable executable = executables.get(stylesheet);
+        if (executable != null) {
+            return executable;
+        }
+        try (PipelineStageEvent stage = PipelineStageEvent.start(stageName)) {
+            XsltCompiler compiler = processor.newXsltCompiler();
+            executable = compiler.compile(new StreamSource(stylesheet));
+            stage.succeeded();
+        }
+        XsltExecutable existing = executables.putIfAbsent(stylesheet, executable);
+        return existing != null ? existing : executable;
     }
 
     public static KeyInformation extractKeyInformation(XdmNode xrContent) throws ParserException {
@@ -137,12 +295,13 @@ public class XRechnungTransformer {
         LocalDate issuedDate = LocalDate.MIN; // Represents the smallest possible LocalDate
         BigDecimal totalSum = BigDecimal.valueOf(-1); // Placeholder value indicating invalid
 
-        try {
+        try (PipelineStageEvent stage = PipelineStageEvent.start("extract-key-information")) {
             sellerName = extractStringValue(xpathCompiler, xrContent, sellerNameXPath);
             invoiceReference = extractStringValue(xpathCompiler, xrContent, invoiceReferenceXPath);
             invoiceTypeCode = extractIntegerValue(xpathCompiler, xrContent, invoiceTypeCodeXPath);
             issuedDate = extractLocalDateValue(xpathCompiler, xrContent, issuedDateXPath);
             totalSum = extractBigDecimalValue(xpathCompiler, xrContent, totalSumXPath);
+            stage.succeeded();
         } catch (ParserException e) {
             // Log the error for debugging
             System.err.println("Error extracting key information: " + e.getMessage());
@@ -157,6 +316,87 @@ public class XRechnungTransformer {
         return keyInformation;
     }
 
+    /**
+     * Extracts the invoice lines (BG-25) of the XR representation. Sub invoice lines are not
+     * extracted, their amounts are part of the parent line.
+     */
+    public static List<InvoiceLineEntity> extractLineItems(XdmNode xrContent, UUID invoiceId, LocalDate issuedDate) throws ParserException {
+        XPathCompiler xpathCompiler = processor.newXPathCompiler();
+        xpathCompiler.declareNamespace("xr", "urn:ce.eu:en16931:2017:xoev-de:kosit:standard:xrechnung-1");
+
+        List<InvoiceLineEntity> lines = new ArrayList<>();
+        try (PipelineStageEvent stage = PipelineStageEvent.start("extract-line-items")) {
+            for (XdmItem item : xpathCompiler.evaluate("/xr:invoice/xr:INVOICE_LINE", xrContent)) {
+                XdmNode line = (XdmNode) item;
+                lines.add(new InvoiceLineEntity(
+                    invoiceId,
+                    lines.size() + 1,
+                    extractStringValue(xpathCompiler, line, "xr:Invoice_line_identifier"),
+                    extractStringValue(xpathCompiler, line, "xr:ITEM_INFORMATION/xr:Item_name"),
+                    extractOptionalBigDecimalValue(xpathCompiler, line, "xr:Invoiced_quantity"),
+                    extractStringValue(xpathCompiler, line, "xr:Invoiced_quantity_unit_of_measure_code"),
+                    extractOptionalBigDecimalValue(xpathCompiler, line, "xr:Invoice_line_net_amount"),
+                    extractStringValue(xpathCompiler, line, "xr:LINE_VAT_INFORMATION/xr:Invoiced_item_VAT_category_code"),
+                    extractOptionalBigDecimalValue(xpathCompiler, line, "xr:LINE_VAT_INFORMATION/xr:Invoiced_item_VAT_rate"),
+                    issuedDate
+                ));
+            }
+            stage.succeeded();
+        } catch (SaxonApiException e) {
+            throw new ParserException("Error in extractLineItems: Unable to select invoice lines", e);
+        }
+        return lines;
+    }
+
+    /**
+     * Extracts the VAT breakdown (BG-23) of the XR representation, one row per VAT category and rate.
+     */
+    public static List<VatBreakdownEntity> extractVatBreakdown(XdmNode xrContent, UUID invoiceId, LocalDate issuedDate) throws ParserException {
+        XPathCompiler xpathCompiler = processor.newXPathCompiler();
+        xpathCompiler.declareNamespace("xr", "urn:ce.eu:en16931:2017:xoev-de:kosit:standard:xrechnung-1");
+
+        List<VatBreakdownEntity> rows = new ArrayList<>();
+        try (PipelineStageEvent stage = PipelineStageEvent.start("extract-vat-breakdown")) {
+            for (XdmItem item : xpathCompiler.evaluate("/xr:invoice/xr:VAT_BREAKDOWN", xrContent)) {
+                XdmNode breakdown = (XdmNode) item;
+                rows.add(new VatBreakdownEntity(
+                    invoiceId,
+                    rows.size() + 1,
+                    extractStringValue(xpathCompiler, breakdown, "xr:VAT_category_code"),
+                    extractOptionalBigDecimalValue(xpathCompiler, breakdown, "xr:VAT_category_rate"),
+                    extractOptionalBigDecimalValue(xpathCompiler, breakdown, "xr:VAT_category_taxable_amount"),
+                    extractOptionalBigDecimalValue(xpathCompiler, breakdown, "xr:VAT_category_tax_amount"),
+                    issuedDate
+                ));
+            }
+            stage.succeeded();
+        } catch (SaxonApiException e) {
+            throw new ParserException("Error in extractVatBreakdown: Unable to select VAT breakdown", e);
+        }
+        return rows;
+    }
+
+    /**
+     * The non-blank string values of all nodes the expression selects in the XR representation,
+     * in document order. The expression may use the "xr" prefix.
+     */
+    public static List<String> extractStringValues(XdmNode xrContent, String expression) throws ParserException {
+        XPathCompiler xpathCompiler = processor.newXPathCompiler();
+        xpathCompiler.declareNamespace("xr", "urn:ce.eu:en16931:2017:xoev-de:kosit:standard:xrechnung-1");
+
+        List<String> values = new ArrayList<>();
+        try {
+            for (XdmItem item : xpathCompiler.evaluate(expression, xrContent)) {
+                String value = item.getStringValue().strip();
+                if (!value.isEmpty()) {
+                    values.add(value);
+                }
+            }
+        } catch (SaxonApiException e) {
+            throw new ParserException("Error extracting string values for expression: " + expression, e);
+        }
+        return values;
+    }
 
     public static String extractStringValue(XPathCompiler xpathCompiler, XdmNode xrContent, String expression) throws ParserException {
         try {
@@ -194,49 +434,181 @@ public class XRechnungTransformer {
         }
     }
 
+    // Like extractBigDecimalValue, but null instead of a placeholder if the value is missing
+    public static BigDecimal extractOptionalBigDecimalValue(XPathCompiler xpathCompiler, XdmNode xrContent, String expression) throws ParserException {
+        try {
+            String value = extractStringValue(xpathCompiler, xrContent, expression);
+            return value != null && !value.isBlank() ? new BigDecimal(value.trim()) : null;
+        } catch (NumberFormatException e) {
+            throw new ParserException("Invalid BigDecimal format for expression: " + expression, e);
+        }
+    }
+
+    /**
+     * The configured language, the one of the generated PDFs that are stored.
+     */
+    public static String getDefaultLanguage() {
+        String language = normalizeLanguage(appConfig.getLanguage());
+        return language != null ? language : "en";
+    }
+
+    /**
+     * The supported language for the given code, e.g. "de" for "DE" or "de-AT", or null if it is
+     * not supported.
+     */
+    public static String normalizeLanguage(String language) {
+        if (language == null || language.isBlank()) {
+            return null;
+        }
+        String normalized = language.trim().toLowerCase(Locale.ROOT).split("[-_]")[0];
+        return LANGUAGES.contains(normalized) ? normalized : null;
+    }
+
+    /**
+     * The supported language for a language asked for by a client, e.g. the browser locale. Falls
+     * back to the configured language if none or an unsupported one is asked for.
+     */
+    public static String resolveLanguage(String language) {
+        String normalized = normalizeLanguage(language);
+        return normalized != null ? normalized : getDefaultLanguage();
+    }
 
     public static XdmNode transformToFO(XdmNode xrContent) throws SaxonApiException {
+        return transformToFO(xrContent, getDefaultLanguage());
+    }
+
+    /**
+     * Transforms the XR representation to an FO tree with the labels in the given language. The
+     * compiled stylesheet is shared by all languages, only the parameter differs.
+     */
+    public static XdmNode transformToFO(XdmNode xrContent, String language) throws SaxonApiException {
+        if (!LANGUAGES.contains(language)) {
+            throw new IllegalArgumentException("Unsupported language: " + language);
+        }
         String xslToFO = appConfig.getXrToFo();
-        XsltCompiler compiler = processor.newXsltCompiler();
-        XsltExecutable executable = compiler.compile(new StreamSource(xslToFO));
+        XsltExecutable executable = getExecutable(xslToFO, "xslt-compile-fo");
 
-        XsltTransformer transformer = executable.load();
-        transformer.setInitialContextNode(xrContent);
+        try (PipelineStageEvent stage = PipelineStageEvent.start("xslt-to-fo")) {
+            XsltTransformer transformer = executable.load();
+            transformer.setInitialContextNode(xrContent);
+            transformer.setStylesheetParameter(LANGUAGE_PARAMETER, new XdmAtomicValue(language));
 
-        XdmDestination destination = new XdmDestination();
+            BuildingContentHandler destination = processor.newDocumentBuilder().newBuildingContentHandler();
 
-        transformer.setDestination(destination);
-        transformer.transform();
+            transformer.setDestination(new SAXDestination(ResourceGuard.forOutput("xslt-to-fo", limits(), destination)));
+            transformer.transform();
+            stage.succeeded();
 
-        return destination.getXdmNode();
+            return destination.getDocumentNode();
+        }
     }
 
     public static void renderPDF(XdmNode foInput, String outputPDFPath) throws IOException, FOPException, SaxonApiException {
-        File tempFOFile = File.createTempFile("temp-output", ".fo");
-        try (OutputStream foOut = new FileOutputStream(tempFOFile)) {
-            Serializer serializer = foInput.getProcessor().newSerializer(foOut);
-            serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
-            serializer.setOutputProperty(Serializer.Property.INDENT, "yes");
-            serializer.serializeNode(foInput);
-        } catch (IOException e) {
-            throw new IOException("Error writing FO content to temporary file: " + e.getMessage());
-        } catch (SaxonApiException e) {
-            throw new SaxonApiException("Error serializing FO content: " + e.getMessage(), e);
+        FopFactory fopFactory = getFopFactory();
+        FOUserAgent foUserAgent = fopFactory.newFOUserAgent();
+        if (!appConfig.getFopPdfAMode().isBlank()) {
+            foUserAgent.getRendererOptions().put("pdf-a-mode", appConfig.getFopPdfAMode());
         }
 
-        FOUserAgent foUserAgent = fopFactory.newFOUserAgent();
-        try (OutputStream pdfOut = new FileOutputStream(outputPDFPath)) {
+        // The FO tree is streamed straight into FOP, without serializing and parsing it again
+        boolean rendered = false;
+        try (PipelineStageEvent stage = PipelineStageEvent.start("fop-render-pdf");
+             OutputStream pdfOut = new BufferedOutputStream(new FileOutputStream(outputPDFPath))) {
+            limitPages(foUserAgent, MimeConstants.MIME_PDF, "fop-render-pdf");
             Fop fop = fopFactory.newFop(MimeConstants.MIME_PDF, foUserAgent, pdfOut);
-            javax.xml.transform.TransformerFactory transformerFactory = javax.xml.transform.TransformerFactory.newInstance();
-            javax.xml.transform.Transformer transformer = transformerFactory.newTransformer(); // Identity transformer
-            transformer.transform(new javax.xml.transform.stream.StreamSource(tempFOFile), new SAXResult(fop.getDefaultHandler()));
+            processor.writeXdmValue(foInput, new SAXDestination(
+                    ResourceGuard.forOutput("fop-render-pdf", limits(), fop.getDefaultHandler())));
+            stage.succeeded();
+            rendered = true;
         } catch (FileNotFoundException e) {
             throw new FileNotFoundException("Error writing PDF content to output file: " + e.getMessage());
-        } catch (FOPException | javax.xml.transform.TransformerException e) {
+        } catch (FOPException e) {
             throw new FOPException("Error rendering PDF content: " + e.getMessage(), e);
         } finally {
-            // Clean up temporary FO file
-            tempFOFile.delete();
+            // Clean up the partial PDF of an aborted rendering
+            if (!rendered) {
+                Files.deleteIfExists(Path.of(outputPDFPath));
+            }
+        }
+    }
+
+    public static void renderPNG(XdmNode foInput, Path outputPNGPath, float dpi) throws IOException, FOPException, SaxonApiException {
+        // The bitmap renderer writes every page after the first one to its own file next to the
+        // output file, so render into a scratch directory and only keep the first page
+        Path scratchPath = Files.createDirectories(appConfig.getRenderScratchPath());
+        Path scratchDir = Files.createTempDirectory(scratchPath, "thumbnail");
+        try {
+            File firstPageFile = scratchDir.resolve("page.png").toFile();
+            FopFactory fopFactory = getFopFactory();
+            FOUserAgent foUserAgent = fopFactory.newFOUserAgent();
+            foUserAgent.setTargetResolution(dpi);
+            foUserAgent.setOutputFile(firstPageFile);
+
+            try (PipelineStageEvent stage = PipelineStageEvent.start("fop-render-png");
+                 OutputStream pngOut = new FileOutputStream(firstPageFile)) {
+                limitPages(foUserAgent, MimeConstants.MIME_PNG, "fop-render-png");
+                Fop fop = fopFactory.newFop(MimeConstants.MIME_PNG, foUserAgent, pngOut);
+                processor.writeXdmValue(foInput, new SAXDestination(
+                        ResourceGuard.forOutput("fop-render-png", limits(), fop.getDefaultHandler())));
+                stage.succeeded();
+            } catch (FOPException e) {
+                throw new FOPException("Error rendering PNG content: " + e.getMessage(), e);
+            }
+
+            Files.move(firstPageFile.toPath(), outputPNGPath, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // Clean up the remaining pages
+            FileUtils.deleteQuietly(scratchDir.toFile());
         }
     }
+
+    /**
+     * The FOP factory configured from fop.config, or the bundled fop/fop.xconf. The font metrics
+     * cache is kept in fop.font-cache, so configured fonts are only parsed once and not on every
+     * restart.
+     */
+    public static FopFactory getFopFactory() throws IOException {
+        if (fopFactory == null) {
+            synchronized (XRechnungTransformer.class) {
+                if (fopFactory == null) {
+                    fopFactory = buildFopFactory();
+                }
+            }
+        }
+        return fopFactory;
+    }
+
+    private static FopFactory buildFopFactory() throws IOException {
+        String config = appConfig.getFopConfig();
+        FopFactoryBuilder builder;
+        try {
+            if (config.isBlank()) {
+                try (InputStream in = XRechnungTransformer.class.getResourceAsStream(BUNDLED_FOP_CONFIG)) {
+                    builder = new FopConfParser(in, new File(".").toURI()).getFopFactoryBuilder();
+                }
+            } else {
+                // Relative paths in the configuration are relative to the configuration file
+                Path configFile = Path.of(config).toAbsolutePath();
+                try (InputStream in = Files.newInputStream(configFile)) {
+                    builder = new FopConfParser(in, configFile.getParent().toUri()).getFopFactoryBuilder();
+                }
+            }
+        } catch (SAXException e) {
+            throw new IOException("Invalid FOP configuration " + (config.isBlank() ? BUNDLED_FOP_CONFIG : config) + ": " + e.getMessage(), e);
+        }
+
+        FopFactory factory = builder.build();
+        if (!appConfig.getFopFontCache().isBlank()) {
+            Path cacheFile = Path.of(appConfig.getFopFontCache()).toAbsolutePath();
+            Files.createDirectories(cacheFile.getParent());
+            factory.getFontManager().setCacheFile(cacheFile.toUri());
+        }
+        return factory;
+    }
+
+    // Route the rendering through a handler that aborts once the page limit or deadline is exceeded
+    private static void limitPages(FOUserAgent foUserAgent, String outputFormat, String stage) throws FOPException {
+        IFDocumentHandler documentHandler = foUserAgent.getRendererFactory().createDocumentHandler(foUserAgent, outputFormat);
+        foUserAgent.setDocumentHandlerOverride(new PageLimitingDocumentHandler(documentHandler, limits(), stage));
+    }
 }
@@ -2,8 +2,13 @@ package com.invinciboll.configuration;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 
 import lombok.Getter;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.Year;
 
 @Getter
@@ -33,8 +38,256 @@ public class AppConfig {
         return outputDir + "/" + Year.now();
     }
 
+    // Parent of the per-year output directories and the archive directory
+    public String getOutputBaseDir() {
+        return outputDir;
+    }
+
     @Value("${tempfiles.dir}")
     private String tempfilesDir;
+    // Relative to the working directory unless absolute, e.g. a directory shared between nodes
+    public Path getTempfilesPath() {
+        return Paths.get(System.getProperty("user.dir")).resolve(tempfilesDir);
+    }
+
+    // Scratch files of renders, left behind ones are deleted by the TempfileSweeper
+    public Path getRenderScratchPath() {
+        return getTempfilesPath().resolve("render");
+    }
+
+    @Value("${tempfiles.url-path}")
+    private String tempfilesUrlPath;
+
+    @Value("${tempfiles.quota}")
+    private DataSize tempfilesQuota;
+
+    @Value("${tempfiles.min-free-space}")
+    private DataSize tempfilesMinFreeSpace;
+
+    // Files of unknown invoices younger than this belong to uploads still in progress
+    @Value("${tempfiles.orphan-grace-period}")
+    private Duration tempfilesOrphanGracePeriod;
+
+    // Pending invoices between upload and persist: "memory" or "jdbc" (shared between nodes)
+    @Value("${pending.store}")
+    private String pendingStore;
+
+    @Value("${pending.expire-after}")
+    private Duration pendingExpireAfter;
+
+    @Value("${pending.local-cache.enabled}")
+    private boolean pendingLocalCacheEnabled;
+
+    // Limit for streaming uploads, independent of the multipart limits
+    @Value("${upload.max-file-size}")
+    private DataSize uploadMaxFileSize;
+
+    @Value("${upload.chunk-size}")
+    private DataSize uploadChunkSize;
+
+    // Part files of chunked uploads without a chunk for this long are deleted
+    @Value("${upload.chunked-expire-after}")
+    private Duration uploadChunkedExpireAfter;
+
+    @Value("${upload.precheck-max-hashes}")
+    private int uploadPrecheckMaxHashes;
+
+    // Hot folder ingestion
+    @Value("${hotfolder.enabled}")
+    private boolean hotfolderEnabled;
+
+    @Value("${hotfolder.dirs}")
+    private String[] hotfolderDirs;
+
+    // Files are picked up once their size and modification time did not change for this long
+    @Value("${hotfolder.settle-time}")
+    private Duration hotfolderSettleTime;
+
+    // Fallback for network shares that do not deliver file system events
+    @Value("${hotfolder.rescan-interval}")
+    private Duration hotfolderRescanInterval;
+
+    // 0 = one per available processor
+    @Value("${hotfolder.threads}")
+    private int hotfolderThreads;
+
+    // Processing scheduler, 0 = one slot per available processor
+    @Value("${scheduler.threads}")
+    private int schedulerThreads;
+
+    // 0 = no limit besides the slot count
+    @Value("${scheduler.interactive.max-concurrency}")
+    private int schedulerInteractiveMaxConcurrency;
+
+    @Value("${scheduler.interactive.weight}")
+    private double schedulerInteractiveWeight;
+
+    // 0 = all but one slot
+    @Value("${scheduler.bulk.max-concurrency}")
+    private int schedulerBulkMaxConcurrency;
+
+    @Value("${scheduler.bulk.weight}")
+    private double schedulerBulkWeight;
+
+    // Re-processing of stored e-invoices after stylesheet upgrades
+    @Value("${reprocess.on-startup}")
+    private boolean reprocessOnStartup;
+
+    @Value("${reprocess.threads}")
+    private int reprocessThreads;
+
+    @Value("${reprocess.batch-size}")
+    private int reprocessBatchSize;
+
+    @Value("${reprocess.batch-pause}")
+    private Duration reprocessBatchPause;
+
+    // JDK Flight Recorder recordings started through /admin/jfr
+    @Value("${jfr.settings}")
+    private String jfrSettings;
+
+    @Value("${jfr.max-age}")
+    private Duration jfrMaxAge;
+
+    @Value("${jfr.max-size}")
+    private DataSize jfrMaxSize;
+
+    // Pipeline stages shorter than this are not recorded
+    @Value("${jfr.stage-threshold}")
+    private Duration jfrStageThreshold;
+
+    // Per-document resource limits of the processing pipeline
+    @Value("${limits.max-entity-expansions}")
+    private int limitsMaxEntityExpansions;
+
+    @Value("${limits.max-depth}")
+    private int limitsMaxDepth;
+
+    @Value("${limits.max-nodes}")
+    private long limitsMaxNodes;
+
+    @Value("${limits.max-text-length}")
+    private long limitsMaxTextLength;
+
+    @Value("${limits.stage-timeout}")
+    private Duration limitsStageTimeout;
+
+    @Value("${limits.max-fo-pages}")
+    private int limitsMaxFoPages;
+
+    // Cold storage of closed years
+    @Value("${archive.enabled}")
+    private boolean archiveEnabled;
+
+    @Value("${archive.keep-years}")
+    private int archiveKeepYears;
+
+    @Value("${archive.cache-dir}")
+    private String archiveCacheDir;
+
+    @Value("${archive.cache-size}")
+    private DataSize archiveCacheSize;
+
+    // Startup warm-up of the processing pipeline
+    @Value("${warmup.enabled}")
+    private boolean warmupEnabled;
+
+    @Value("${warmup.iterations}")
+    private int warmupIterations;
+
+    @Value("${warmup.exit-after}")
+    private boolean warmupExitAfter;
+
+    // FOP configuration, empty means the bundled fop/fop.xconf
+    @Value("${fop.config}")
+    private String fopConfig;
+
+    @Value("${fop.font-cache}")
+    private String fopFontCache;
+
+    // e.g. PDF/A-2b, empty for plain PDF
+    @Value("${fop.pdf-a-mode}")
+    private String fopPdfAMode;
+
+    // Group commit of invoice inserts: rows arriving within the flush interval share a batch
+    @Value("${persist.batch.max-size}")
+    private int persistBatchMaxSize;
+
+    @Value("${persist.batch.flush-interval}")
+    private Duration persistBatchFlushInterval;
+
+    // Cache of invoice lookups by id and file hash
+    @Value("${invoice-cache.maximum-size}")
+    private long invoiceCacheMaximumSize;
+
+    // Writes of other nodes become visible after this
+    @Value("${invoice-cache.expire-after}")
+    private Duration invoiceCacheExpireAfter;
+
+    @Value("${invoice-cache.negative-expire-after}")
+    private Duration invoiceCacheNegativeExpireAfter;
+
+    // Language variants
+    @Value("${variants.dir}")
+    private String variantsDir;
+
+    @Value("${variants.max-cache-bytes}")
+    private long variantsMaxCacheBytes;
+
+    @Value("${variants.xr-cache-size}")
+    private long variantsXrCacheSize;
+
+    // Deleting invoices, the files are removed in the background
+    @Value("${delete.max-batch-size}")
+    private int deleteMaxBatchSize;
+
+    @Value("${delete.cleanup-interval}")
+    private Duration deleteCleanupInterval;
+
+    @Value("${delete.cleanup-max-attempts}")
+    private int deleteCleanupMaxAttempts;
+
+    // Tombstones are kept this long after the files were removed
+    @Value("${delete.tombstone-retention}")
+    private Duration deleteTombstoneRetention;
+
+    // Audit journal
+    @Value("${audit.dir}")
+    private String auditDir;
+
+    @Value("${audit.segment-size}")
+    private DataSize auditSegmentSize;
+
+    // Records written since the last fsync are lost on a crash
+    @Value("${audit.fsync-interval}")
+    private Duration auditFsyncInterval;
+
+    @Value("${audit.queue-capacity}")
+    private int auditQueueCapacity;
+
+    // Full-text search
+    @Value("${search.dir}")
+    private String searchDir;
+
+    // Changes are searchable within a second, but only durable after the commit
+    @Value("${search.commit-interval}")
+    private Duration searchCommitInterval;
+
+    @Value("${search.max-page-size}")
+    private int searchMaxPageSize;
+
+    // Thumbnails
+    @Value("${thumbnails.enabled}")
+    private boolean thumbnailsEnabled;
+
+    @Value("${thumbnails.dir}")
+    private String thumbnailsDir;
+
+    @Value("${thumbnails.max-cache-bytes}")
+    private long thumbnailsMaxCacheBytes;
+
+    @Value("${thumbnails.dpi}")
+    private float thumbnailsDpi;
 
     // Testfiles xrechnung (from xrechnung-visualization repo)
     @Value("${testfiles.xrechnung}")
@@ -0,0 +1,19 @@
+package com.invinciboll.configuration;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import com.invinciboll.database.CachingInvoiceDao;
+import com.invinciboll.database.InvoiceDaoImpl;
+
+@Configuration
+public class InvoiceDaoConfig {
+
+    // Injected wherever an InvoiceDao is needed, InvoiceDaoImpl stays available for the delegation
+    @Bean
+    @Primary
+    public CachingInvoiceDao cachingInvoiceDao(InvoiceDaoImpl invoiceDaoImpl, AppConfig appConfig) {
+        return new CachingInvoiceDao(invoiceDaoImpl, appConfig);
+    }
+}
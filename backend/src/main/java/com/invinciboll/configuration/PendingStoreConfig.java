@@ -0,0 +1,21 @@
+package com.invinciboll.configuration;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.invinciboll.PendingInvoiceStore;
+import com.invinciboll.TempInvoiceCache;
+import com.invinciboll.database.JdbcPendingInvoiceStore;
+
+@Configuration
+public class PendingStoreConfig {
+
+    @Bean
+    public PendingInvoiceStore pendingInvoiceStore(AppConfig appConfig, JdbcTemplate jdbcTemplate) {
+        if ("jdbc".equalsIgnoreCase(appConfig.getPendingStore())) {
+            return new JdbcPendingInvoiceStore(jdbcTemplate, appConfig);
+        }
+        return new TempInvoiceCache(appConfig.getPendingExpireAfter());
+    }
+}
@@ -33,11 +33,11 @@ public class WebConfig implements WebMvcConfigurer {
 
     @Override
     public void addResourceHandlers(ResourceHandlerRegistry registry) {
-        String dirName = appConfig.getTempfilesDir();
+        String urlPath = appConfig.getTempfilesUrlPath();
 
         // Map "/tempfiles/**" to the directory on the filesystem
-        registry.addResourceHandler("/" + dirName + "/**")
-                .addResourceLocations("file:" + dirName + "/")
+        registry.addResourceHandler("/" + urlPath + "/**")
+                .addResourceLocations("file:" + appConfig.getTempfilesPath() + "/")
                 .setCachePeriod(3600) // Optional: Set caching
                 .resourceChain(true); // Enable resource chaining
 
@@ -0,0 +1,161 @@
+package com.invinciboll.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Year;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.invinciboll.FlightRecorderService;
+import com.invinciboll.InvoiceArchive;
+import com.invinciboll.ReprocessingJob;
+
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    private final ReprocessingJob reprocessingJob;
+    private final FlightRecorderService flightRecorderService;
+    private final InvoiceArchive invoiceArchive;
+
+    @Autowired
+    public AdminController(ReprocessingJob reprocessingJob, FlightRecorderService flightRecorderService,
+            InvoiceArchive invoiceArchive) {
+        this.reprocessingJob = reprocessingJob;
+        this.flightRecorderService = flightRecorderService;
+        this.invoiceArchive = invoiceArchive;
+    }
+
+    /**
+     * Start re-processing all e-invoices with an outdated stylesheet version
+     *
+     * @param restart drop the checkpoint, so invoices that failed before are tried again
+     * @return 202 if the job was started, 409 if it is already running
+     */
+    @PostMapping("/reprocess")
+    public ResponseEntity<?> startReprocessing(@RequestParam(defaultValue = "false") boolean restart) {
+        if (!reprocessingJob.start(restart)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Reprocessing is already running");
+        }
+        return ResponseEntity.accepted().body(reprocessingJob.getStatus());
+    }
+
+    @PostMapping("/reprocess/cancel")
+    public ResponseEntity<?> cancelReprocessing() {
+        reprocessingJob.cancel();
+        return ResponseEntity.ok(reprocessingJob.getStatus());
+    }
+
+    @GetMapping("/reprocess")
+    public ResponseEntity<?> getReprocessingStatus() {
+        Map<String, Object> status = reprocessingJob.getStatus();
+        return ResponseEntity.ok(status);
+    }
+
+    /**
+     * Closed years with files not yet moved to cold storage
+     */
+    @GetMapping("/archive")
+    public ResponseEntity<?> getArchivableYears() {
+        return ResponseEntity.ok(invoiceArchive.findClosedYears());
+    }
+
+    /**
+     * Move the files of a closed year to cold storage now, instead of waiting for the nightly run.
+     * Also works for years kept uncompressed by archive.keep-years.
+     */
+    @PostMapping("/archive")
+    public ResponseEntity<?> archiveYear(@RequestParam int year) {
+        try {
+            int archivedFiles = invoiceArchive.archiveYear(Year.of(year));
+            Map<String, Object> responseBody = new HashMap<>();
+            responseBody.put("year", year);
+            responseBody.put("archivedFiles", archivedFiles);
+            return ResponseEntity.ok(responseBody);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to archive year " + year + ": " + e.getMessage());
+        }
+    }
+
+    @PostMapping("/jfr/start")
+    public ResponseEntity<?> startRecording() {
+        try {
+            if (!flightRecorderService.start()) {
+                return ResponseEntity.status(HttpStatus.CONFLICT).body("A recording is already running");
+            }
+        } catch (IOException | ParseException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to start recording: " + e.getMessage());
+        }
+        return ResponseEntity.ok(flightRecorderService.getStatus());
+    }
+
+    @PostMapping("/jfr/stop")
+    public ResponseEntity<?> stopRecording() {
+        try {
+            if (!flightRecorderService.stop()) {
+                return ResponseEntity.status(HttpStatus.CONFLICT).body("No recording is running");
+            }
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to stop recording: " + e.getMessage());
+        }
+        return ResponseEntity.ok(flightRecorderService.getStatus());
+    }
+
+    @GetMapping("/jfr")
+    public ResponseEntity<?> getRecordingStatus() {
+        return ResponseEntity.ok(flightRecorderService.getStatus());
+    }
+
+    /**
+     * Download the stopped recording, or a snapshot of the running one. Open it with JDK Mission
+     * Control or "jfr print --events com.invinciboll.PipelineStage".
+     */
+    @GetMapping("/jfr/download")
+    public ResponseEntity<?> downloadRecording() {
+        Path recordingFile;
+        try {
+            recordingFile = flightRecorderService.getRecordingFile();
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to dump recording: " + e.getMessage());
+        }
+        if (recordingFile == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No recording available");
+        }
+
+        boolean snapshot = flightRecorderService.isSnapshot(recordingFile);
+        StreamingResponseBody body = out -> {
+            try (InputStream in = Files.newInputStream(recordingFile)) {
+                in.transferTo(out);
+            } finally {
+                if (snapshot) {
+                    Files.deleteIfExists(recordingFile);
+                }
+            }
+        };
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"e-invoice-manager.jfr\"")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .body(body);
+    }
+}
@@ -0,0 +1,86 @@
+package com.invinciboll.controller;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.invinciboll.AuditJournal;
+
+@RestController
+@RequestMapping("/audit")
+public class AuditController {
+
+    private static final int MAX_LIMIT = 10000;
+
+    private final AuditJournal auditJournal;
+
+    @Autowired
+    public AuditController(AuditJournal auditJournal) {
+        this.auditJournal = auditJournal;
+    }
+
+    /**
+     * Records of the audit journal, of one invoice and/or within a time range (from inclusive, to
+     * exclusive, ISO-8601 instants), oldest first
+     */
+    @GetMapping
+    public ResponseEntity<?> getRecords(
+            @RequestParam(value = "invoiceId", required = false) String invoiceId,
+            @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+            @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+            @RequestParam(value = "limit", defaultValue = "1000") int limit) {
+        UUID invoiceUUID = null;
+        if (invoiceId != null) {
+            try {
+                invoiceUUID = UUID.fromString(invoiceId);
+            } catch (IllegalArgumentException e) {
+                // Handle invalid UUID
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body("Invalid invoice ID format: " + e.getMessage());
+            }
+        }
+        if (from != null && to != null && !from.isBefore(to)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid period: 'from' must be before 'to'");
+        }
+        if (limit < 1 || limit > MAX_LIMIT) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid limit: must be between 1 and " + MAX_LIMIT);
+        }
+
+        List<AuditJournal.Entry> entries;
+        try {
+            entries = auditJournal.find(invoiceUUID, from, to, limit);
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Error reading the audit journal: " + e.getMessage());
+        }
+        return ResponseEntity.ok(entries);
+    }
+
+    /**
+     * Checks that no record of the audit journal was changed, removed or reordered
+     */
+    @GetMapping("/verify")
+    public ResponseEntity<?> verify() {
+        Map<String, Object> result;
+        try {
+            result = auditJournal.verify();
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Error reading the audit journal: " + e.getMessage());
+        }
+        return ResponseEntity.ok(result);
+    }
+}
@@ -0,0 +1,55 @@
+package com.invinciboll.controller;
+
+import java.time.LocalDate;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.invinciboll.InvoiceArchive;
+import com.invinciboll.InvoiceExporter;
+import com.invinciboll.database.InvoiceDao;
+
+@RestController
+@RequestMapping("/export")
+public class ExportController {
+
+    private final InvoiceDao invoiceDao;
+    private final InvoiceArchive invoiceArchive;
+
+    @Autowired
+    public ExportController(InvoiceDao invoiceDao, InvoiceArchive invoiceArchive) {
+        this.invoiceDao = invoiceDao;
+        this.invoiceArchive = invoiceArchive;
+    }
+
+    /**
+     * Export all invoices issued within a period (inclusive) as ZIP, e.g. for the tax advisor
+     *
+     * @return ResponseEntity streaming the ZIP archive
+     */
+    @GetMapping
+    public ResponseEntity<?> exportPeriod(
+            @RequestParam("from") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam("to") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        if (from.isAfter(to)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid period: 'from' must not be after 'to'");
+        }
+
+        StreamingResponseBody body = out -> InvoiceExporter.writeZip(invoiceDao, invoiceArchive, from, to, out);
+        String fileName = "invoices_" + from + "_" + to + ".zip";
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .body(body);
+    }
+}
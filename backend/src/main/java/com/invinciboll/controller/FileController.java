@@ -1,51 +1,115 @@
 package com.invinciboll.controller;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
-import com.invinciboll.TempInvoiceCache;
+import com.invinciboll.AuditJournal;
+import com.invinciboll.ChunkedUploadService;
+import com.invinciboll.DuplicateIndex;
+import com.invinciboll.FormatDetector;
+import com.invinciboll.InvoiceArchive;
+import com.invinciboll.LanguageVariants;
+import com.invinciboll.PendingInvoiceStore;
+import com.invinciboll.ProcessingScheduler;
+import com.invinciboll.TempfileSweeper;
+import com.invinciboll.XRechnungTransformer;
 import com.invinciboll.configuration.AppConfig;
 import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.database.ReviewInvoiceStore;
+import com.invinciboll.entities.InvoiceEntity;
 import com.invinciboll.entities.TempInvoice;
+import com.invinciboll.enums.AuditAction;
+import com.invinciboll.enums.ErrorCode;
 import com.invinciboll.enums.FileFormat;
+import com.invinciboll.enums.WorkloadClass;
+import com.invinciboll.events.InvoicePersistedEvent;
 import com.invinciboll.exceptions.CauseRetriever;
 import com.invinciboll.exceptions.ParserException;
+import com.invinciboll.exceptions.ResourceLimitExceededException;
 import com.invinciboll.exceptions.TransformationException;
+import com.invinciboll.exceptions.UnsupportedFormatException;
+import com.invinciboll.exceptions.UploadRejectedException;
+
+import jakarta.servlet.http.HttpServletRequest;
 
 @RestController
 public class FileController {
-    private static final TempInvoiceCache cache = new TempInvoiceCache();
+    private final PendingInvoiceStore cache;
+    private final ReviewInvoiceStore reviewInvoiceStore;
+    private final TempfileSweeper tempfileSweeper;
     private final InvoiceDao invoiceDao;
     private final AppConfig appConfig;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ProcessingScheduler processingScheduler;
+    private final ChunkedUploadService chunkedUploadService;
+    private final DuplicateIndex duplicateIndex;
+    private final LanguageVariants languageVariants;
+    private final AuditJournal auditJournal;
+    private final InvoiceArchive invoiceArchive;
 
     @Autowired
-    public FileController(InvoiceDao invoiceDao, AppConfig appConfig) {
+    public FileController(PendingInvoiceStore cache, ReviewInvoiceStore reviewInvoiceStore,
+            TempfileSweeper tempfileSweeper, InvoiceDao invoiceDao,
+            AppConfig appConfig, ApplicationEventPublisher eventPublisher, ProcessingScheduler processingScheduler,
+            ChunkedUploadService chunkedUploadService, DuplicateIndex duplicateIndex, LanguageVariants languageVariants,
+            AuditJournal auditJournal, InvoiceArchive invoiceArchive) {
+        this.cache = cache;
+        this.reviewInvoiceStore = reviewInvoiceStore;
+        this.tempfileSweeper = tempfileSweeper;
         this.invoiceDao = invoiceDao;
         this.appConfig = appConfig;
+        this.eventPublisher = eventPublisher;
+        this.processingScheduler = processingScheduler;
+        this.chunkedUploadService = chunkedUploadService;
+        this.duplicateIndex = duplicateIndex;
+        this.languageVariants = languageVariants;
+        this.auditJournal = auditJournal;
+        this.invoiceArchive = invoiceArchive;
     }
 
     @PostMapping("/upload") 
     public ResponseEntity<?> handleFileUpload( 
-            @RequestParam("file") MultipartFile uploadedFile) {
+            @RequestParam("file") MultipartFile uploadedFile,
+            @RequestParam(value = "language", required = false) String language) {
+
+        String previewLanguage = XRechnungTransformer.resolveLanguage(language);
 
-        String contentType = uploadedFile.getContentType();
-        if (contentType == null || 
-            (!contentType.equals("application/pdf") &&
-             !contentType.equals("application/xml") &&
-             !contentType.equals("text/xml"))) {
+        if (!isSupportedContentType(uploadedFile.getContentType())) {
             return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE)
-                    .body("File format is invalid, must be PDF or XML.");
+                    .body(ErrorCode.ERR001.getMessage(previewLanguage));
+        }
+
+        long reservedBytes = uploadedFile.getSize();
+        if (!tempfileSweeper.tryReserve(reservedBytes)) {
+            return insufficientStorage();
         }
 
         TempInvoice temporaryInvoice = new TempInvoice(appConfig);
@@ -53,23 +117,335 @@ public class FileController {
         try {
             temporaryInvoice.setFile(uploadedFile);
         } catch (IOException | IllegalStateException e) {
+            tempfileSweeper.release(reservedBytes);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to create temporary files: " + e.getMessage());
+        }
+
+        return processUpload(temporaryInvoice, previewLanguage, reservedBytes);
+    }
+
+    /**
+     * Upload with the raw file as request body. The body is written straight to the tempfiles
+     * directory, bypassing multipart buffering, and rejected as soon as its header is invalid.
+     */
+    @PostMapping("/upload/stream")
+    public ResponseEntity<?> handleStreamingUpload(
+            @RequestParam("filename") String filename,
+            @RequestParam(value = "language", required = false) String language,
+            HttpServletRequest request) {
+
+        String previewLanguage = XRechnungTransformer.resolveLanguage(language);
+
+        if (!isSupportedContentType(request.getContentType())) {
+            return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE)
+                    .body(ErrorCode.ERR001.getMessage(previewLanguage));
+        }
+
+        long maxBytes = appConfig.getUploadMaxFileSize().toBytes();
+        if (request.getContentLengthLong() > maxBytes) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body("File exceeds the maximum upload size of " + maxBytes + " bytes.");
+        }
+
+        // Without a Content-Length nothing is reserved, the write is recorded afterwards
+        long reservedBytes = Math.max(request.getContentLengthLong(), 0);
+        if (!tempfileSweeper.tryReserve(reservedBytes)) {
+            return insufficientStorage();
+        }
+
+        TempInvoice temporaryInvoice = new TempInvoice(appConfig);
+
+        try (InputStream body = request.getInputStream()) {
+            temporaryInvoice.setFile(body, filename, maxBytes);
+        } catch (UploadRejectedException e) {
+            tempfileSweeper.release(reservedBytes);
+            return uploadRejected(e);
+        } catch (IOException e) {
+            tempfileSweeper.release(reservedBytes);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to create temporary files: " + e.getMessage());
+        }
+
+        return processUpload(temporaryInvoice, previewLanguage, reservedBytes);
+    }
+
+    /**
+     * Starts a resumable upload. The file is then sent in chunks of at most the returned chunk size
+     * to PUT /upload/chunked/{uploadId}?offset=..., each appended at the given offset. After an
+     * interruption GET /upload/chunked/{uploadId} returns the offset to continue from.
+     * POST /upload/chunked/{uploadId}/complete processes the file like a streamed upload.
+     */
+    @PostMapping("/upload/chunked")
+    public ResponseEntity<?> startChunkedUpload(
+            @RequestParam("filename") String filename,
+            @RequestParam(value = "size", defaultValue = "-1") long size,
+            @RequestParam("contentType") String contentType) {
+
+        if (!isSupportedContentType(contentType)) {
+            return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE)
+                    .body(ErrorCode.ERR001.getMessage());
+        }
+
+        if (!tempfileSweeper.hasCapacityFor(size)) {
+            return insufficientStorage();
+        }
+
+        UUID uploadId;
+        try {
+            uploadId = chunkedUploadService.start(filename, size);
+        } catch (UploadRejectedException e) {
+            return uploadRejected(e);
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to create temporary files: " + e.getMessage());
+        }
+
+        Map<String, Object> responseBody = new HashMap<>();
+        responseBody.put("uploadId", uploadId);
+        responseBody.put("offset", 0L);
+        responseBody.put("chunkSize", appConfig.getUploadChunkSize().toBytes());
+        return ResponseEntity.ok(responseBody);
+    }
+
+    @GetMapping("/upload/chunked/{uploadId}")
+    public ResponseEntity<?> getChunkedUploadOffset(@PathVariable String uploadId) {
+        UUID id;
+        try {
+            id = UUID.fromString(uploadId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid upload ID format: " + e.getMessage());
+        }
+
+        try {
+            return ResponseEntity.ok(Map.of("uploadId", id, "offset", chunkedUploadService.getOffset(id)));
+        } catch (UploadRejectedException e) {
+            return uploadRejected(e);
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to read the upload: " + e.getMessage());
+        }
+    }
+
+    @PutMapping("/upload/chunked/{uploadId}")
+    public ResponseEntity<?> appendChunk(
+            @PathVariable String uploadId,
+            @RequestParam("offset") long offset,
+            HttpServletRequest request) {
+        UUID id;
+        try {
+            id = UUID.fromString(uploadId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid upload ID format: " + e.getMessage());
+        }
+
+        long chunkSize = appConfig.getUploadChunkSize().toBytes();
+        long contentLength = request.getContentLengthLong();
+        if (contentLength < 0) {
+            return ResponseEntity.status(HttpStatus.LENGTH_REQUIRED)
+                    .body("Chunks must be sent with a Content-Length.");
+        }
+        if (contentLength > chunkSize) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body("Chunk exceeds the maximum chunk size of " + chunkSize + " bytes.");
+        }
+
+        if (!tempfileSweeper.tryReserve(contentLength)) {
+            return insufficientStorage();
+        }
+
+        try (InputStream body = request.getInputStream()) {
+            long newOffset = chunkedUploadService.append(id, offset, body);
+            return ResponseEntity.ok(Map.of("uploadId", id, "offset", newOffset));
+        } catch (UploadRejectedException e) {
+            tempfileSweeper.release(contentLength);
+            return uploadRejected(e);
+        } catch (IOException e) {
+            tempfileSweeper.release(contentLength);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to write the chunk: " + e.getMessage());
+        }
+    }
+
+    @PostMapping("/upload/chunked/{uploadId}/complete")
+    public ResponseEntity<?> completeChunkedUpload(
+            @PathVariable String uploadId,
+            @RequestParam(value = "fileHash", required = false) String fileHash,
+            @RequestParam(value = "language", required = false) String language) {
+        UUID id;
+        try {
+            id = UUID.fromString(uploadId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid upload ID format: " + e.getMessage());
+        }
+
+        String previewLanguage = XRechnungTransformer.resolveLanguage(language);
+
+        TempInvoice temporaryInvoice = new TempInvoice(appConfig);
+
+        try {
+            ChunkedUploadService.CompletedUpload upload = chunkedUploadService.complete(id, fileHash);
+            try {
+                temporaryInvoice.setFile(upload.partFile(), upload.result());
+            } catch (IOException e) {
+                Files.deleteIfExists(upload.partFile());
+                throw e;
+            }
+        } catch (UploadRejectedException e) {
+            return uploadRejected(e);
+        } catch (IOException e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("Failed to create temporary files: " + e.getMessage());
         }
 
+        // Every chunk reserved its bytes when it was appended
+        return processUpload(temporaryInvoice, previewLanguage, temporaryInvoice.getFileSize());
+    }
+
+    @DeleteMapping("/upload/chunked/{uploadId}")
+    public ResponseEntity<?> abortChunkedUpload(@PathVariable String uploadId) {
+        UUID id;
+        try {
+            id = UUID.fromString(uploadId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid upload ID format: " + e.getMessage());
+        }
+
+        try {
+            chunkedUploadService.abort(id);
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to delete the upload: " + e.getMessage());
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    // Uploads first, then hot folder invoices waiting for review
+    private TempInvoice findPending(UUID invoiceId) {
+        TempInvoice invoice = cache.get(invoiceId);
+        return invoice != null ? invoice : reviewInvoiceStore.get(invoiceId);
+    }
+
+    private ResponseEntity<?> processUpload(TempInvoice temporaryInvoice, String language, long reservedBytes) {
+        // The reservation was made for the announced size, account for the actual one
+        tempfileSweeper.recordWrite(temporaryInvoice.getFileSize() - reservedBytes);
+        temporaryInvoice.setLanguage(language);
         try {
-            temporaryInvoice.process();
-        } catch (ParserException | IOException | TransformationException | IllegalArgumentException e) {
+            temporaryInvoice.process(processingScheduler, WorkloadClass.INTERACTIVE);
+        } catch (UnsupportedFormatException e) {
+            temporaryInvoice.deleteTempFiles();
+            return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE)
+                    .body(e.getMessage());
+        } catch (CancellationException e) {
+            temporaryInvoice.deleteTempFiles();
+            return processingCancelled();
+        } catch (ParserException | IOException | TransformationException | IllegalArgumentException | IllegalStateException e) {
+            ResourceLimitExceededException limitExceeded = CauseRetriever.findCause(e, ResourceLimitExceededException.class);
+            if (limitExceeded != null) {
+                temporaryInvoice.deleteTempFiles();
+                return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY)
+                        .body(limitExceeded.getMessage());
+            }
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("Error processing invoice: " + CauseRetriever.getRootCause(e));
         }
+        if (temporaryInvoice.getTempGeneratedFilePath() != null) {
+            tempfileSweeper.recordWrite(temporaryInvoice.getTempGeneratedFilePath().toFile().length());
+        }
 
         cache.put(temporaryInvoice);
+        auditJournal.record(AuditAction.UPLOADED, temporaryInvoice.getInvoiceId(), temporaryInvoice.getFileHash(),
+                "fileFormat=" + temporaryInvoice.getFileFormat() + " fileSize=" + temporaryInvoice.getFileSize()
+                + " source=upload");
   
         Map<String, Object> responseBody = temporaryInvoice.prepareJSONResponse(invoiceDao); 
+        // Same invoice stored before in another format or export, flagged for the user to decide
+        responseBody.put("possibleDuplicates", duplicateIndex
+                .findNearDuplicates(temporaryInvoice.getKeyInformation(), temporaryInvoice.getInvoiceId()).stream()
+                .map(invoice -> {
+                    Map<String, Object> duplicate = new HashMap<>();
+                    duplicate.put("invoiceId", invoice.getInvoiceId());
+                    duplicate.put("fileFormat", invoice.getFileFormat());
+                    duplicate.put("sellerName", invoice.getSellerName());
+                    duplicate.put("invoiceReference", invoice.getInvoiceReference());
+                    duplicate.put("issuedDate", invoice.getIssuedDate());
+                    duplicate.put("totalSum", invoice.getTotalSum());
+                    return duplicate;
+                })
+                .toList());
         return ResponseEntity.ok(responseBody);
     }
 
+    private static ResponseEntity<?> uploadRejected(UploadRejectedException e) {
+        HttpStatus status = switch (e.getReason()) {
+            case TOO_LARGE -> HttpStatus.PAYLOAD_TOO_LARGE;
+            case INVALID_CONTENT -> HttpStatus.UNSUPPORTED_MEDIA_TYPE;
+            case OFFSET_MISMATCH -> HttpStatus.CONFLICT;
+            case UNKNOWN_UPLOAD -> HttpStatus.NOT_FOUND;
+            case HASH_MISMATCH -> HttpStatus.UNPROCESSABLE_ENTITY;
+        };
+        return ResponseEntity.status(status).body(e.getMessage());
+    }
+
+    private static ResponseEntity<?> insufficientStorage() {
+        return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE)
+                .body("Not enough storage space for temporary files. Please retry later.");
+    }
+
+    // Waiting for a processing slot was cancelled, e.g. on shutdown, the request can be repeated
+    private static ResponseEntity<?> processingCancelled() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "5")
+                .body("Processing was cancelled. Please retry later.");
+    }
+
+    private static boolean isSupportedContentType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        // Ignore parameters like "; charset=UTF-8"
+        String mimeType = contentType.split(";")[0].trim();
+        return mimeType.equals("application/pdf") ||
+               mimeType.equals("application/xml") ||
+               mimeType.equals("text/xml");
+    }
+
+    /**
+     * Bulk pre-check before uploading: takes a JSON array of SHA-256 file hashes, as computed by the
+     * browser with Web Crypto, and answers which of them are already stored. Known files can skip
+     * the upload and processing entirely.
+     */
+    @PostMapping("/upload/known-hashes")
+    public ResponseEntity<?> checkKnownHashes(@RequestBody List<String> fileHashes) {
+        if (fileHashes.size() > appConfig.getUploadPrecheckMaxHashes()) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body("At most " + appConfig.getUploadPrecheckMaxHashes() + " hashes per request.");
+        }
+
+        Set<String> requested = new LinkedHashSet<>();
+        for (String fileHash : fileHashes) {
+            String normalized = fileHash != null ? fileHash.toLowerCase(Locale.ROOT) : null;
+            if (!FormatDetector.isFileHash(normalized)) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body("Invalid file hash, expected hex " + FormatDetector.FILE_HASH_ALGORITHM + ": " + fileHash);
+            }
+            requested.add(normalized);
+        }
+
+        Set<String> known = invoiceDao.findExistingFileHashes(requested);
+        List<String> unknown = requested.stream().filter(fileHash -> !known.contains(fileHash)).toList();
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("algorithm", FormatDetector.FILE_HASH_ALGORITHM);
+        response.put("known", known);
+        response.put("unknown", unknown);
+        return ResponseEntity.ok(response);
+    }
+
     @PostMapping("/persist")
     @ResponseBody
     public ResponseEntity<?> persistInvoice(
@@ -84,7 +460,7 @@ public class FileController {
                     .body("Invalid invoice ID format: " + e.getMessage());
         }
 
-        TempInvoice invoice = cache.get(invoiceId);
+        TempInvoice invoice = findPending(invoiceId);
         if (invoice == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND)
                     .body("Invoice not in cache. Try to upload/import the file again.");
@@ -100,17 +476,60 @@ public class FileController {
             }
         }
 
+        InvoiceEntity invoiceEntity;
         try {
-            invoice.persist(invoiceDao);
+            invoiceEntity = invoice.persist(invoiceDao, invoiceArchive);
         } catch (IOException e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("Failed to persist invoice: " + e.getMessage());
         }
 
+        eventPublisher.publishEvent(new InvoicePersistedEvent(invoice, invoiceEntity));
+
         return ResponseEntity.ok().build();
     }
 
 
+    /**
+     * The PDF of a pending invoice in another language than it was uploaded with. Rendered from the
+     * parsed invoice, the file is not processed again.
+     */
+    @GetMapping("/preview")
+    public ResponseEntity<?> previewInvoice(
+            @RequestParam("invoiceId") String id,
+            @RequestParam("language") String language) {
+        UUID invoiceId;
+        try {
+            invoiceId = UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            // Handle invalid UUID
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid invoice ID format: " + e.getMessage());
+        }
+
+        String previewLanguage = XRechnungTransformer.resolveLanguage(language);
+
+        TempInvoice invoice = findPending(invoiceId);
+        if (invoice == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body("Invoice not in cache. Try to upload/import the file again.");
+        }
+
+        Path file;
+        try {
+            file = languageVariants.getVariant(invoice, previewLanguage);
+        } catch (CancellationException e) {
+            return processingCancelled();
+        } catch (IOException | ParserException | TransformationException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Error rendering invoice: " + CauseRetriever.getRootCause(e));
+        }
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_PDF)
+                .body(new FileSystemResource(file));
+    }
+
     @PostMapping("/print")
     public ResponseEntity<?> printInvoice(@RequestParam("invoiceId") String id) {
         UUID invoiceId;
@@ -122,7 +541,7 @@ public class FileController {
                     .body("Invalid invoice ID format.");
         }
 
-        TempInvoice invoice = cache.get(invoiceId);
+        TempInvoice invoice = findPending(invoiceId);
         if (invoice == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND)
                 .body("Invoice not in cache. Try to upload/import the file again.");
@@ -134,6 +553,8 @@ public class FileController {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("Failed to print invoice: " + e.getMessage());
         }
+        auditJournal.record(AuditAction.PRINTED, invoiceId, invoice.getFileHash(),
+                "printer=" + appConfig.getPrinterIp() + ":" + appConfig.getPrinterPort());
 
         return ResponseEntity.ok().build();
     }
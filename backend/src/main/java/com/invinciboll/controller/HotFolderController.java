@@ -0,0 +1,41 @@
+package com.invinciboll.controller;
+
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.invinciboll.HotFolderIngestor;
+import com.invinciboll.database.InvoiceDao;
+
+@RestController
+@RequestMapping("/hotfolder")
+public class HotFolderController {
+
+    private final HotFolderIngestor hotFolderIngestor;
+    private final InvoiceDao invoiceDao;
+
+    @Autowired
+    public HotFolderController(HotFolderIngestor hotFolderIngestor, InvoiceDao invoiceDao) {
+        this.hotFolderIngestor = hotFolderIngestor;
+        this.invoiceDao = invoiceDao;
+    }
+
+    /**
+     * Fetch ingested invoices that need manual input. They are completed through /persist like
+     * regular uploads.
+     *
+     * @return ResponseEntity containing the pending invoices in the same format as /upload
+     */
+    @GetMapping("/review")
+    public ResponseEntity<List<Map<String, Object>>> getReviewQueue() {
+        List<Map<String, Object>> invoices = hotFolderIngestor.getReviewQueue().stream()
+                .map(invoice -> invoice.prepareJSONResponse(invoiceDao))
+                .toList();
+        return ResponseEntity.ok(invoices);
+    }
+}
@@ -1,24 +1,48 @@
 package com.invinciboll.controller;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.invinciboll.InvoiceArchive;
+import com.invinciboll.InvoiceFileCleaner;
+import com.invinciboll.InvoiceSearchIndex;
+import com.invinciboll.LanguageVariants;
+import com.invinciboll.ThumbnailService;
+import com.invinciboll.XRechnungTransformer;
 import com.invinciboll.configuration.AppConfig;
 import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.database.InvoiceTombstoneDao;
 import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.events.InvoicesDeletedEvent;
+import com.invinciboll.exceptions.CauseRetriever;
+import com.invinciboll.exceptions.ParserException;
+import com.invinciboll.exceptions.TransformationException;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
 import org.springframework.web.bind.annotation.PathVariable;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -29,11 +53,28 @@ public class InvoicesController {
 
     private final InvoiceDao invoiceDao;
     private final AppConfig appConfig;
+    private final ThumbnailService thumbnailService;
+    private final InvoiceArchive invoiceArchive;
+    private final LanguageVariants languageVariants;
+    private final InvoiceTombstoneDao tombstoneDao;
+    private final InvoiceFileCleaner invoiceFileCleaner;
+    private final ApplicationEventPublisher eventPublisher;
+    private final InvoiceSearchIndex searchIndex;
 
     @Autowired
-    public InvoicesController(InvoiceDao invoiceDao, AppConfig appConfig) {
+    public InvoicesController(InvoiceDao invoiceDao, AppConfig appConfig, ThumbnailService thumbnailService,
+            InvoiceArchive invoiceArchive, LanguageVariants languageVariants, InvoiceTombstoneDao tombstoneDao,
+            InvoiceFileCleaner invoiceFileCleaner, ApplicationEventPublisher eventPublisher,
+            InvoiceSearchIndex searchIndex) {
         this.invoiceDao = invoiceDao;
         this.appConfig = appConfig;
+        this.thumbnailService = thumbnailService;
+        this.invoiceArchive = invoiceArchive;
+        this.languageVariants = languageVariants;
+        this.tombstoneDao = tombstoneDao;
+        this.invoiceFileCleaner = invoiceFileCleaner;
+        this.eventPublisher = eventPublisher;
+        this.searchIndex = searchIndex;
     }
 
     /**
@@ -52,8 +93,57 @@ public class InvoicesController {
         }
     }
 
+    /**
+     * Full-text search over the contents of all invoices, best match first. "complete" is false
+     * while the index is still being built on startup.
+     */
+    @GetMapping("/search")
+    public ResponseEntity<?> searchInvoices(
+            @RequestParam("q") String query,
+            @RequestParam(value = "page", defaultValue = "0") int page,
+            @RequestParam(value = "size", defaultValue = "20") int size) {
+        if (query.isBlank()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Empty search query");
+        }
+        if (page < 0 || size < 1 || size > appConfig.getSearchMaxPageSize()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid paging: page must not be negative and size between 1 and " + appConfig.getSearchMaxPageSize());
+        }
+
+        InvoiceSearchIndex.Result result;
+        try {
+            result = searchIndex.search(query, page, size);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Error searching invoices: " + e.getMessage());
+        }
+
+        List<Map<String, Object>> hits = new ArrayList<>();
+        for (InvoiceSearchIndex.Hit hit : result.hits()) {
+            // Deleted since the index was last refreshed
+            InvoiceEntity invoice = invoiceDao.findById(hit.invoiceId());
+            if (invoice != null) {
+                Map<String, Object> entry = new HashMap<>();
+                entry.put("invoice", invoice);
+                entry.put("score", hit.score());
+                hits.add(entry);
+            }
+        }
+
+        Map<String, Object> responseBody = new HashMap<>();
+        responseBody.put("totalHits", result.totalHits());
+        responseBody.put("complete", result.complete());
+        responseBody.put("page", page);
+        responseBody.put("size", size);
+        responseBody.put("hits", hits);
+        return ResponseEntity.ok(responseBody);
+    }
+
     @GetMapping("/{invoiceId}")
-    public ResponseEntity<?> getInvoicePdf(@PathVariable String invoiceId) {
+    public ResponseEntity<?> getInvoicePdf(@PathVariable String invoiceId,
+            @RequestParam(value = "language", required = false) String language) {
         UUID invoiceUUID;
         try {
             invoiceUUID = UUID.fromString(invoiceId);
@@ -65,12 +155,34 @@ public class InvoicesController {
 
         InvoiceEntity invoice = invoiceDao.findById(invoiceUUID);
         if (invoice == null) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND)
-                    .body("Invoice not found in database");
-        };
+            return notFound(invoiceUUID);
+        }
+
+        // Other languages are rendered on request by the file endpoint
+        if (language != null && !language.isBlank()) {
+            String variantLanguage = XRechnungTransformer.resolveLanguage(language);
+            if (!variantLanguage.equals(XRechnungTransformer.getDefaultLanguage())) {
+                Map<String, Object> responseBody = new HashMap<>();
+                responseBody.put("fileUrl", "https://" + appConfig.getBackendHost() + "/invoices/" + invoiceUUID
+                        + "/file?language=" + variantLanguage);
+                return ResponseEntity.ok(responseBody);
+            }
+        }
+
+        // Only the output directory of the current year is served statically, files of earlier
+        // years and archived files go through the file endpoint
+        String savePath = invoice.getGeneratedFileSavePath();
+        if (InvoiceArchive.isArchived(savePath) || !Paths.get(savePath).startsWith(Paths.get(appConfig.getOutputDir()))) {
+            if (!invoiceArchive.exists(savePath)) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found or not readable");
+            }
+            Map<String, Object> responseBody = new HashMap<>();
+            responseBody.put("fileUrl", "https://" + appConfig.getBackendHost() + "/invoices/" + invoiceUUID + "/file");
+            return ResponseEntity.ok(responseBody);
+        }
 
-        String fileUrl = "https://" +  appConfig.getBackendHost() + "/" + invoice.getGeneratedFileSavePath();
-        Path path = Paths.get(invoice.getGeneratedFileSavePath());
+        String fileUrl = "https://" +  appConfig.getBackendHost() + "/" + savePath;
+        Path path = Paths.get(savePath);
 
         try {
             Resource resource = new UrlResource(path.toUri());
@@ -86,6 +198,203 @@ public class InvoicesController {
         return ResponseEntity.ok(responseBody);
     }
 
+    /**
+     * Fetch the generated PDF of an invoice, wherever it is stored. Archived files are extracted
+     * once and then served from the archive cache. With a language, the PDF in that language is
+     * served, rendered on first request.
+     */
+    @GetMapping("/{invoiceId}/file")
+    public ResponseEntity<?> getInvoiceFile(@PathVariable String invoiceId,
+            @RequestParam(value = "language", required = false) String language) {
+        UUID invoiceUUID;
+        try {
+            invoiceUUID = UUID.fromString(invoiceId);
+        } catch (IllegalArgumentException e) {
+            // Handle invalid UUID
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid invoice ID format: " + e.getMessage());
+        }
+
+        InvoiceEntity invoice = invoiceDao.findById(invoiceUUID);
+        if (invoice == null) {
+            return notFound(invoiceUUID);
+        }
+
+        if (language != null && !language.isBlank()) {
+            String variantLanguage = XRechnungTransformer.resolveLanguage(language);
+            if (!invoiceArchive.exists(invoice.getOriginalFileSavePath())) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found or not readable");
+            }
+            Path file;
+            try {
+                file = languageVariants.getVariant(invoice, variantLanguage);
+            } catch (CancellationException e) {
+                return processingCancelled();
+            } catch (IOException | ParserException | TransformationException e) {
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .body("Error rendering invoice: " + CauseRetriever.getRootCause(e));
+            }
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_PDF)
+                    .body(new FileSystemResource(file));
+        }
+
+        String savePath = invoice.getGeneratedFileSavePath();
+        if (!invoiceArchive.exists(savePath)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found or not readable");
+        }
+        Path file;
+        try {
+            file = invoiceArchive.resolve(savePath);
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error occurred while accessing the file: " + e.getMessage());
+        }
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_PDF)
+                .body(new FileSystemResource(file));
+    }
+
+    /**
+     * Fetch the first page preview of an invoice. Previews are generated in the background after
+     * persisting; a preview that is missing, e.g. evicted from the cache, is queued for rendering
+     * again and answered with 202 until it is available.
+     */
+    @GetMapping("/{invoiceId}/thumbnail")
+    public ResponseEntity<?> getInvoiceThumbnail(@PathVariable String invoiceId) {
+        UUID invoiceUUID;
+        try {
+            invoiceUUID = UUID.fromString(invoiceId);
+        } catch (IllegalArgumentException e) {
+            // Handle invalid UUID
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid invoice ID format: " + e.getMessage());
+        }
+
+        InvoiceEntity invoice = invoiceDao.findById(invoiceUUID);
+        if (invoice == null) {
+            return notFound(invoiceUUID);
+        }
+
+        Path thumbnail = thumbnailService.getThumbnail(invoice.getFileHash());
+        if (thumbnail == null) {
+            if (thumbnailService.regenerate(invoice)) {
+                return ResponseEntity.status(HttpStatus.ACCEPTED)
+                        .header(HttpHeaders.RETRY_AFTER, "2")
+                        .body("Thumbnail is being generated");
+            }
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body("Thumbnail not available");
+        }
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.IMAGE_PNG)
+                .body(new FileSystemResource(thumbnail));
+    }
+
+    /**
+     * Fetch the line items and VAT breakdown of an e-invoice
+     */
+    @GetMapping("/{invoiceId}/lines")
+    public ResponseEntity<?> getInvoiceLines(@PathVariable String invoiceId) {
+        UUID invoiceUUID;
+        try {
+            invoiceUUID = UUID.fromString(invoiceId);
+        } catch (IllegalArgumentException e) {
+            // Handle invalid UUID
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid invoice ID format: " + e.getMessage());
+        }
+
+        Map<String, Object> responseBody = new HashMap<>();
+        responseBody.put("lines", invoiceDao.findLinesByInvoiceId(invoiceUUID));
+        responseBody.put("vatBreakdown", invoiceDao.findVatBreakdownByInvoiceId(invoiceUUID));
+        return ResponseEntity.ok(responseBody);
+    }
+
+    /**
+     * Delete an invoice. Its files are removed in the background, the invoice is gone as soon as
+     * this returns.
+     */
+    @DeleteMapping("/{invoiceId}")
+    public ResponseEntity<?> deleteInvoice(@PathVariable String invoiceId) {
+        UUID invoiceUUID;
+        try {
+            invoiceUUID = UUID.fromString(invoiceId);
+        } catch (IllegalArgumentException e) {
+            // Handle invalid UUID
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid invoice ID format: " + e.getMessage());
+        }
+
+        List<InvoiceEntity> deleted = invoiceDao.deleteByIds(List.of(invoiceUUID));
+        if (deleted.isEmpty()) {
+            return notFound(invoiceUUID);
+        }
+        eventPublisher.publishEvent(new InvoicesDeletedEvent(deleted));
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Delete several invoices in one transaction, either all of them or none. Unknown ids are
+     * reported, not rejected, so a retried request succeeds. Files are removed in the background.
+     */
+    @PostMapping("/delete")
+    public ResponseEntity<?> deleteInvoices(@RequestBody List<String> invoiceIds) {
+        if (invoiceIds == null || invoiceIds.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("No invoice IDs given");
+        }
+        if (invoiceIds.size() > appConfig.getDeleteMaxBatchSize()) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body("At most " + appConfig.getDeleteMaxBatchSize() + " invoices can be deleted at once");
+        }
+
+        Set<UUID> invoiceUUIDs = new LinkedHashSet<>();
+        for (String invoiceId : invoiceIds) {
+            try {
+                invoiceUUIDs.add(UUID.fromString(invoiceId));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body("Invalid invoice ID format: " + invoiceId);
+            }
+        }
+
+        List<InvoiceEntity> deleted;
+        try {
+            deleted = invoiceDao.deleteByIds(invoiceUUIDs);
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Error deleting invoices: " + CauseRetriever.getRootCause(e));
+        }
+        if (!deleted.isEmpty()) {
+            eventPublisher.publishEvent(new InvoicesDeletedEvent(deleted));
+        }
+
+        List<UUID> notFound = new ArrayList<>(invoiceUUIDs);
+        notFound.removeAll(deleted.stream().map(InvoiceEntity::getInvoiceId).toList());
+
+        Map<String, Object> responseBody = new HashMap<>();
+        responseBody.put("deleted", deleted.size());
+        responseBody.put("notFound", notFound);
+        responseBody.put("pendingFileCleanup", invoiceFileCleaner.getStatistics().get("pending"));
+        return ResponseEntity.ok(responseBody);
+    }
+
+    // Deleted invoices are told apart from ones that never existed as long as their tombstone is kept
+    private ResponseEntity<?> notFound(UUID invoiceId) {
+        if (tombstoneDao.findById(invoiceId) != null) {
+            return ResponseEntity.status(HttpStatus.GONE).body("Invoice has been deleted");
+        }
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Invoice not found in database");
+    }
+
+    // Waiting for a processing slot was cancelled, e.g. on shutdown, the request can be repeated
+    private static ResponseEntity<?> processingCancelled() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "5")
+                .body("Processing was cancelled. Please retry later.");
+    }
+
     @GetMapping("/sellers")
     public ResponseEntity<?> getSellers() {
         List<String> sellers = invoiceDao.findDistinctSellers();
@@ -1,6 +1,7 @@
 package com.invinciboll.controller;
 
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
@@ -8,7 +9,12 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.invinciboll.InvoiceFileCleaner;
+import com.invinciboll.PipelineWarmup;
+import com.invinciboll.ProcessingScheduler;
+import com.invinciboll.TempfileSweeper;
 import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.CachingInvoiceDao;
 import com.invinciboll.database.InvoiceDao;
 
 @RestController
@@ -17,11 +23,23 @@ public class MetaController {
 
     private final InvoiceDao invoiceDao;
     private final AppConfig appConfig;
+    private final TempfileSweeper tempfileSweeper;
+    private final ProcessingScheduler processingScheduler;
+    private final PipelineWarmup pipelineWarmup;
+    private final CachingInvoiceDao cachingInvoiceDao;
+    private final InvoiceFileCleaner invoiceFileCleaner;
 
     @Autowired
-    public MetaController(InvoiceDao invoiceDao, AppConfig appConfig) {
+    public MetaController(InvoiceDao invoiceDao, AppConfig appConfig, TempfileSweeper tempfileSweeper,
+            ProcessingScheduler processingScheduler, PipelineWarmup pipelineWarmup, CachingInvoiceDao cachingInvoiceDao,
+            InvoiceFileCleaner invoiceFileCleaner) {
         this.invoiceDao = invoiceDao;
         this.appConfig = appConfig;
+        this.tempfileSweeper = tempfileSweeper;
+        this.processingScheduler = processingScheduler;
+        this.pipelineWarmup = pipelineWarmup;
+        this.cachingInvoiceDao = cachingInvoiceDao;
+        this.invoiceFileCleaner = invoiceFileCleaner;
     }
 
     @GetMapping("/sellers")
@@ -30,4 +48,39 @@ public class MetaController {
         return ResponseEntity.ok(sellers);
     }
 
+    // Usage of the tempfiles directory and free disk space
+    @GetMapping("/storage")
+    public ResponseEntity<?> getStorage() {
+        Map<String, Object> statistics = tempfileSweeper.getStatistics();
+        return ResponseEntity.ok(statistics);
+    }
+
+    // Queue wait times and load of the processing scheduler per workload class
+    @GetMapping("/scheduler")
+    public ResponseEntity<?> getScheduler() {
+        Map<String, Object> statistics = processingScheduler.getStatistics();
+        return ResponseEntity.ok(statistics);
+    }
+
+    // Startup warm-up timings and time from JVM start until ready for fast requests
+    @GetMapping("/startup")
+    public ResponseEntity<?> getStartup() {
+        Map<String, Object> statistics = pipelineWarmup.getStatistics();
+        return ResponseEntity.ok(statistics);
+    }
+
+    // Hits and misses of the invoice lookup cache
+    @GetMapping("/invoice-cache")
+    public ResponseEntity<?> getInvoiceCache() {
+        Map<String, Object> statistics = cachingInvoiceDao.getStatistics();
+        return ResponseEntity.ok(statistics);
+    }
+
+    // Files of deleted invoices still to be removed and those given up after too many attempts
+    @GetMapping("/deletes")
+    public ResponseEntity<?> getDeletes() {
+        Map<String, Object> statistics = invoiceFileCleaner.getStatistics();
+        return ResponseEntity.ok(statistics);
+    }
+
 }
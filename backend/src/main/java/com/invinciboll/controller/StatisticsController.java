@@ -0,0 +1,68 @@
+package com.invinciboll.controller;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.invinciboll.database.InvoiceDao;
+
+@RestController
+@RequestMapping("/statistics")
+public class StatisticsController {
+
+    private final InvoiceDao invoiceDao;
+
+    @Autowired
+    public StatisticsController(InvoiceDao invoiceDao) {
+        this.invoiceDao = invoiceDao;
+    }
+
+    /**
+     * Spending per item of all e-invoices issued within a period (inclusive)
+     *
+     * @param name start of the item name, case insensitive
+     * @return ResponseEntity containing quantity and net amount per item and unit
+     */
+    @GetMapping("/items")
+    public ResponseEntity<?> getItemSpending(
+            @RequestParam("name") String name,
+            @RequestParam("from") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam("to") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        if (from.isAfter(to)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid period: 'from' must not be after 'to'");
+        }
+        if (name.isBlank()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Item name must not be empty");
+        }
+        List<Map<String, Object>> items = invoiceDao.sumLinesByItemName(name, from, to);
+        return ResponseEntity.ok(items);
+    }
+
+    /**
+     * VAT per month, category and rate of all e-invoices issued within a period (inclusive)
+     *
+     * @return ResponseEntity containing taxable and tax amounts per month, category and rate
+     */
+    @GetMapping("/vat")
+    public ResponseEntity<?> getVatPerMonth(
+            @RequestParam("from") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam("to") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        if (from.isAfter(to)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Invalid period: 'from' must not be after 'to'");
+        }
+        List<Map<String, Object>> vat = invoiceDao.sumVatByMonthAndRate(from, to);
+        return ResponseEntity.ok(vat);
+    }
+}
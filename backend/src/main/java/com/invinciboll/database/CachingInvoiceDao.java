@@ -0,0 +1,263 @@
+package com.invinciboll.database;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.entities.InvoiceLineEntity;
+import com.invinciboll.entities.VatBreakdownEntity;
+
+/**
+ * Read-through cache in front of InvoiceDaoImpl for the single invoice lookups by id and the
+ * duplicate check by file hash. Misses are cached as well, shorter, so polling for an unknown id
+ * does not hit the database either. Writes through this DAO invalidate the affected entries,
+ * writes of other nodes become visible once the entries expire. Everything else is passed through.
+ *
+ * <p>Entities are mutable, so the cache hands out copies.
+ */
+public class CachingInvoiceDao implements InvoiceDao {
+
+    private final InvoiceDao delegate;
+    private final Cache<UUID, Optional<InvoiceEntity>> byId;
+    private final Cache<String, Boolean> existsByHash;
+
+    public CachingInvoiceDao(InvoiceDao delegate, AppConfig appConfig) {
+        this.delegate = delegate;
+        this.byId = Caffeine.newBuilder()
+                .maximumSize(appConfig.getInvoiceCacheMaximumSize())
+                .expireAfter(new HitOrMissExpiry<UUID, Optional<InvoiceEntity>>(appConfig, Optional::isPresent))
+                .recordStats()
+                .build();
+        this.existsByHash = Caffeine.newBuilder()
+                .maximumSize(appConfig.getInvoiceCacheMaximumSize())
+                .expireAfter(new HitOrMissExpiry<String, Boolean>(appConfig, Boolean::booleanValue))
+                .recordStats()
+                .build();
+    }
+
+    // Found entries live for expire-after, misses for negative-expire-after
+    private static class HitOrMissExpiry<K, V> implements Expiry<K, V> {
+        private final long hitNanos;
+        private final long missNanos;
+        private final Predicate<V> isHit;
+
+        private HitOrMissExpiry(AppConfig appConfig, Predicate<V> isHit) {
+            this.hitNanos = appConfig.getInvoiceCacheExpireAfter().toNanos();
+            this.missNanos = appConfig.getInvoiceCacheNegativeExpireAfter().toNanos();
+            this.isHit = isHit;
+        }
+
+        @Override
+        public long expireAfterCreate(K key, V value, long currentTime) {
+            return isHit.test(value) ? hitNanos : missNanos;
+        }
+
+        @Override
+        public long expireAfterUpdate(K key, V value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(K key, V value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+    @Override
+    public void save(InvoiceEntity invoice) {
+        delegate.save(invoice);
+        invalidate(invoice.getInvoiceId(), invoice.getFileHash());
+    }
+
+    @Override
+    public void save(InvoiceEntity invoice, List<InvoiceLineEntity> lines, List<VatBreakdownEntity> vatBreakdown) {
+        delegate.save(invoice, lines, vatBreakdown);
+        invalidate(invoice.getInvoiceId(), invoice.getFileHash());
+    }
+
+    @Override
+    public void update(InvoiceEntity invoice) {
+        // The hash may have changed, the old one is only known from the cached entity
+        Optional<InvoiceEntity> cached = byId.getIfPresent(invoice.getInvoiceId());
+        delegate.update(invoice);
+        if (cached != null && cached.isPresent()) {
+            existsByHash.invalidate(cached.get().getFileHash());
+        }
+        invalidate(invoice.getInvoiceId(), invoice.getFileHash());
+    }
+
+    @Override
+    public InvoiceEntity findById(UUID invoiceId) {
+        return byId.get(invoiceId, id -> Optional.ofNullable(delegate.findById(id)))
+                .map(CachingInvoiceDao::copy)
+                .orElse(null);
+    }
+
+    @Override
+    public void deleteById(UUID invoiceId) {
+        InvoiceEntity invoice = findById(invoiceId);
+        delegate.deleteById(invoiceId);
+        invalidate(invoiceId, invoice != null ? invoice.getFileHash() : null);
+    }
+
+    @Override
+    public List<InvoiceEntity> deleteByIds(Collection<UUID> invoiceIds) {
+        List<InvoiceEntity> deleted = delegate.deleteByIds(invoiceIds);
+        for (InvoiceEntity invoice : deleted) {
+            invalidate(invoice.getInvoiceId(), invoice.getFileHash());
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean existsByFileHash(String fileHash) {
+        if (fileHash == null) {
+            return delegate.existsByFileHash(null);
+        }
+        return existsByHash.get(fileHash, delegate::existsByFileHash);
+    }
+
+    private void invalidate(UUID invoiceId, String fileHash) {
+        byId.invalidate(invoiceId);
+        if (fileHash != null) {
+            existsByHash.invalidate(fileHash);
+        }
+    }
+
+    /**
+     * Hit and miss counts of both caches. Hits include cached misses.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("byId", toMap(byId.stats(), byId.estimatedSize()));
+        statistics.put("byFileHash", toMap(existsByHash.stats(), existsByHash.estimatedSize()));
+        return statistics;
+    }
+
+    private static Map<String, Object> toMap(CacheStats stats, long size) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("size", size);
+        map.put("hitCount", stats.hitCount());
+        map.put("missCount", stats.missCount());
+        map.put("hitRate", stats.hitRate());
+        map.put("evictionCount", stats.evictionCount());
+        map.put("averageLoadMillis", stats.averageLoadPenalty() / 1_000_000.0);
+        return map;
+    }
+
+    private static InvoiceEntity copy(InvoiceEntity invoice) {
+        InvoiceEntity copy = new InvoiceEntity(invoice.getInvoiceId(), invoice.getFileHash(),
+                invoice.getOriginalFileSavePath(), invoice.getGeneratedFileSavePath(), invoice.getFileFormat(),
+                invoice.getXmlFormat(), invoice.getSellerName(), invoice.getInvoiceReference(),
+                invoice.getInvoiceTypeCode(), invoice.getIssuedDate(), invoice.getTotalSum());
+        copy.setStylesheetVersion(invoice.getStylesheetVersion());
+        return copy;
+    }
+
+    // Not cached
+
+    @Override
+    public List<InvoiceEntity> findAll() {
+        return delegate.findAll();
+    }
+
+    @Override
+    public List<InvoiceEntity> findAfter(UUID afterInvoiceId, int limit) {
+        return delegate.findAfter(afterInvoiceId, limit);
+    }
+
+    @Override
+    public Set<String> findExistingFileHashes(Collection<String> fileHashes) {
+        return delegate.findExistingFileHashes(fileHashes);
+    }
+
+    @Override
+    public List<InvoiceEntity> findByFileHashLength(int length, UUID afterInvoiceId, int limit) {
+        return delegate.findByFileHashLength(length, afterInvoiceId, limit);
+    }
+
+    @Override
+    public List<InvoiceEntity> findBySemanticFingerprint(String semanticFingerprint) {
+        return delegate.findBySemanticFingerprint(semanticFingerprint);
+    }
+
+    @Override
+    public Set<String> findExistingSemanticFingerprints(Collection<String> semanticFingerprints) {
+        return delegate.findExistingSemanticFingerprints(semanticFingerprints);
+    }
+
+    @Override
+    public void streamSemanticFingerprints(Consumer<String> consumer) {
+        delegate.streamSemanticFingerprints(consumer);
+    }
+
+    @Override
+    public List<InvoiceEntity> findBySemanticFingerprintIsNull(UUID afterInvoiceId, int limit) {
+        return delegate.findBySemanticFingerprintIsNull(afterInvoiceId, limit);
+    }
+
+    @Override
+    public boolean updateSemanticFingerprintIfNull(UUID invoiceId, String semanticFingerprint) {
+        boolean updated = delegate.updateSemanticFingerprintIfNull(invoiceId, semanticFingerprint);
+        byId.invalidate(invoiceId);
+        return updated;
+    }
+
+    @Override
+    public List<String> findDistinctSellers() {
+        return delegate.findDistinctSellers();
+    }
+
+    @Override
+    public void streamByIssuedDateBetween(LocalDate from, LocalDate to, Consumer<InvoiceEntity> consumer) {
+        delegate.streamByIssuedDateBetween(from, to, consumer);
+    }
+
+    @Override
+    public List<InvoiceEntity> findByStylesheetVersionNot(String stylesheetVersion, UUID afterInvoiceId, int limit) {
+        return delegate.findByStylesheetVersionNot(stylesheetVersion, afterInvoiceId, limit);
+    }
+
+    @Override
+    public List<InvoiceEntity> findBySavePathPrefix(String pathPrefix) {
+        return delegate.findBySavePathPrefix(pathPrefix);
+    }
+
+    @Override
+    public void saveLineItems(UUID invoiceId, List<InvoiceLineEntity> lines, List<VatBreakdownEntity> vatBreakdown) {
+        delegate.saveLineItems(invoiceId, lines, vatBreakdown);
+    }
+
+    @Override
+    public List<InvoiceLineEntity> findLinesByInvoiceId(UUID invoiceId) {
+        return delegate.findLinesByInvoiceId(invoiceId);
+    }
+
+    @Override
+    public List<VatBreakdownEntity> findVatBreakdownByInvoiceId(UUID invoiceId) {
+        return delegate.findVatBreakdownByInvoiceId(invoiceId);
+    }
+
+    @Override
+    public List<Map<String, Object>> sumLinesByItemName(String itemNamePrefix, LocalDate from, LocalDate to) {
+        return delegate.sumLinesByItemName(itemNamePrefix, from, to);
+    }
+
+    @Override
+    public List<Map<String, Object>> sumVatByMonthAndRate(LocalDate from, LocalDate to) {
+        return delegate.sumVatByMonthAndRate(from, to);
+    }
+}
@@ -0,0 +1,189 @@
+package com.invinciboll.database;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Group commit of inserts: concurrent writers hand their rows to a single writer thread, which
+ * inserts everything that arrived within the flush interval (up to the batch size) as one JDBC
+ * batch in one transaction. Writers block until the transaction of their row has committed, so
+ * a returned write is as durable as a single insert, only the commit is shared.
+ *
+ * <p>Rows that belong to the inserted ones (e.g. line items) can be written by the optional
+ * dependent writes, within the same transaction.
+ *
+ * <p>If a batch fails, its rows are retried one by one, so a single bad row only fails its own
+ * writer.
+ */
+class GroupCommitWriter<T> {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    private record PendingWrite<T>(T row, CompletableFuture<Void> committed) {
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final String sql;
+    private final ParameterizedPreparedStatementSetter<T> setter;
+    private final Consumer<List<T>> dependentWrites;
+    private final int maxBatchSize;
+    private final long flushIntervalNanos;
+
+    private final BlockingQueue<PendingWrite<T>> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    GroupCommitWriter(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, String sql,
+            ParameterizedPreparedStatementSetter<T> setter, int maxBatchSize, Duration flushInterval) {
+        this(jdbcTemplate, transactionTemplate, sql, setter, null, maxBatchSize, flushInterval);
+    }
+
+    GroupCommitWriter(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, String sql,
+            ParameterizedPreparedStatementSetter<T> setter, Consumer<List<T>> dependentWrites,
+            int maxBatchSize, Duration flushInterval) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.sql = sql;
+        this.setter = setter;
+        this.dependentWrites = dependentWrites;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.writerThread = new Thread(this::run, "group-commit-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Inserts the row with the next batch and waits until it is committed.
+     */
+    void write(T row) {
+        if (closed) {
+            throw new IllegalStateException("Batch writer is closed");
+        }
+        PendingWrite<T> write = new PendingWrite<>(row, new CompletableFuture<>());
+        queue.add(write);
+        // Not interruptible: a caller must never give up on a row that may still be committed
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    write.committed().get(1, TimeUnit.SECONDS);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (TimeoutException e) {
+                    // Queued after the writer thread stopped on shutdown
+                    if (!writerThread.isAlive() && !write.committed().isDone()) {
+                        throw new IllegalStateException("Batch writer is closed");
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException runtimeException) {
+                        throw runtimeException;
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Writes what is queued and stops the writer thread.
+     */
+    void close() {
+        // Not interrupted, H2 closes its file channel when a thread is interrupted during I/O
+        closed = true;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<PendingWrite<T>> batch = new ArrayList<>(maxBatchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                PendingWrite<T> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                collect(batch);
+            } catch (InterruptedException e) {
+                // Nothing interrupts this thread on purpose, write what is queued and stop
+                logger.warn("Batch writer interrupted, writing {} queued inserts", queue.size());
+                closed = true;
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    // Rows arriving within the flush interval after the first one join its batch
+    private void collect(List<PendingWrite<T>> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + flushIntervalNanos;
+        while (batch.size() < maxBatchSize) {
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatchSize || remaining <= 0 || closed) {
+                return;
+            }
+            PendingWrite<T> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void flush(List<PendingWrite<T>> batch) {
+        List<T> rows = batch.stream().map(PendingWrite::row).toList();
+        try {
+            transactionTemplate.executeWithoutResult(status -> insert(rows));
+            batch.forEach(write -> write.committed().complete(null));
+            return;
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).committed().completeExceptionally(e);
+                return;
+            }
+            logger.warn("Batch of {} inserts failed, retrying them one by one: {}", batch.size(), e.getMessage());
+        }
+
+        for (PendingWrite<T> write : batch) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> insert(List.of(write.row())));
+                write.committed().complete(null);
+            } catch (RuntimeException e) {
+                write.committed().completeExceptionally(e);
+            }
+        }
+    }
+
+    private void insert(List<T> rows) {
+        jdbcTemplate.batchUpdate(sql, rows, rows.size(), setter);
+        if (dependentWrites != null) {
+            dependentWrites.accept(rows);
+        }
+    }
+}
@@ -1,17 +1,64 @@
 package com.invinciboll.database;
 
 import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.entities.InvoiceLineEntity;
+import com.invinciboll.entities.VatBreakdownEntity;
 
+import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 public interface InvoiceDao {
     void save(InvoiceEntity invoice);
+    // Inserts the invoice together with its line items and VAT breakdown, in one transaction
+    void save(InvoiceEntity invoice, List<InvoiceLineEntity> lines, List<VatBreakdownEntity> vatBreakdown);
+    void update(InvoiceEntity invoice);
     InvoiceEntity findById(UUID invoiceId);
     List<InvoiceEntity> findAll();
+    // All invoices ordered by id and starting after the given id (null = from the start)
+    List<InvoiceEntity> findAfter(UUID afterInvoiceId, int limit);
     void deleteById(UUID invoiceId);
+    // Deletes the invoices with their line items in one transaction and records a tombstone for each, returns the deleted ones
+    List<InvoiceEntity> deleteByIds(Collection<UUID> invoiceIds);
 
     boolean existsByFileHash(String fileHash);
+    // The given hashes that are stored for at least one invoice
+    Set<String> findExistingFileHashes(Collection<String> fileHashes);
+    // Invoices whose file hash has the given length, ordered by id and starting after the given id (null = from the start)
+    List<InvoiceEntity> findByFileHashLength(int length, UUID afterInvoiceId, int limit);
+
+    // Near-duplicates, see KeyInformation.semanticFingerprint
+    List<InvoiceEntity> findBySemanticFingerprint(String semanticFingerprint);
+    // The given fingerprints that are stored for at least one invoice
+    Set<String> findExistingSemanticFingerprints(Collection<String> semanticFingerprints);
+    void streamSemanticFingerprints(Consumer<String> consumer);
+    // Invoices stored before the fingerprint was recorded, or with incomplete key information
+    List<InvoiceEntity> findBySemanticFingerprintIsNull(UUID afterInvoiceId, int limit);
+    // Sets only the fingerprint and only if none is stored yet, returns whether the row was updated
+    boolean updateSemanticFingerprintIfNull(UUID invoiceId, String semanticFingerprint);
     List<String> findDistinctSellers();
 
+    // Passes each invoice issued within [from, to] to the consumer without collecting them first
+    void streamByIssuedDateBetween(LocalDate from, LocalDate to, Consumer<InvoiceEntity> consumer);
+
+    // E-invoices not rendered with the given stylesheet version, ordered by id and starting after the given id (null = from the start)
+    List<InvoiceEntity> findByStylesheetVersionNot(String stylesheetVersion, UUID afterInvoiceId, int limit);
+
+    // Invoices with an original or generated file below the given path prefix
+    List<InvoiceEntity> findBySavePathPrefix(String pathPrefix);
+
+    // Replaces the line items and VAT breakdown of an invoice, written in JDBC batches
+    void saveLineItems(UUID invoiceId, List<InvoiceLineEntity> lines, List<VatBreakdownEntity> vatBreakdown);
+    List<InvoiceLineEntity> findLinesByInvoiceId(UUID invoiceId);
+    List<VatBreakdownEntity> findVatBreakdownByInvoiceId(UUID invoiceId);
+
+    // Quantity and net amount per item whose name starts with the given prefix (case insensitive), issued within [from, to]
+    List<Map<String, Object>> sumLinesByItemName(String itemNamePrefix, LocalDate from, LocalDate to);
+    // Taxable and tax amount per month, VAT category and rate, issued within [from, to]
+    List<Map<String, Object>> sumVatByMonthAndRate(LocalDate from, LocalDate to);
+
 }
@@ -1,31 +1,116 @@
 package com.invinciboll.database;
 
+import com.invinciboll.configuration.AppConfig;
 import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.entities.InvoiceLineEntity;
+import com.invinciboll.entities.VatBreakdownEntity;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.annotation.PreDestroy;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 @Repository
 public class InvoiceDaoImpl implements InvoiceDao {
 
+    private static final int BATCH_SIZE = 500;
+
+    private static final String INSERT_SQL = "INSERT INTO InvoiceEntity (invoice_id, file_hash, original_file_save_path, " +
+            "generated_file_save_path, file_format, xml_format, seller_name, invoice_reference, invoice_type_code, " +
+            "issued_date, total_sum, stylesheet_version, semantic_fingerprint) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_LINE_SQL = "INSERT INTO InvoiceLine (invoice_id, line_number, line_identifier, " +
+            "item_name, item_name_key, quantity, unit_code, net_amount, vat_category_code, vat_rate, issued_date) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_VAT_SQL = "INSERT INTO InvoiceVatBreakdown (invoice_id, breakdown_number, " +
+            "vat_category_code, vat_rate, taxable_amount, tax_amount, issued_date) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    // Amounts of credit notes are stored as stated and reduce the totals: the credit note type codes
+    // of EN 16931 (UNTDID 1001) and UBL CreditNote documents, whatever code they carry
+    private static final String CREDIT_NOTE_SIGN = "CASE WHEN e.invoice_type_code IN " +
+            "(81, 83, 261, 262, 296, 308, 381, 396, 420, 458, 532) OR e.xml_format = 'UBL_CREDIT_NOTE' THEN -1 ELSE 1 END";
+
     private final JdbcTemplate jdbcTemplate;
+    private final InvoiceTombstoneDao tombstoneDao;
+    // Inserts of concurrent persists share one JDBC batch and commit
+    private final GroupCommitWriter<InvoiceWrite> insertWriter;
+
+    private record InvoiceWrite(InvoiceEntity invoice, List<InvoiceLineEntity> lines, List<VatBreakdownEntity> vatBreakdown) {
+    }
 
-    public InvoiceDaoImpl(JdbcTemplate jdbcTemplate) {
+    public InvoiceDaoImpl(JdbcTemplate jdbcTemplate, InvoiceTombstoneDao tombstoneDao,
+            PlatformTransactionManager transactionManager, AppConfig appConfig) {
         this.jdbcTemplate = jdbcTemplate;
+        this.tombstoneDao = tombstoneDao;
+        this.insertWriter = new GroupCommitWriter<>(jdbcTemplate, new TransactionTemplate(transactionManager),
+                INSERT_SQL, (ps, write) -> {
+                    InvoiceEntity invoice = write.invoice();
+                    ps.setObject(1, invoice.getInvoiceId());
+                    ps.setString(2, invoice.getFileHash());
+                    ps.setString(3, invoice.getOriginalFileSavePath());
+                    ps.setString(4, invoice.getGeneratedFileSavePath());
+                    ps.setString(5, invoice.getFileFormat());
+                    ps.setString(6, invoice.getXmlFormat());
+                    ps.setString(7, invoice.getSellerName());
+                    ps.setString(8, invoice.getInvoiceReference());
+                    ps.setObject(9, invoice.getInvoiceTypeCode(), Types.INTEGER);
+                    ps.setObject(10, invoice.getIssuedDate());
+                    ps.setBigDecimal(11, invoice.getTotalSum());
+                    ps.setString(12, invoice.getStylesheetVersion());
+                    ps.setString(13, invoice.getSemanticFingerprint());
+                },
+                // Line items are committed together with their invoice
+                writes -> {
+                    insertLines(writes.stream().flatMap(write -> write.lines().stream()).toList());
+                    insertVatBreakdown(writes.stream().flatMap(write -> write.vatBreakdown().stream()).toList());
+                },
+                appConfig.getPersistBatchMaxSize(), appConfig.getPersistBatchFlushInterval());
+    }
+
+    @PreDestroy
+    public void close() {
+        insertWriter.close();
     }
 
+    /**
+     * Returns once the row is committed, together with the rows of concurrent callers.
+     */
     @Override
     public void save(InvoiceEntity invoice) {
-        String sql = "INSERT INTO InvoiceEntity (invoice_id, file_hash, original_file_save_path, generated_file_save_path, " +
-                     "file_format, xml_format, seller_name, invoice_reference, invoice_type_code, issued_date, total_sum) " +
-                     "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        save(invoice, List.of(), List.of());
+    }
+
+    @Override
+    public void save(InvoiceEntity invoice, List<InvoiceLineEntity> lines, List<VatBreakdownEntity> vatBreakdown) {
+        insertWriter.write(new InvoiceWrite(invoice, lines, vatBreakdown));
+    }
+
+    @Override
+    public void update(InvoiceEntity invoice) {
+        String sql = "UPDATE InvoiceEntity SET file_hash = ?, original_file_save_path = ?, generated_file_save_path = ?, " +
+                     "file_format = ?, xml_format = ?, seller_name = ?, invoice_reference = ?, invoice_type_code = ?, " +
+                     "issued_date = ?, total_sum = ?, stylesheet_version = ?, semantic_fingerprint = ? WHERE invoice_id = ?";
         jdbcTemplate.update(sql,
-                invoice.getInvoiceId(),
                 invoice.getFileHash(),
                 invoice.getOriginalFileSavePath(),
                 invoice.getGeneratedFileSavePath(),
@@ -35,13 +120,18 @@ public class InvoiceDaoImpl implements InvoiceDao {
                 invoice.getInvoiceReference(),
                 invoice.getInvoiceTypeCode(),
                 invoice.getIssuedDate(),
-                invoice.getTotalSum());
+                invoice.getTotalSum(),
+                invoice.getStylesheetVersion(),
+                invoice.getSemanticFingerprint(),
+                invoice.getInvoiceId());
     }
 
     @Override
     public InvoiceEntity findById(UUID invoiceId) {
         String sql = "SELECT * FROM InvoiceEntity WHERE invoice_id = ?";
-        return jdbcTemplate.queryForObject(sql, new InvoiceRowMapper(), invoiceId);
+        // null for unknown ids, queryForObject would throw
+        List<InvoiceEntity> invoices = jdbcTemplate.query(sql, new InvoiceRowMapper(), invoiceId);
+        return invoices.isEmpty() ? null : invoices.get(0);
     }
 
     @Override
@@ -51,9 +141,39 @@ public class InvoiceDaoImpl implements InvoiceDao {
     }
 
     @Override
+    public List<InvoiceEntity> findAfter(UUID afterInvoiceId, int limit) {
+        if (afterInvoiceId == null) {
+            String sql = "SELECT * FROM InvoiceEntity ORDER BY invoice_id LIMIT ?";
+            return jdbcTemplate.query(sql, new InvoiceRowMapper(), limit);
+        }
+        String sql = "SELECT * FROM InvoiceEntity WHERE invoice_id > ? ORDER BY invoice_id LIMIT ?";
+        return jdbcTemplate.query(sql, new InvoiceRowMapper(), afterInvoiceId, limit);
+    }
+
+    @Override
+    @Transactional
     public void deleteById(UUID invoiceId) {
-        String sql = "DELETE FROM InvoiceEntity WHERE invoice_id = ?";
-        jdbcTemplate.update(sql, invoiceId);
+        deleteByIds(List.of(invoiceId));
+    }
+
+    @Override
+    @Transactional
+    public List<InvoiceEntity> deleteByIds(Collection<UUID> invoiceIds) {
+        List<UUID> ids = new ArrayList<>(new LinkedHashSet<>(invoiceIds));
+        List<InvoiceEntity> deleted = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += BATCH_SIZE) {
+            List<UUID> chunk = ids.subList(start, Math.min(start + BATCH_SIZE, ids.size()));
+            String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+            Object[] args = chunk.toArray();
+            // Locked, so a concurrent delete of the same invoices waits and then finds nothing left
+            deleted.addAll(jdbcTemplate.query("SELECT * FROM InvoiceEntity WHERE invoice_id IN (" + placeholders + ") FOR UPDATE",
+                    new InvoiceRowMapper(), args));
+            jdbcTemplate.update("DELETE FROM InvoiceLine WHERE invoice_id IN (" + placeholders + ")", args);
+            jdbcTemplate.update("DELETE FROM InvoiceVatBreakdown WHERE invoice_id IN (" + placeholders + ")", args);
+            jdbcTemplate.update("DELETE FROM InvoiceEntity WHERE invoice_id IN (" + placeholders + ")", args);
+        }
+        tombstoneDao.insert(deleted, Instant.now());
+        return deleted;
     }
 
     @Override
@@ -63,16 +183,215 @@ public class InvoiceDaoImpl implements InvoiceDao {
         return count != null && count > 0;
     }
 
+    @Override
+    public Set<String> findExistingFileHashes(Collection<String> fileHashes) {
+        Set<String> existing = new HashSet<>();
+        List<String> hashes = new ArrayList<>(fileHashes);
+        // Chunked IN lists, every chunk is answered from idx_invoice_file_hash
+        for (int start = 0; start < hashes.size(); start += BATCH_SIZE) {
+            List<String> chunk = hashes.subList(start, Math.min(start + BATCH_SIZE, hashes.size()));
+            String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+            String sql = "SELECT DISTINCT file_hash FROM InvoiceEntity WHERE file_hash IN (" + placeholders + ")";
+            existing.addAll(jdbcTemplate.queryForList(sql, String.class, chunk.toArray()));
+        }
+        return existing;
+    }
+
+    @Override
+    public List<InvoiceEntity> findByFileHashLength(int length, UUID afterInvoiceId, int limit) {
+        String sql = "SELECT * FROM InvoiceEntity WHERE LENGTH(file_hash) = ? ";
+        if (afterInvoiceId == null) {
+            sql += "ORDER BY invoice_id LIMIT ?";
+            return jdbcTemplate.query(sql, new InvoiceRowMapper(), length, limit);
+        }
+        sql += "AND invoice_id > ? ORDER BY invoice_id LIMIT ?";
+        return jdbcTemplate.query(sql, new InvoiceRowMapper(), length, afterInvoiceId, limit);
+    }
+
+    @Override
+    public List<InvoiceEntity> findBySemanticFingerprint(String semanticFingerprint) {
+        String sql = "SELECT * FROM InvoiceEntity WHERE semantic_fingerprint = ?";
+        return jdbcTemplate.query(sql, new InvoiceRowMapper(), semanticFingerprint);
+    }
+
+    @Override
+    public Set<String> findExistingSemanticFingerprints(Collection<String> semanticFingerprints) {
+        Set<String> existing = new HashSet<>();
+        List<String> fingerprints = new ArrayList<>(semanticFingerprints);
+        for (int start = 0; start < fingerprints.size(); start += BATCH_SIZE) {
+            List<String> chunk = fingerprints.subList(start, Math.min(start + BATCH_SIZE, fingerprints.size()));
+            String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+            String sql = "SELECT DISTINCT semantic_fingerprint FROM InvoiceEntity WHERE semantic_fingerprint IN (" + placeholders + ")";
+            existing.addAll(jdbcTemplate.queryForList(sql, String.class, chunk.toArray()));
+        }
+        return existing;
+    }
+
+    @Override
+    public void streamSemanticFingerprints(Consumer<String> consumer) {
+        String sql = "SELECT semantic_fingerprint FROM InvoiceEntity WHERE semantic_fingerprint IS NOT NULL";
+        jdbcTemplate.query(sql, (RowCallbackHandler) rs -> consumer.accept(rs.getString(1)));
+    }
+
+    @Override
+    public List<InvoiceEntity> findBySemanticFingerprintIsNull(UUID afterInvoiceId, int limit) {
+        String sql = "SELECT * FROM InvoiceEntity WHERE semantic_fingerprint IS NULL ";
+        if (afterInvoiceId == null) {
+            sql += "ORDER BY invoice_id LIMIT ?";
+            return jdbcTemplate.query(sql, new InvoiceRowMapper(), limit);
+        }
+        sql += "AND invoice_id > ? ORDER BY invoice_id LIMIT ?";
+        return jdbcTemplate.query(sql, new InvoiceRowMapper(), afterInvoiceId, limit);
+    }
+
+    @Override
+    public boolean updateSemanticFingerprintIfNull(UUID invoiceId, String semanticFingerprint) {
+        String sql = "UPDATE InvoiceEntity SET semantic_fingerprint = ? WHERE invoice_id = ? AND semantic_fingerprint IS NULL";
+        return jdbcTemplate.update(sql, semanticFingerprint, invoiceId) > 0;
+    }
+
     @Override
     public List<String> findDistinctSellers() {
         String sql = "SELECT DISTINCT seller_name FROM InvoiceEntity";
         return jdbcTemplate.queryForList(sql, String.class);
     }
 
+    @Override
+    public void streamByIssuedDateBetween(LocalDate from, LocalDate to, Consumer<InvoiceEntity> consumer) {
+        String sql = "SELECT * FROM InvoiceEntity WHERE issued_date BETWEEN ? AND ? ORDER BY issued_date, invoice_id";
+        InvoiceRowMapper rowMapper = new InvoiceRowMapper();
+        jdbcTemplate.query(sql, (RowCallbackHandler) rs -> consumer.accept(rowMapper.mapRow(rs, rs.getRow())), from, to);
+    }
+
+    @Override
+    public List<InvoiceEntity> findByStylesheetVersionNot(String stylesheetVersion, UUID afterInvoiceId, int limit) {
+        String sql = "SELECT * FROM InvoiceEntity WHERE file_format <> 'PDF' " +
+                     "AND (stylesheet_version IS NULL OR stylesheet_version <> ?) ";
+        if (afterInvoiceId == null) {
+            sql += "ORDER BY invoice_id LIMIT ?";
+            return jdbcTemplate.query(sql, new InvoiceRowMapper(), stylesheetVersion, limit);
+        }
+        sql += "AND invoice_id > ? ORDER BY invoice_id LIMIT ?";
+        return jdbcTemplate.query(sql, new InvoiceRowMapper(), stylesheetVersion, afterInvoiceId, limit);
+    }
+
+    @Override
+    @Transactional
+    public void saveLineItems(UUID invoiceId, List<InvoiceLineEntity> lines, List<VatBreakdownEntity> vatBreakdown) {
+        jdbcTemplate.update("DELETE FROM InvoiceLine WHERE invoice_id = ?", invoiceId);
+        jdbcTemplate.update("DELETE FROM InvoiceVatBreakdown WHERE invoice_id = ?", invoiceId);
+        insertLines(lines);
+        insertVatBreakdown(vatBreakdown);
+    }
+
+    private void insertLines(List<InvoiceLineEntity> lines) {
+        jdbcTemplate.batchUpdate(INSERT_LINE_SQL, lines, BATCH_SIZE, (ps, line) -> {
+            ps.setObject(1, line.getInvoiceId());
+            ps.setInt(2, line.getLineNumber());
+            ps.setString(3, line.getLineIdentifier());
+            ps.setString(4, line.getItemName());
+            ps.setString(5, normalizeItemName(line.getItemName()));
+            ps.setBigDecimal(6, line.getQuantity());
+            ps.setString(7, line.getUnitCode());
+            ps.setBigDecimal(8, line.getNetAmount());
+            ps.setString(9, line.getVatCategoryCode());
+            ps.setBigDecimal(10, line.getVatRate());
+            ps.setObject(11, line.getIssuedDate());
+        });
+    }
+
+    private void insertVatBreakdown(List<VatBreakdownEntity> vatBreakdown) {
+        jdbcTemplate.batchUpdate(INSERT_VAT_SQL, vatBreakdown, BATCH_SIZE, (ps, row) -> {
+            ps.setObject(1, row.getInvoiceId());
+            ps.setInt(2, row.getBreakdownNumber());
+            ps.setString(3, row.getVatCategoryCode());
+            ps.setBigDecimal(4, row.getVatRate());
+            ps.setBigDecimal(5, row.getTaxableAmount());
+            ps.setBigDecimal(6, row.getTaxAmount());
+            ps.setObject(7, row.getIssuedDate());
+        });
+    }
+
+    @Override
+    public List<InvoiceLineEntity> findLinesByInvoiceId(UUID invoiceId) {
+        String sql = "SELECT * FROM InvoiceLine WHERE invoice_id = ? ORDER BY line_number";
+        return jdbcTemplate.query(sql, (rs, rowNum) -> new InvoiceLineEntity(
+                UUID.fromString(rs.getString("invoice_id")),
+                rs.getInt("line_number"),
+                rs.getString("line_identifier"),
+                rs.getString("item_name"),
+                rs.getBigDecimal("quantity"),
+                rs.getString("unit_code"),
+                rs.getBigDecimal("net_amount"),
+                rs.getString("vat_category_code"),
+                rs.getBigDecimal("vat_rate"),
+                rs.getObject("issued_date", LocalDate.class)
+        ), invoiceId);
+    }
+
+    @Override
+    public List<VatBreakdownEntity> findVatBreakdownByInvoiceId(UUID invoiceId) {
+        String sql = "SELECT * FROM InvoiceVatBreakdown WHERE invoice_id = ? ORDER BY breakdown_number";
+        return jdbcTemplate.query(sql, (rs, rowNum) -> new VatBreakdownEntity(
+                UUID.fromString(rs.getString("invoice_id")),
+                rs.getInt("breakdown_number"),
+                rs.getString("vat_category_code"),
+                rs.getBigDecimal("vat_rate"),
+                rs.getBigDecimal("taxable_amount"),
+                rs.getBigDecimal("tax_amount"),
+                rs.getObject("issued_date", LocalDate.class)
+        ), invoiceId);
+    }
+
+    @Override
+    public List<InvoiceEntity> findBySavePathPrefix(String pathPrefix) {
+        String pattern = pathPrefix
+                .replace("\\", "\\\\")
+                .replace("%", "\\%")
+                .replace("_", "\\_") + "%";
+        String sql = "SELECT * FROM InvoiceEntity WHERE original_file_save_path LIKE ? ESCAPE '\\' " +
+                     "OR generated_file_save_path LIKE ? ESCAPE '\\'";
+        return jdbcTemplate.query(sql, new InvoiceRowMapper(), pattern, pattern);
+    }
+
+    @Override
+    public List<Map<String, Object>> sumLinesByItemName(String itemNamePrefix, LocalDate from, LocalDate to) {
+        // Prefix match on the normalized name, so the (item_name_key, issued_date) index applies
+        String pattern = normalizeItemName(itemNamePrefix)
+                .replace("\\", "\\\\")
+                .replace("%", "\\%")
+                .replace("_", "\\_") + "%";
+        String sql = "SELECT l.item_name_key AS item_name, l.unit_code, COUNT(*) AS line_count, " +
+                     "SUM(l.quantity * " + CREDIT_NOTE_SIGN + ") AS quantity, " +
+                     "SUM(l.net_amount * " + CREDIT_NOTE_SIGN + ") AS net_amount " +
+                     "FROM InvoiceLine l JOIN InvoiceEntity e ON e.invoice_id = l.invoice_id " +
+                     "WHERE l.item_name_key LIKE ? ESCAPE '\\' AND l.issued_date BETWEEN ? AND ? " +
+                     "GROUP BY l.item_name_key, l.unit_code ORDER BY net_amount DESC";
+        return jdbcTemplate.queryForList(sql, pattern, from, to);
+    }
+
+    @Override
+    public List<Map<String, Object>> sumVatByMonthAndRate(LocalDate from, LocalDate to) {
+        String sql = "SELECT EXTRACT(YEAR FROM v.issued_date) AS issued_year, EXTRACT(MONTH FROM v.issued_date) AS issued_month, " +
+                     "v.vat_category_code, v.vat_rate, " +
+                     "SUM(v.taxable_amount * " + CREDIT_NOTE_SIGN + ") AS taxable_amount, " +
+                     "SUM(v.tax_amount * " + CREDIT_NOTE_SIGN + ") AS tax_amount " +
+                     "FROM InvoiceVatBreakdown v JOIN InvoiceEntity e ON e.invoice_id = v.invoice_id " +
+                     "WHERE v.issued_date BETWEEN ? AND ? " +
+                     "GROUP BY EXTRACT(YEAR FROM v.issued_date), EXTRACT(MONTH FROM v.issued_date), v.vat_category_code, v.vat_rate " +
+                     "ORDER BY issued_year, issued_month, vat_category_code, vat_rate";
+        return jdbcTemplate.queryForList(sql, from, to);
+    }
+
+    // Lower case with single spaces, so different spellings of the same item group together
+    private static String normalizeItemName(String itemName) {
+        return itemName == null ? null : itemName.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
     private static class InvoiceRowMapper implements RowMapper<InvoiceEntity> {
         @Override
         public InvoiceEntity mapRow(ResultSet rs, int rowNum) throws SQLException {
-            return new InvoiceEntity(
+            InvoiceEntity invoice = new InvoiceEntity(
                     UUID.fromString(rs.getString("invoice_id")),
                     rs.getString("file_hash"),
                     rs.getString("original_file_save_path"),
@@ -85,6 +404,8 @@ public class InvoiceDaoImpl implements InvoiceDao {
                     rs.getDate("issued_date").toLocalDate(),
                     rs.getBigDecimal("total_sum")
             );
+            invoice.setStylesheetVersion(rs.getString("stylesheet_version"));
+            return invoice;
         }
     }
 }
@@ -0,0 +1,106 @@
+package com.invinciboll.database;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import com.invinciboll.entities.InvoiceEntity;
+
+/**
+ * Deleted invoices and the state of the removal of their files. Written in the transaction that
+ * deletes the invoices, so no invoice is deleted without its files being queued for removal.
+ */
+@Repository
+public class InvoiceTombstoneDao {
+
+    public record Tombstone(UUID invoiceId, String fileHash, String originalFileSavePath,
+            String generatedFileSavePath, Instant deletedAt, Instant filesDeletedAt, int cleanupAttempts,
+            String lastError) {
+    }
+
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    private static final RowMapper<Tombstone> ROW_MAPPER = (rs, rowNum) -> new Tombstone(
+            UUID.fromString(rs.getString("invoice_id")),
+            rs.getString("file_hash"),
+            rs.getString("original_file_save_path"),
+            rs.getString("generated_file_save_path"),
+            rs.getTimestamp("deleted_at").toInstant(),
+            rs.getTimestamp("files_deleted_at") != null ? rs.getTimestamp("files_deleted_at").toInstant() : null,
+            rs.getInt("cleanup_attempts"),
+            rs.getString("last_error"));
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public InvoiceTombstoneDao(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public void insert(Collection<InvoiceEntity> invoices, Instant deletedAt) {
+        String sql = "INSERT INTO InvoiceTombstone (invoice_id, file_hash, original_file_save_path, generated_file_save_path, " +
+                     "seller_name, invoice_reference, deleted_at, cleanup_attempts) VALUES (?, ?, ?, ?, ?, ?, ?, 0)";
+        Timestamp timestamp = Timestamp.from(deletedAt);
+        jdbcTemplate.batchUpdate(sql, invoices, invoices.size(), (ps, invoice) -> {
+            ps.setObject(1, invoice.getInvoiceId());
+            ps.setString(2, invoice.getFileHash());
+            ps.setString(3, invoice.getOriginalFileSavePath());
+            ps.setString(4, invoice.getGeneratedFileSavePath());
+            ps.setString(5, invoice.getSellerName());
+            ps.setString(6, invoice.getInvoiceReference());
+            ps.setTimestamp(7, timestamp);
+        });
+    }
+
+    public Tombstone findById(UUID invoiceId) {
+        String sql = "SELECT * FROM InvoiceTombstone WHERE invoice_id = ?";
+        List<Tombstone> tombstones = jdbcTemplate.query(sql, ROW_MAPPER, invoiceId);
+        return tombstones.isEmpty() ? null : tombstones.get(0);
+    }
+
+    // Tombstones whose files are not removed yet and whose next attempt is due, oldest first
+    public List<Tombstone> findDueForCleanup(Instant now, int maxAttempts, int limit) {
+        String sql = "SELECT * FROM InvoiceTombstone WHERE files_deleted_at IS NULL AND cleanup_attempts < ? " +
+                     "AND (next_attempt_at IS NULL OR next_attempt_at <= ?) ORDER BY deleted_at LIMIT ?";
+        return jdbcTemplate.query(sql, ROW_MAPPER, maxAttempts, Timestamp.from(now), limit);
+    }
+
+    public int countPendingCleanup(int maxAttempts) {
+        String sql = "SELECT COUNT(*) FROM InvoiceTombstone WHERE files_deleted_at IS NULL AND cleanup_attempts < ?";
+        Integer count = jdbcTemplate.queryForObject(sql, Integer.class, maxAttempts);
+        return count != null ? count : 0;
+    }
+
+    public int countFailedCleanup(int maxAttempts) {
+        String sql = "SELECT COUNT(*) FROM InvoiceTombstone WHERE files_deleted_at IS NULL AND cleanup_attempts >= ?";
+        Integer count = jdbcTemplate.queryForObject(sql, Integer.class, maxAttempts);
+        return count != null ? count : 0;
+    }
+
+    public void markFilesDeleted(Collection<UUID> invoiceIds, Instant filesDeletedAt) {
+        String sql = "UPDATE InvoiceTombstone SET files_deleted_at = ?, last_error = NULL WHERE invoice_id = ?";
+        Timestamp timestamp = Timestamp.from(filesDeletedAt);
+        jdbcTemplate.batchUpdate(sql, invoiceIds, invoiceIds.size(), (ps, invoiceId) -> {
+            ps.setTimestamp(1, timestamp);
+            ps.setObject(2, invoiceId);
+        });
+    }
+
+    public void recordCleanupFailure(UUID invoiceId, String error, Instant nextAttemptAt) {
+        String sql = "UPDATE InvoiceTombstone SET cleanup_attempts = cleanup_attempts + 1, next_attempt_at = ?, " +
+                     "last_error = ? WHERE invoice_id = ?";
+        String lastError = error != null && error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+        jdbcTemplate.update(sql, Timestamp.from(nextAttemptAt), lastError, invoiceId);
+    }
+
+    // Tombstones of invoices whose files were removed before the given time
+    public int purgeCleanedBefore(Instant before) {
+        String sql = "DELETE FROM InvoiceTombstone WHERE files_deleted_at < ?";
+        return jdbcTemplate.update(sql, Timestamp.from(before));
+    }
+}
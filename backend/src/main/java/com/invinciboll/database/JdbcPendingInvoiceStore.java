@@ -0,0 +1,206 @@
+package com.invinciboll.database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.invinciboll.KeyInformation;
+import com.invinciboll.PendingInvoiceStore;
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.entities.TempInvoice;
+import com.invinciboll.enums.FileFormat;
+import com.invinciboll.enums.XMLFormat;
+
+/**
+ * Pending invoice store shared between backend nodes. The metadata lives in the database, the
+ * files in the (shared) tempfiles directory, so any node can persist or print an invoice that
+ * another node processed. An optional local cache keeps the fully processed invoices of this node;
+ * the row is still read on every access, so an invoice persisted, removed or put again by another
+ * node is not served from it.
+ */
+public class JdbcPendingInvoiceStore implements PendingInvoiceStore {
+    private static final Logger logger = LoggerFactory.getLogger(JdbcPendingInvoiceStore.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final AppConfig appConfig;
+    private final String table;
+    private final boolean expires;
+    private final Cache<UUID, CachedInvoice> localCache;
+
+    // Valid while the row still has the creation time it was cached with
+    private record CachedInvoice(Timestamp createdAt, TempInvoice invoice) {
+    }
+
+    public JdbcPendingInvoiceStore(JdbcTemplate jdbcTemplate, AppConfig appConfig) {
+        this(jdbcTemplate, appConfig, "PendingInvoice", true);
+    }
+
+    /**
+     * Store in another table with the columns of PendingInvoice. Entries of a store that does not
+     * expire stay until removed and are not cached locally.
+     */
+    JdbcPendingInvoiceStore(JdbcTemplate jdbcTemplate, AppConfig appConfig, String table, boolean expires) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.appConfig = appConfig;
+        this.table = table;
+        this.expires = expires;
+        this.localCache = expires && appConfig.isPendingLocalCacheEnabled()
+                ? Caffeine.newBuilder()
+                    .expireAfterWrite(appConfig.getPendingExpireAfter())
+                    .maximumSize(50)
+                    .build()
+                : null;
+    }
+
+    @Override
+    public void put(TempInvoice invoice) {
+        String sql = "INSERT INTO " + table + " (invoice_id, file_hash, temp_original_file_name, temp_generated_file_name, " +
+                     "original_file_extension, file_format, xml_format, seller_name, invoice_reference, invoice_type_code, " +
+                     "issued_date, total_sum, language, created_at) " +
+                     "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        KeyInformation keyInformation = invoice.getKeyInformation();
+        // Truncated to what every database stores, so it compares equal when read back
+        Timestamp createdAt = Timestamp.from(Instant.now().truncatedTo(ChronoUnit.MILLIS));
+        // Plain SQL instead of an upsert, so this works with any JDBC database
+        jdbcTemplate.update("DELETE FROM " + table + " WHERE invoice_id = ?", invoice.getInvoiceId());
+        jdbcTemplate.update(sql,
+                invoice.getInvoiceId(),
+                invoice.getFileHash(),
+                invoice.getTempOriginalFilePath().getFileName().toString(),
+                invoice.getTempGeneratedFilePath() != null ? invoice.getTempGeneratedFilePath().getFileName().toString() : null,
+                invoice.getOriginalFileExtension(),
+                invoice.getFileFormat().toString(),
+                invoice.getXmlFormat().toString(),
+                keyInformation.sellerName(),
+                keyInformation.invoiceReference(),
+                keyInformation.invoiceTypeCode(),
+                keyInformation.issuedDate(),
+                keyInformation.totalSum(),
+                invoice.getLanguage(),
+                createdAt);
+
+        if (localCache != null) {
+            localCache.put(invoice.getInvoiceId(), new CachedInvoice(createdAt, invoice));
+        }
+    }
+
+    @Override
+    public TempInvoice get(UUID invoiceId) {
+        Timestamp createdAt = null;
+        if (localCache != null) {
+            // Only the parsed state is cached, whether the invoice is still pending is asked every time
+            String sql = "SELECT created_at FROM " + table + " WHERE invoice_id = ? AND created_at > ?";
+            List<Timestamp> rows = jdbcTemplate.queryForList(sql, Timestamp.class, invoiceId, expiryThreshold());
+            if (rows.isEmpty()) {
+                localCache.invalidate(invoiceId);
+                return null;
+            }
+            createdAt = rows.get(0);
+            CachedInvoice cached = localCache.getIfPresent(invoiceId);
+            if (cached != null && cached.createdAt().equals(createdAt)) {
+                return cached.invoice();
+            }
+        }
+
+        String sql = "SELECT * FROM " + table + " WHERE invoice_id = ? AND created_at > ?";
+        List<TempInvoice> invoices = jdbcTemplate.query(sql, new PendingInvoiceRowMapper(), invoiceId, expiryThreshold());
+        if (invoices.isEmpty()) {
+            return null;
+        }
+
+        TempInvoice invoice = invoices.get(0);
+        if (localCache != null) {
+            localCache.put(invoiceId, new CachedInvoice(createdAt, invoice));
+        }
+        return invoice;
+    }
+
+    @Override
+    public void remove(UUID invoiceId) {
+        TempInvoice invoice = get(invoiceId);
+        if (localCache != null) {
+            localCache.invalidate(invoiceId);
+        }
+        jdbcTemplate.update("DELETE FROM " + table + " WHERE invoice_id = ?", invoiceId);
+        if (invoice != null) {
+            invoice.deleteTempFiles();
+        }
+    }
+
+    // Removes the entry but keeps its temp files, returns false if there was none
+    boolean release(UUID invoiceId) {
+        if (localCache != null) {
+            localCache.invalidate(invoiceId);
+        }
+        return jdbcTemplate.update("DELETE FROM " + table + " WHERE invoice_id = ?", invoiceId) > 0;
+    }
+
+    // All entries that have not expired, oldest first
+    List<TempInvoice> findAll() {
+        String sql = "SELECT * FROM " + table + " WHERE created_at > ? ORDER BY created_at";
+        return jdbcTemplate.query(sql, new PendingInvoiceRowMapper(), expiryThreshold());
+    }
+
+    /**
+     * Deletes expired invoices and their temp files. Runs on every node, concurrent deletes of the
+     * same rows and files are harmless.
+     */
+    @Scheduled(fixedDelayString = "${pending.purge-interval-ms:600000}")
+    public void purgeExpired() {
+        if (!expires) {
+            return;
+        }
+        String sql = "SELECT * FROM " + table + " WHERE created_at <= ?";
+        List<TempInvoice> expired = jdbcTemplate.query(sql, new PendingInvoiceRowMapper(), expiryThreshold());
+        for (TempInvoice invoice : expired) {
+            jdbcTemplate.update("DELETE FROM " + table + " WHERE invoice_id = ?", invoice.getInvoiceId());
+            invoice.deleteTempFiles();
+        }
+        if (!expired.isEmpty()) {
+            logger.info("Purged {} expired pending invoices", expired.size());
+        }
+    }
+
+    private Timestamp expiryThreshold() {
+        if (!expires) {
+            return Timestamp.from(Instant.EPOCH);
+        }
+        return Timestamp.from(Instant.now().minus(appConfig.getPendingExpireAfter()));
+    }
+
+    private class PendingInvoiceRowMapper implements RowMapper<TempInvoice> {
+        @Override
+        public TempInvoice mapRow(ResultSet rs, int rowNum) throws SQLException {
+            KeyInformation keyInformation = new KeyInformation(
+                    rs.getString("invoice_reference"),
+                    rs.getString("seller_name"),
+                    (Integer) rs.getObject("invoice_type_code"),
+                    rs.getDate("issued_date") != null ? rs.getDate("issued_date").toLocalDate() : null,
+                    rs.getBigDecimal("total_sum"));
+
+            return TempInvoice.restore(
+                    appConfig,
+                    UUID.fromString(rs.getString("invoice_id")),
+                    rs.getString("file_hash"),
+                    rs.getString("temp_original_file_name"),
+                    rs.getString("temp_generated_file_name"),
+                    rs.getString("original_file_extension"),
+                    FileFormat.valueOf(rs.getString("file_format")),
+                    XMLFormat.valueOf(rs.getString("xml_format")),
+                    keyInformation,
+                    rs.getString("language"));
+        }
+    }
+}
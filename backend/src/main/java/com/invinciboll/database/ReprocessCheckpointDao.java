@@ -0,0 +1,57 @@
+package com.invinciboll.database;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Progress of the re-processing job per stylesheet version, so an interrupted run continues
+ * where it stopped instead of walking the whole archive again.
+ */
+@Repository
+public class ReprocessCheckpointDao {
+
+    public record Checkpoint(String stylesheetVersion, UUID lastInvoiceId, int processed, int failed,
+            boolean completed, Instant updatedAt) {
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public ReprocessCheckpointDao(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public Checkpoint find(String stylesheetVersion) {
+        String sql = "SELECT * FROM ReprocessCheckpoint WHERE stylesheet_version = ?";
+        List<Checkpoint> checkpoints = jdbcTemplate.query(sql, (rs, rowNum) -> new Checkpoint(
+                rs.getString("stylesheet_version"),
+                rs.getString("last_invoice_id") != null ? UUID.fromString(rs.getString("last_invoice_id")) : null,
+                rs.getInt("processed"),
+                rs.getInt("failed"),
+                rs.getBoolean("completed"),
+                rs.getTimestamp("updated_at").toInstant()), stylesheetVersion);
+        return checkpoints.isEmpty() ? null : checkpoints.get(0);
+    }
+
+    public void save(Checkpoint checkpoint) {
+        String sql = "INSERT INTO ReprocessCheckpoint (stylesheet_version, last_invoice_id, processed, failed, completed, updated_at) " +
+                     "VALUES (?, ?, ?, ?, ?, ?)";
+        // Plain SQL instead of an upsert, so this works with any JDBC database
+        jdbcTemplate.update("DELETE FROM ReprocessCheckpoint WHERE stylesheet_version = ?", checkpoint.stylesheetVersion());
+        jdbcTemplate.update(sql,
+                checkpoint.stylesheetVersion(),
+                checkpoint.lastInvoiceId(),
+                checkpoint.processed(),
+                checkpoint.failed(),
+                checkpoint.completed(),
+                Timestamp.from(checkpoint.updatedAt()));
+    }
+
+    public void delete(String stylesheetVersion) {
+        jdbcTemplate.update("DELETE FROM ReprocessCheckpoint WHERE stylesheet_version = ?", stylesheetVersion);
+    }
+}
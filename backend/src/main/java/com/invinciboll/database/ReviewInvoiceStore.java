@@ -0,0 +1,58 @@
+package com.invinciboll.database;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.entities.TempInvoice;
+
+/**
+ * Invoices from the hot folders that need manual input before they can be persisted. Their source
+ * file is already moved away, so unlike pending invoices they are neither evicted nor expire and
+ * survive restarts, they stay until they are persisted or removed.
+ */
+@Repository
+public class ReviewInvoiceStore {
+
+    private final JdbcPendingInvoiceStore store;
+
+    public ReviewInvoiceStore(JdbcTemplate jdbcTemplate, AppConfig appConfig) {
+        this.store = new JdbcPendingInvoiceStore(jdbcTemplate, appConfig, "ReviewInvoice", false);
+    }
+
+    public void put(TempInvoice invoice) {
+        store.put(invoice);
+    }
+
+    // Returns null if the invoice is not waiting for review
+    public TempInvoice get(UUID invoiceId) {
+        return store.get(invoiceId);
+    }
+
+    // Removes the invoice and deletes its temp files
+    public void remove(UUID invoiceId) {
+        store.remove(invoiceId);
+    }
+
+    /**
+     * Takes a resolved invoice off the queue but keeps its temp files, returns false if it was not
+     * waiting for review.
+     */
+    public boolean release(UUID invoiceId) {
+        return store.release(invoiceId);
+    }
+
+    // Oldest first
+    public List<TempInvoice> findAll() {
+        return store.findAll();
+    }
+
+    public Set<UUID> findInvoiceIds() {
+        return findAll().stream().map(TempInvoice::getInvoiceId).collect(Collectors.toSet());
+    }
+}
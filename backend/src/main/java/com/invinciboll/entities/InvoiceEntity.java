@@ -5,6 +5,8 @@ import java.nio.file.Path;
 import java.time.LocalDate;
 import java.util.UUID;
 
+import com.invinciboll.KeyInformation;
+
 import lombok.Getter;
 import lombok.Setter;
 
@@ -23,6 +25,7 @@ public class InvoiceEntity {
     private Integer invoiceTypeCode; // Nullable type numbers
     private LocalDate issuedDate; // Dates represented as LocalDate
     private BigDecimal totalSum; // Precise monetary values
+    private String stylesheetVersion; // Stylesheets the generated PDF was rendered with, null for regular PDFs
 
     public InvoiceEntity(TempInvoice invoice, Path originalFileOutputPath, Path generatedFileOutputPath) {
         this.invoiceId = invoice.getInvoiceId();
@@ -53,4 +56,9 @@ public class InvoiceEntity {
         this.issuedDate = issuedDate;
         this.totalSum = totalSum;
     }
+
+    // Derived from the key information, stored for the near-duplicate lookup
+    public String getSemanticFingerprint() {
+        return KeyInformation.semanticFingerprint(sellerName, invoiceReference, issuedDate, totalSum);
+    }
 }  
\ No newline at end of file
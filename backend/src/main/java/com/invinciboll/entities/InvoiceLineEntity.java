@@ -0,0 +1,26 @@
+package com.invinciboll.entities;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.UUID;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class InvoiceLineEntity {
+
+    private UUID invoiceId; // Primary Key together with the line number
+    private int lineNumber; // Position within the invoice, starting at 1
+    private String lineIdentifier; // BT-126, as given by the seller
+    private String itemName;
+    private BigDecimal quantity;
+    private String unitCode;
+    private BigDecimal netAmount;
+    private String vatCategoryCode;
+    private BigDecimal vatRate;
+    private LocalDate issuedDate; // Copied from the invoice, so time range queries need no join
+}
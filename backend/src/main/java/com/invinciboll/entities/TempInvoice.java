@@ -1,29 +1,44 @@
 package com.invinciboll.entities;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDate;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.fop.apps.FOPException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.web.multipart.MultipartFile;
 
 import com.invinciboll.FormatDetector;
+import com.invinciboll.InvoiceArchive;
 import com.invinciboll.KeyInformation;
 import com.invinciboll.NetworkPrinter;
+import com.invinciboll.ProcessingScheduler;
+import com.invinciboll.StreamingUpload;
 import com.invinciboll.XRechnungTransformer;
 import com.invinciboll.configuration.AppConfig;
 import com.invinciboll.database.InvoiceDao;
 import com.invinciboll.enums.FileFormat;
+import com.invinciboll.enums.WorkloadClass;
 import com.invinciboll.enums.XMLFormat;
+import com.invinciboll.events.PipelineStageEvent;
 import com.invinciboll.exceptions.ParserException;
 import com.invinciboll.exceptions.TransformationException;
+import com.invinciboll.exceptions.UnsupportedFormatException;
+import com.invinciboll.exceptions.UploadRejectedException;
 import com.invinciboll.util.Util;
 
 import lombok.Getter;
@@ -34,6 +49,7 @@ import net.sf.saxon.s9api.XdmNode;
 
 
 public class TempInvoice {
+    private static final Logger logger = LoggerFactory.getLogger(TempInvoice.class);
 
     @Getter
     private UUID invoiceId;
@@ -46,29 +62,47 @@ public class TempInvoice {
     private Path tempOriginalFilePath;
     @Getter
     private Path tempGeneratedFilePath;
+    @Getter
     private String tempGenerateFileName;
 
+    @Getter
     private String originalFileExtension;
+    private byte[] fileHeader; // Sniffed while streaming the upload, null otherwise
+    @Getter
+    private long fileSize;
     @Getter
     private FileFormat fileFormat;
 
     @Getter
     private XdmNode xmlContent;
+    @Getter
     private XdmNode xrContent;
+    @Getter
     private XdmNode foContent;
     @Getter @Setter
     private XMLFormat xmlFormat;
     @Getter
     private KeyInformation keyInformation;
+    // Of the generated PDF in the tempfiles directory, the stored one is always in the configured language
+    @Getter
+    private String language;
 
     private AppConfig appConfig;
 
+    // Only set while process() runs, null means the stages run unscheduled
+    private ProcessingScheduler scheduler;
+    private WorkloadClass workloadClass;
+
     public TempInvoice(AppConfig appConfig){
-        this.invoiceId = UUID.randomUUID();
+        this(appConfig, UUID.randomUUID());
+    }
+
+    private TempInvoice(AppConfig appConfig, UUID invoiceId){
+        this.invoiceId = invoiceId;
         this.appConfig = appConfig;
+        this.language = XRechnungTransformer.getDefaultLanguage();
 
-        String tempfiles = appConfig.getTempfilesDir();
-        tempFilesPath = Paths.get(System.getProperty("user.dir"), tempfiles);
+        tempFilesPath = appConfig.getTempfilesPath();
         if (!Files.exists(tempFilesPath)) { //TODO: move this to app
             try {
                 Files.createDirectories(tempFilesPath);
@@ -78,18 +112,139 @@ public class TempInvoice {
         }
     }
 
+    /**
+     * Recreates a processed invoice from its stored state, e.g. when it was uploaded on another node.
+     * The parsed XML trees are not restored, only what is needed to persist and print the invoice.
+     */
+    public static TempInvoice restore(AppConfig appConfig, UUID invoiceId, String fileHash,
+            String originalFileName, String generatedFileName, String originalFileExtension,
+            FileFormat fileFormat, XMLFormat xmlFormat, KeyInformation keyInformation, String language) {
+        TempInvoice invoice = new TempInvoice(appConfig, invoiceId);
+        invoice.fileHash = fileHash;
+        if (language != null) {
+            invoice.language = language;
+        }
+        invoice.originalFileExtension = originalFileExtension;
+        invoice.fileFormat = fileFormat;
+        invoice.xmlFormat = xmlFormat;
+        invoice.keyInformation = keyInformation;
+        invoice.tempOriginalFilePath = invoice.tempFilesPath.resolve(originalFileName);
+        if (fileFormat == FileFormat.PDF) {
+            invoice.tempGenerateFileName = originalFileName;
+        } else {
+            invoice.tempGenerateFileName = generatedFileName;
+            invoice.tempGeneratedFilePath = invoice.tempFilesPath.resolve(generatedFileName);
+        }
+        return invoice;
+    }
+
+    /**
+     * Copy without the parsed trees, for keeping a pending invoice around without holding them in
+     * memory. They are rebuilt from the temp files when needed.
+     */
+    public TempInvoice detach() {
+        TempInvoice detached = restore(appConfig, invoiceId, fileHash, tempOriginalFilePath.getFileName().toString(),
+                tempGeneratedFilePath != null ? tempGeneratedFilePath.getFileName().toString() : null,
+                originalFileExtension, fileFormat, xmlFormat, keyInformation, language);
+        detached.fileSize = fileSize;
+        return detached;
+    }
+
     public void setFile(MultipartFile uploadedFile) throws IOException, IllegalStateException {
         originalFileExtension = "."+ FilenameUtils.getExtension(uploadedFile.getOriginalFilename());
         String newFileName = "org_" + this.invoiceId.toString() + originalFileExtension;
         tempOriginalFilePath = tempFilesPath.resolve(newFileName);
 
         uploadedFile.transferTo(tempOriginalFilePath.toFile());
+        fileSize = uploadedFile.getSize();
+    }
+
+    public void setFile(InputStream uploadStream, String originalFilename, long maxBytes) throws IOException, UploadRejectedException {
+        originalFileExtension = "."+ FilenameUtils.getExtension(originalFilename);
+        String newFileName = "org_" + this.invoiceId.toString() + originalFileExtension;
+        tempOriginalFilePath = tempFilesPath.resolve(newFileName);
+
+        StreamingUpload.Result result = StreamingUpload.writeTo(uploadStream, tempOriginalFilePath, maxBytes);
+        fileHeader = result.header();
+        fileHash = result.fileHash();
+        fileSize = result.size();
+    }
+
+    /**
+     * Takes over a file assembled in the tempfiles directory, e.g. a completed chunked upload, whose
+     * header and hash were computed while it was written.
+     */
+    public void setFile(Path assembledFile, StreamingUpload.Result result) throws IOException {
+        originalFileExtension = "."+ FilenameUtils.getExtension(assembledFile.getFileName().toString());
+        String newFileName = "org_" + this.invoiceId.toString() + originalFileExtension;
+        tempOriginalFilePath = tempFilesPath.resolve(newFileName);
+
+        Files.move(assembledFile, tempOriginalFilePath, StandardCopyOption.ATOMIC_MOVE);
+        fileHeader = result.header();
+        fileHash = result.fileHash();
+        fileSize = result.size();
     }
 
 
+    /**
+     * Language of the PDF generated by process(), one of XRechnungTransformer.LANGUAGES.
+     */
+    public void setLanguage(String language) {
+        if (!XRechnungTransformer.LANGUAGES.contains(language)) {
+            throw new IllegalArgumentException("Unsupported language: " + language);
+        }
+        this.language = language;
+    }
+
     public void process() throws IOException, ParserException, TransformationException, IllegalArgumentException {
-        fileFormat = FormatDetector.detectFileFormat(tempOriginalFilePath);
-        fileHash = FormatDetector.computeFileHash(tempOriginalFilePath, "SHA-256");
+        process(null, null);
+    }
+
+    /**
+     * Processes the invoice with every expensive stage waiting for a slot of the given workload class,
+     * so interactive uploads are not stuck behind bulk work.
+     */
+    public void process(ProcessingScheduler scheduler, WorkloadClass workloadClass) throws IOException, ParserException, TransformationException, IllegalArgumentException {
+        this.scheduler = scheduler;
+        this.workloadClass = workloadClass;
+        PipelineStageEvent.bind(this);
+        try (PipelineStageEvent stage = PipelineStageEvent.start("process")) {
+            runStages();
+            stage.succeeded();
+        } finally {
+            PipelineStageEvent.unbind();
+            this.scheduler = null;
+            this.workloadClass = null;
+        }
+    }
+
+    private ProcessingScheduler.Permit acquireStage() {
+        if (scheduler == null) {
+            return () -> { };
+        }
+        try (PipelineStageEvent stage = PipelineStageEvent.start("scheduler-wait")) {
+            ProcessingScheduler.Permit permit = scheduler.acquire(workloadClass);
+            stage.succeeded();
+            return permit;
+        }
+    }
+
+    private void runStages() throws IOException, ParserException, TransformationException, IllegalArgumentException {
+        try (ProcessingScheduler.Permit permit = acquireStage();
+             PipelineStageEvent stage = PipelineStageEvent.start("detect-format")) {
+            if (fileHeader != null) {
+                fileFormat = FormatDetector.detectFileFormat(fileHeader, tempOriginalFilePath);
+            } else {
+                fileFormat = FormatDetector.detectFileFormat(tempOriginalFilePath);
+            }
+            stage.succeeded();
+        }
+        if (fileHash == null) {
+            try (PipelineStageEvent stage = PipelineStageEvent.start("hash")) {
+                fileHash = FormatDetector.computeFileHash(tempOriginalFilePath);
+                stage.succeeded();
+            }
+        }
 
         switch (fileFormat) {
             case PDF:
@@ -112,43 +267,55 @@ public class TempInvoice {
     }
 
     private void processElectronicInvoice() throws ParserException, TransformationException {
-        try {
+        try (ProcessingScheduler.Permit permit = acquireStage()) {
             xmlContent = XRechnungTransformer.parseXmlContent(tempOriginalFilePath, fileFormat);
             xmlFormat = FormatDetector.detectXmlFormat(xmlContent);
+        } catch (UnsupportedFormatException e) {
+            throw e;
         } catch (IOException | ParserException | IllegalArgumentException e) {
             throw new ParserException("Error parsing XML content: " + e.getMessage(), e);
         }
 
-        try {
+        try (ProcessingScheduler.Permit permit = acquireStage()) {
             xrContent = XRechnungTransformer.transformToXR(xmlContent, xmlFormat);
-            foContent = XRechnungTransformer.transformToFO(xrContent);
+            foContent = XRechnungTransformer.transformToFO(xrContent, language);
         } catch (SaxonApiException e) {
+            releaseTrees();
             throw new TransformationException("Error transforming to intermediate representation: " + e.getMessage(), e);
         }
 
         tempGenerateFileName = "gen_" + this.invoiceId.toString() + ".pdf";
         tempGeneratedFilePath = tempFilesPath.resolve(tempGenerateFileName);
-        try {
+        try (ProcessingScheduler.Permit permit = acquireStage()) {
             XRechnungTransformer.renderPDF(foContent, tempGeneratedFilePath.toString());
         } catch (IOException | SaxonApiException | FOPException e) {
+            releaseTrees();
             throw new TransformationException("Error rendering output PDF file: " + e.getMessage(),  e);
         }
 
         keyInformation = XRechnungTransformer.extractKeyInformation(xrContent);
     }
 
+    // A failed stage must not keep the (possibly huge) document trees of the invoice on the heap
+    private void releaseTrees() {
+        xmlContent = null;
+        xrContent = null;
+        foContent = null;
+    }
+
     private boolean checkIfInvoiceExists(InvoiceDao invoiceDao) {
         return invoiceDao.existsByFileHash(fileHash);
     }
 
     public Map<String, Object> prepareJSONResponse(InvoiceDao invoiceDao) {
         Map<String, Object> response = new HashMap<>();
-        String fileUrl = "https://" + appConfig.getBackendHost() + "/" + appConfig.getTempfilesDir() + "/" + tempGenerateFileName;
+        String fileUrl = "https://" + appConfig.getBackendHost() + "/" + appConfig.getTempfilesUrlPath() + "/" + tempGenerateFileName;
         response.put("fileUrl", fileUrl);
         response.put("invoiceId", invoiceId);
         response.put("fileFormat", fileFormat.toString());
         response.put("xmlFormat", xmlFormat.toString());
         response.put("keyInformation", keyInformation);
+        response.put("language", language);
         response.put("alreadyExists", checkIfInvoiceExists(invoiceDao));
 
         return response;
@@ -213,10 +380,31 @@ public class TempInvoice {
 
 
 
-    public void persist(InvoiceDao invoiceDao) throws IOException{
+    /**
+     * Copies the files to the output directory and stores the invoice. The save paths are
+     * deterministic, so the copy and the row are written under the locks of these paths, which
+     * the cleanup of deleted invoices holds while it checks a save path is unused and removes it.
+     */
+    public InvoiceEntity persist(InvoiceDao invoiceDao, InvoiceArchive invoiceArchive) throws IOException{
+        PipelineStageEvent.bind(this);
+        try (PipelineStageEvent stage = PipelineStageEvent.start("persist")) {
+            InvoiceEntity invoiceEntity = persistFiles(invoiceDao, invoiceArchive);
+            stage.succeeded();
+            return invoiceEntity;
+        } finally {
+            PipelineStageEvent.unbind();
+        }
+    }
+
+    private InvoiceEntity persistFiles(InvoiceDao invoiceDao, InvoiceArchive invoiceArchive) throws IOException {
         String outputDir = appConfig.getOutputDir();
         Path dirPath = Path.of(outputDir, keyInformation.sellerName());
 
+        if (FormatDetector.isLegacyFileHash(fileHash)) {
+            // Pending since before the switch to SHA-256, FileHashMigration only covers persisted invoices
+            fileHash = FormatDetector.computeFileHash(tempOriginalFilePath);
+        }
+
         String generatedFileName = keyInformation.invoiceReference() + "_" + fileHash + ".pdf";
         String originalFileName = "original_" + keyInformation.invoiceReference() + "_" + fileHash + originalFileExtension;
 
@@ -227,28 +415,150 @@ public class TempInvoice {
             generatedFileOutputPath = originalFileOutputPath;
         }
 
+        // Extracted up front, so they are committed together with the invoice row
+        List<InvoiceLineEntity> lines = List.of();
+        List<VatBreakdownEntity> vatBreakdown = List.of();
+        if (fileFormat != FileFormat.PDF) {
+            try {
+                ensureXrContent();
+                lines = XRechnungTransformer.extractLineItems(xrContent, invoiceId, keyInformation.issuedDate());
+                vatBreakdown = XRechnungTransformer.extractVatBreakdown(xrContent, invoiceId, keyInformation.issuedDate());
+            } catch (ParserException | TransformationException e) {
+                // The invoice itself is stored, the line items are optional
+                logger.warn("Failed to extract line items of invoice {}: {}", invoiceId, e.getMessage());
+            }
+        }
+
+        // Previewed in another language, the stored PDF is rendered in the configured one
+        Path generatedSourcePath = tempGeneratedFilePath;
+        if (fileFormat != FileFormat.PDF && !language.equals(XRechnungTransformer.getDefaultLanguage())) {
+            generatedSourcePath = renderDefaultLanguage();
+        }
+
+        List<Lock> savePathLocks = invoiceArchive.getSavePathLocks(originalFileOutputPath, generatedFileOutputPath);
+        savePathLocks.forEach(Lock::lock);
         try {
+            return copyAndSave(invoiceDao, dirPath, originalFileOutputPath, generatedFileOutputPath,
+                    generatedSourcePath, lines, vatBreakdown);
+        } finally {
+            savePathLocks.forEach(Lock::unlock);
+        }
+    }
+
+    private InvoiceEntity copyAndSave(InvoiceDao invoiceDao, Path dirPath, Path originalFileOutputPath,
+            Path generatedFileOutputPath, Path generatedSourcePath, List<InvoiceLineEntity> lines,
+            List<VatBreakdownEntity> vatBreakdown) throws IOException {
+        try (PipelineStageEvent stage = PipelineStageEvent.start("persist-copy-files")) {
             if (!Files.exists(dirPath)) {
                 Files.createDirectories(dirPath);
             }
 
             // Copy temp files to the output directory
             if (fileFormat == FileFormat.PDF) { //TODO: IMPROVE THIS
-                Files.copy(tempOriginalFilePath, originalFileOutputPath);
+                copyToOutput(tempOriginalFilePath, originalFileOutputPath, invoiceDao);
             } else {
-                Files.copy(tempOriginalFilePath, originalFileOutputPath);
-                Files.copy(tempGeneratedFilePath, generatedFileOutputPath);
+                copyToOutput(tempOriginalFilePath, originalFileOutputPath, invoiceDao);
+                try {
+                    copyToOutput(generatedSourcePath, generatedFileOutputPath, invoiceDao);
+                } catch (IOException e) {
+                    Files.deleteIfExists(originalFileOutputPath);
+                    throw e;
+                }
             }
+            stage.succeeded();
         } catch (IOException e) {
             throw new IOException("Error copying temp files to output directory: " + e.getMessage(), e);
+        } finally {
+            if (generatedSourcePath != tempGeneratedFilePath) {
+                Files.deleteIfExists(generatedSourcePath);
+            }
         }
 
         InvoiceEntity invoiceEntity = new InvoiceEntity(this, originalFileOutputPath, generatedFileOutputPath);
-        invoiceDao.save(invoiceEntity);
+        if (fileFormat != FileFormat.PDF) {
+            invoiceEntity.setStylesheetVersion(XRechnungTransformer.getStylesheetVersion());
+        }
+        try (PipelineStageEvent stage = PipelineStageEvent.start("persist-db")) {
+            invoiceDao.save(invoiceEntity, lines, vatBreakdown);
+            stage.succeeded();
+        } catch (RuntimeException e) {
+            // No row without its files and no files without their row
+            Files.deleteIfExists(originalFileOutputPath);
+            Files.deleteIfExists(generatedFileOutputPath);
+            throw e;
+        }
+        return invoiceEntity;
+    }
+
+    /**
+     * Copies under a temporary name, syncs and renames, so the stored row never points to a partial
+     * file. A file without row can only be left by a crash between the copy and the commit of the
+     * row, it is replaced when the invoice is persisted again.
+     */
+    private static void copyToOutput(Path source, Path target, InvoiceDao invoiceDao) throws IOException {
+        if (Files.exists(target) && !invoiceDao.findBySavePathPrefix(target.toString()).isEmpty()) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        Path copy = target.resolveSibling(target.getFileName() + InvoiceArchive.PERSIST_SUFFIX);
+        try {
+            Files.copy(source, copy, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(copy, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    private Path renderDefaultLanguage() throws IOException {
+        Path renderedFilePath = tempFilesPath.resolve("gen_" + invoiceId + "_" + XRechnungTransformer.getDefaultLanguage() + ".pdf");
+        try {
+            ensureXrContent();
+            XdmNode defaultFoContent = XRechnungTransformer.transformToFO(xrContent, XRechnungTransformer.getDefaultLanguage());
+            XRechnungTransformer.renderPDF(defaultFoContent, renderedFilePath.toString());
+        } catch (ParserException | TransformationException | SaxonApiException | FOPException e) {
+            throw new IOException("Error rendering output PDF file: " + e.getMessage(), e);
+        }
+        return renderedFilePath;
+    }
+
+    // Restored invoices come without the parsed trees, so rebuild the XR representation from the original
+    private void ensureXrContent() throws ParserException, TransformationException {
+        if (xrContent != null) {
+            return;
+        }
+        try {
+            XdmNode parsed = XRechnungTransformer.parseXmlContent(tempOriginalFilePath, fileFormat);
+            xrContent = XRechnungTransformer.transformToXR(parsed, FormatDetector.detectXmlFormat(parsed));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new ParserException("Error parsing XML content: " + e.getMessage(), e);
+        } catch (SaxonApiException e) {
+            throw new TransformationException("Error transforming to intermediate representation: " + e.getMessage(), e);
+        }
     }
 
     public void print() throws IOException {
-        NetworkPrinter.print(appConfig.getPrinterIp(), appConfig.getPrinterPort(), tempGeneratedFilePath.toString());
+        // Plain PDFs have no generated file, the original is printed
+        Path printFilePath = tempGeneratedFilePath != null ? tempGeneratedFilePath : tempOriginalFilePath;
+        NetworkPrinter.print(appConfig.getPrinterIp(), appConfig.getPrinterPort(), printFilePath.toString());
+    }
+
+    public void deleteTempFiles() {
+        deleteTempFile(tempGeneratedFilePath);
+        deleteTempFile(tempOriginalFilePath);
+    }
+
+    // Utility method to delete temp files
+    private static void deleteTempFile(Path filePath) {
+        if (filePath != null && Files.exists(filePath)) {
+            try {
+                Files.delete(filePath);
+                System.out.println("Deleted temp file: " + filePath);
+            } catch (Exception e) {
+                System.err.println("Failed to delete temp file: " + filePath + " - " + e.getMessage());
+            }
+        }
     }
 
 }
@@ -0,0 +1,23 @@
+package com.invinciboll.entities;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.UUID;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class VatBreakdownEntity {
+
+    private UUID invoiceId; // Primary Key together with the breakdown number
+    private int breakdownNumber; // Position within the invoice, starting at 1
+    private String vatCategoryCode;
+    private BigDecimal vatRate;
+    private BigDecimal taxableAmount;
+    private BigDecimal taxAmount;
+    private LocalDate issuedDate; // Copied from the invoice, so time range queries need no join
+}
@@ -0,0 +1,8 @@
+package com.invinciboll.enums;
+
+public enum AuditAction {
+    UPLOADED,  // File received and processed, not stored yet
+    PERSISTED, // Stored in the database and the output directory
+    PRINTED,   // Sent to the network printer
+    DELETED    // Removed from the database, the files follow in the background
+}
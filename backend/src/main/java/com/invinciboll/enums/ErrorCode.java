@@ -3,7 +3,7 @@ package com.invinciboll.enums;
 import java.util.HashMap;
 import java.util.Map;
 
-import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.XRechnungTransformer;
 
 public enum ErrorCode {
     ERR001("ERR001"),
@@ -46,8 +46,18 @@ public enum ErrorCode {
         this.code = code;
     }
 
+    /**
+     * The message in the configured language.
+     */
     public String getMessage() {
-        // String lang = AppConfig.getInstance().getLanguage();
-        return messages.getOrDefault("en", messages.get("en")).getOrDefault(code, "Unknown error");
+        return getMessage(XRechnungTransformer.getDefaultLanguage());
+    }
+
+    /**
+     * The message in the given language, e.g. the one requested by the client. Falls back to the
+     * configured language.
+     */
+    public String getMessage(String language) {
+        return messages.get(XRechnungTransformer.resolveLanguage(language)).getOrDefault(code, "Unknown error");
     }
 }
@@ -0,0 +1,6 @@
+package com.invinciboll.enums;
+
+public enum WorkloadClass {
+    INTERACTIVE, // Someone is waiting for the result, e.g. /upload
+    BULK         // Background work like hot folder ingestion or re-rendering
+}
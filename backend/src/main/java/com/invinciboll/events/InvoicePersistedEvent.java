@@ -0,0 +1,10 @@
+package com.invinciboll.events;
+
+import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.entities.TempInvoice;
+
+/**
+ * Published after an invoice has been copied to the output directory and saved to the database.
+ */
+public record InvoicePersistedEvent(TempInvoice invoice, InvoiceEntity entity) {
+}
@@ -0,0 +1,12 @@
+package com.invinciboll.events;
+
+import java.util.List;
+
+import com.invinciboll.entities.InvoiceEntity;
+
+/**
+ * Published after invoices have been deleted from the database. Their files are removed later by
+ * the InvoiceFileCleaner.
+ */
+public record InvoicesDeletedEvent(List<InvoiceEntity> invoices) {
+}
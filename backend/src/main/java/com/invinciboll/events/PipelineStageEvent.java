@@ -0,0 +1,81 @@
+package com.invinciboll.events;
+
+import com.invinciboll.entities.TempInvoice;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder event for one stage of the invoice pipeline. Stages of the transformer do
+ * not know their invoice, so TempInvoice binds itself to the thread while it runs and every
+ * stage event on that thread is committed with the invoice id, file size and formats.
+ * Without an active recording creating and closing these events costs next to nothing.
+ */
+@Name("com.invinciboll.PipelineStage")
+@Label("Pipeline Stage")
+@Category({"E-Invoice Manager", "Pipeline"})
+@Description("One stage of processing, rendering or persisting an invoice")
+@StackTrace(false)
+public class PipelineStageEvent extends Event implements AutoCloseable {
+
+    private static final ThreadLocal<TempInvoice> currentInvoice = new ThreadLocal<>();
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Invoice Id")
+    String invoiceId;
+
+    @Label("File Size")
+    @DataAmount
+    long fileSize;
+
+    @Label("File Format")
+    String fileFormat;
+
+    @Label("XML Format")
+    String xmlFormat;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    public static PipelineStageEvent start(String stage) {
+        PipelineStageEvent event = new PipelineStageEvent();
+        event.stage = stage;
+        event.begin();
+        return event;
+    }
+
+    public static void bind(TempInvoice invoice) {
+        currentInvoice.set(invoice);
+    }
+
+    public static void unbind() {
+        currentInvoice.remove();
+    }
+
+    // Call at the end of the stage, stages closed without it are recorded as failed
+    public void succeeded() {
+        succeeded = true;
+    }
+
+    @Override
+    public void close() {
+        end();
+        if (shouldCommit()) {
+            TempInvoice invoice = currentInvoice.get();
+            if (invoice != null) {
+                invoiceId = invoice.getInvoiceId().toString();
+                fileSize = invoice.getFileSize();
+                fileFormat = invoice.getFileFormat() != null ? invoice.getFileFormat().toString() : null;
+                xmlFormat = invoice.getXmlFormat() != null ? invoice.getXmlFormat().toString() : null;
+            }
+            commit();
+        }
+    }
+}
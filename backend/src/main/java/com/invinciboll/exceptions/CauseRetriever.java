@@ -7,5 +7,20 @@ public class CauseRetriever {
             cause = cause.getCause();
         }
         return cause;
-    }    
+    }
+
+    // First exception of the given type in the cause chain, or null
+    public static <T extends Throwable> T findCause(Throwable throwable, Class<T> type) {
+        Throwable cause = throwable;
+        while (cause != null) {
+            if (type.isInstance(cause)) {
+                return type.cast(cause);
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+            cause = cause.getCause();
+        }
+        return null;
+    }
 }
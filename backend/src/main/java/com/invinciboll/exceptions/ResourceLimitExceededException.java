@@ -0,0 +1,10 @@
+package com.invinciboll.exceptions;
+
+import org.xml.sax.SAXException;
+
+// Thrown from within SAX streams, so it travels through Saxon and FOP as the cause of their exceptions
+public class ResourceLimitExceededException extends SAXException {
+    public ResourceLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,8 @@
+package com.invinciboll.exceptions;
+
+// Well-formed input that is not one of the supported e-invoice formats
+public class UnsupportedFormatException extends ParserException {
+    public UnsupportedFormatException(String message) {
+        super(message, null);
+    }
+}
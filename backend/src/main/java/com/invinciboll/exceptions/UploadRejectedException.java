@@ -0,0 +1,23 @@
+package com.invinciboll.exceptions;
+
+public class UploadRejectedException extends Exception {
+    public enum Reason {
+        INVALID_CONTENT,
+        TOO_LARGE,
+        // Chunked uploads
+        OFFSET_MISMATCH,
+        UNKNOWN_UPLOAD,
+        HASH_MISMATCH
+    }
+
+    private final Reason reason;
+
+    public UploadRejectedException(String message, Reason reason) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
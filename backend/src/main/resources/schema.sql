@@ -9,5 +9,110 @@ CREATE TABLE IF NOT EXISTS InvoiceEntity (
     invoice_reference VARCHAR(512),
     invoice_type_code INTEGER,
     issued_date DATE,
-    total_sum DECIMAL(19, 2)
+    total_sum DECIMAL(19, 2),
+    stylesheet_version VARCHAR(64),
+    semantic_fingerprint VARCHAR(64)
 );
+-- Databases created before the stylesheet version was recorded
+ALTER TABLE InvoiceEntity ADD COLUMN IF NOT EXISTS stylesheet_version VARCHAR(64);
+-- Filled for older invoices by DuplicateIndex on startup
+ALTER TABLE InvoiceEntity ADD COLUMN IF NOT EXISTS semantic_fingerprint VARCHAR(64);
+CREATE INDEX IF NOT EXISTS idx_invoice_issued_date ON InvoiceEntity (issued_date);
+-- Duplicate checks on upload and the hash pre-check of the browser
+CREATE INDEX IF NOT EXISTS idx_invoice_file_hash ON InvoiceEntity (file_hash);
+-- Near-duplicates: same seller, reference, issue date and total
+CREATE INDEX IF NOT EXISTS idx_invoice_semantic_fingerprint ON InvoiceEntity (semantic_fingerprint);
+
+-- Line items (BG-25) and VAT breakdown (BG-23) of e-invoices. The issue date is copied from the
+-- invoice, so reports over time ranges do not have to join InvoiceEntity.
+CREATE TABLE IF NOT EXISTS InvoiceLine (
+    invoice_id UUID NOT NULL,
+    line_number INTEGER NOT NULL,
+    line_identifier VARCHAR(512),
+    item_name VARCHAR(1024),
+    item_name_key VARCHAR(1024),
+    quantity DECIMAL(19, 4),
+    unit_code VARCHAR(50),
+    net_amount DECIMAL(19, 2),
+    vat_category_code VARCHAR(10),
+    vat_rate DECIMAL(7, 2),
+    issued_date DATE,
+    PRIMARY KEY (invoice_id, line_number)
+);
+CREATE INDEX IF NOT EXISTS idx_invoice_line_item_name ON InvoiceLine (item_name_key, issued_date);
+CREATE INDEX IF NOT EXISTS idx_invoice_line_issued_date ON InvoiceLine (issued_date);
+
+CREATE TABLE IF NOT EXISTS InvoiceVatBreakdown (
+    invoice_id UUID NOT NULL,
+    breakdown_number INTEGER NOT NULL,
+    vat_category_code VARCHAR(10),
+    vat_rate DECIMAL(7, 2),
+    taxable_amount DECIMAL(19, 2),
+    tax_amount DECIMAL(19, 2),
+    issued_date DATE,
+    PRIMARY KEY (invoice_id, breakdown_number)
+);
+CREATE INDEX IF NOT EXISTS idx_vat_breakdown_issued_date ON InvoiceVatBreakdown (issued_date, vat_rate);
+
+CREATE TABLE IF NOT EXISTS PendingInvoice (
+    invoice_id UUID PRIMARY KEY,
+    file_hash VARCHAR(512),
+    temp_original_file_name VARCHAR(512),
+    temp_generated_file_name VARCHAR(512),
+    original_file_extension VARCHAR(50),
+    file_format VARCHAR(50),
+    xml_format VARCHAR(50),
+    seller_name VARCHAR(512),
+    invoice_reference VARCHAR(512),
+    invoice_type_code INTEGER,
+    issued_date DATE,
+    total_sum DECIMAL(19, 2),
+    created_at TIMESTAMP NOT NULL
+);
+CREATE INDEX IF NOT EXISTS idx_pending_invoice_created_at ON PendingInvoice (created_at);
+-- Language of the generated PDF in the tempfiles directory
+ALTER TABLE PendingInvoice ADD COLUMN IF NOT EXISTS language VARCHAR(8);
+
+-- Hot folder invoices waiting for manual input, same columns as PendingInvoice but never expired
+CREATE TABLE IF NOT EXISTS ReviewInvoice (
+    invoice_id UUID PRIMARY KEY,
+    file_hash VARCHAR(512),
+    temp_original_file_name VARCHAR(512),
+    temp_generated_file_name VARCHAR(512),
+    original_file_extension VARCHAR(50),
+    file_format VARCHAR(50),
+    xml_format VARCHAR(50),
+    seller_name VARCHAR(512),
+    invoice_reference VARCHAR(512),
+    invoice_type_code INTEGER,
+    issued_date DATE,
+    total_sum DECIMAL(19, 2),
+    created_at TIMESTAMP NOT NULL,
+    language VARCHAR(8)
+);
+
+CREATE TABLE IF NOT EXISTS ReprocessCheckpoint (
+    stylesheet_version VARCHAR(64) PRIMARY KEY,
+    last_invoice_id UUID,
+    processed INTEGER NOT NULL,
+    failed INTEGER NOT NULL,
+    completed BOOLEAN NOT NULL,
+    updated_at TIMESTAMP NOT NULL
+);
+
+-- Deleted invoices. Doubles as queue of the file cleanup, files_deleted_at is set once the files
+-- of the invoice are gone, failed attempts are retried from next_attempt_at on.
+CREATE TABLE IF NOT EXISTS InvoiceTombstone (
+    invoice_id UUID PRIMARY KEY,
+    file_hash VARCHAR(512),
+    original_file_save_path VARCHAR(512),
+    generated_file_save_path VARCHAR(512),
+    seller_name VARCHAR(512),
+    invoice_reference VARCHAR(512),
+    deleted_at TIMESTAMP NOT NULL,
+    files_deleted_at TIMESTAMP,
+    cleanup_attempts INTEGER NOT NULL,
+    next_attempt_at TIMESTAMP,
+    last_error VARCHAR(1024)
+);
+CREATE INDEX IF NOT EXISTS idx_invoice_tombstone_cleanup ON InvoiceTombstone (files_deleted_at, next_attempt_at);
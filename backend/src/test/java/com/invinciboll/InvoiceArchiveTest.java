@@ -0,0 +1,72 @@
+package com.invinciboll;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.entities.InvoiceEntity;
+
+class InvoiceArchiveTest {
+
+    @TempDir
+    Path tempDir;
+
+    private InvoiceDao invoiceDao;
+    private InvoiceArchive invoiceArchive;
+    private Path generatedFile;
+    private Path originalFile;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Path outputBaseDir = tempDir.resolve("output");
+        AppConfig appConfig = mock(AppConfig.class);
+        when(appConfig.getOutputBaseDir()).thenReturn(outputBaseDir.toString());
+        when(appConfig.getArchiveCacheDir()).thenReturn(tempDir.resolve("archive-cache").toString());
+        invoiceDao = mock(InvoiceDao.class);
+        when(invoiceDao.findBySavePathPrefix(anyString())).thenReturn(List.of());
+        invoiceArchive = new InvoiceArchive(appConfig, invoiceDao);
+
+        Path sellerDir = Files.createDirectories(outputBaseDir.resolve("2025").resolve("seller"));
+        generatedFile = Files.writeString(sellerDir.resolve("INV-1_abc.pdf"), "pdf");
+        originalFile = Files.writeString(sellerDir.resolve("original_INV-1_abc.xml"), "xml");
+    }
+
+    @Test
+    void filesOfDeletedInvoiceAreRemoved() throws IOException {
+        invoiceArchive.deleteFiles(List.of(originalFile.toString(), generatedFile.toString()));
+
+        assertFalse(Files.exists(originalFile));
+        assertFalse(Files.exists(generatedFile));
+    }
+
+    @Test
+    void filesOfInvoiceUploadedAgainAfterDeleteAreKept() throws IOException {
+        // Deleted, then the same file uploaded again before the cleanup ran: same save paths, new row
+        InvoiceEntity uploadedAgain = new InvoiceEntity(UUID.randomUUID(), "abc", originalFile.toString(),
+                generatedFile.toString(), "XML", "CII", "seller", "INV-1", 380, LocalDate.of(2025, 3, 1),
+                new BigDecimal("100.00"));
+        when(invoiceDao.findBySavePathPrefix(originalFile.toString())).thenReturn(List.of(uploadedAgain));
+        when(invoiceDao.findBySavePathPrefix(generatedFile.toString())).thenReturn(List.of(uploadedAgain));
+
+        invoiceArchive.deleteFiles(List.of(originalFile.toString(), generatedFile.toString()));
+
+        assertTrue(Files.exists(originalFile));
+        assertTrue(Files.exists(generatedFile));
+    }
+}
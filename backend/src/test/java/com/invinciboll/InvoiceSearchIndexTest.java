@@ -0,0 +1,134 @@
+package com.invinciboll;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.InvoiceDao;
+import com.invinciboll.entities.InvoiceEntity;
+import com.invinciboll.entities.TempInvoice;
+import com.invinciboll.events.InvoicePersistedEvent;
+import com.invinciboll.events.InvoicesDeletedEvent;
+
+class InvoiceSearchIndexTest {
+
+    private static final Duration INDEX_TIMEOUT = Duration.ofSeconds(10);
+
+    @TempDir
+    Path tempDir;
+
+    private InvoiceArchive invoiceArchive;
+    private InvoiceSearchIndex searchIndex;
+
+    @BeforeEach
+    void setUp() {
+        AppConfig appConfig = mock(AppConfig.class);
+        when(appConfig.getSearchDir()).thenReturn(tempDir.resolve("search").toString());
+        when(appConfig.getSearchCommitInterval()).thenReturn(Duration.ofMinutes(1));
+        InvoiceDao invoiceDao = mock(InvoiceDao.class);
+        when(invoiceDao.findAfter(any(), anyInt())).thenReturn(List.of());
+        invoiceArchive = mock(InvoiceArchive.class);
+        searchIndex = new InvoiceSearchIndex(appConfig, invoiceDao, invoiceArchive, mock(ProcessingScheduler.class));
+        searchIndex.startOnStartup();
+    }
+
+    @AfterEach
+    void tearDown() {
+        searchIndex.shutdown();
+    }
+
+    @Test
+    void persistedInvoiceIsFoundByContentAndIdentifier() throws Exception {
+        InvoiceEntity invoice = persist("RE 2025 0042", "Wartung der Heizungsanlage");
+
+        assertEquals(List.of(invoice.getInvoiceId()), awaitHits("heizungsanlage", 1));
+        // Written without the spaces, found through the identifier key
+        assertEquals(List.of(invoice.getInvoiceId()), awaitHits("RE20250042", 1));
+    }
+
+    @Test
+    void deletedInvoiceIsNoLongerFound() throws Exception {
+        InvoiceEntity invoice = persist("RE-7", "Fensterreinigung");
+        awaitHits("fensterreinigung", 1);
+
+        searchIndex.onInvoicesDeleted(new InvoicesDeletedEvent(List.of(invoice)));
+
+        assertEquals(List.of(), awaitHits("fensterreinigung", 0));
+    }
+
+    @Test
+    void eventsAfterShutdownDoNotFail() throws IOException {
+        searchIndex.shutdown();
+        InvoiceEntity invoice = invoice("RE-8", storePdf("Nachzügler"));
+
+        assertDoesNotThrow(() -> searchIndex.onInvoicePersisted(new InvoicePersistedEvent(mock(TempInvoice.class), invoice)));
+        assertDoesNotThrow(() -> searchIndex.onInvoicesDeleted(new InvoicesDeletedEvent(List.of(invoice))));
+    }
+
+    private InvoiceEntity persist(String reference, String text) throws IOException {
+        InvoiceEntity invoice = invoice(reference, storePdf(text));
+        // A plain PDF has no XR tree, its text is extracted from the stored file
+        searchIndex.onInvoicePersisted(new InvoicePersistedEvent(mock(TempInvoice.class), invoice));
+        return invoice;
+    }
+
+    private InvoiceEntity invoice(String reference, Path pdf) throws IOException {
+        when(invoiceArchive.resolve(pdf.toString())).thenReturn(pdf);
+        return new InvoiceEntity(UUID.randomUUID(), "hash", pdf.toString(), pdf.toString(), "PDF", null,
+                "Haustechnik GmbH", reference, 380, LocalDate.of(2025, 3, 1), new BigDecimal("119.00"));
+    }
+
+    private Path storePdf(String text) throws IOException {
+        Path pdf = tempDir.resolve(UUID.randomUUID() + ".pdf");
+        try (PDDocument document = new PDDocument()) {
+            PDPage page = new PDPage();
+            document.addPage(page);
+            try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                content.beginText();
+                content.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 12);
+                content.newLineAtOffset(72, 700);
+                content.showText(text);
+                content.endText();
+            }
+            document.save(pdf.toFile());
+        }
+        return pdf;
+    }
+
+    // Indexing runs in the background and is searchable after the next refresh
+    private List<UUID> awaitHits(String query, int expected) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + INDEX_TIMEOUT.toNanos();
+        List<UUID> invoiceIds;
+        do {
+            invoiceIds = searchIndex.search(query, 0, 10).hits().stream().map(InvoiceSearchIndex.Hit::invoiceId).toList();
+            if (invoiceIds.size() == expected) {
+                return invoiceIds;
+            }
+            Thread.sleep(100);
+        } while (System.nanoTime() < deadline);
+        assertEquals(expected, invoiceIds.size(), "Hits for " + query + ": " + invoiceIds);
+        return invoiceIds;
+    }
+}
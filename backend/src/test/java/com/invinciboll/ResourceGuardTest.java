@@ -0,0 +1,80 @@
+package com.invinciboll;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.StringReader;
+import java.time.Duration;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.jupiter.api.Test;
+
+import com.invinciboll.exceptions.CauseRetriever;
+import com.invinciboll.exceptions.ResourceLimitExceededException;
+
+import net.sf.saxon.s9api.BuildingContentHandler;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SAXDestination;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltTransformer;
+
+class ResourceGuardTest {
+
+    // Node limit out of the way, so only the deadline can stop the endless output below
+    private static final ResourceGuard.Limits LIMITS =
+            new ResourceGuard.Limits(10000, 256, Long.MAX_VALUE, 1000000, Duration.ofSeconds(1), 500);
+
+    // Emits elements forever, stopped by the deadline check of the output guard
+    private static final String ENDLESS_OUTPUT = """
+            <xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+                <xsl:template match="/">
+                    <result>
+                        <xsl:iterate select="1 to 9223372036854775807">
+                            <line><xsl:value-of select="."/></line>
+                        </xsl:iterate>
+                    </result>
+                </xsl:template>
+            </xsl:stylesheet>
+            """;
+
+    private static final String COPY = """
+            <xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+                <xsl:template match="/">
+                    <result><xsl:value-of select="/invoice/id"/></result>
+                </xsl:template>
+            </xsl:stylesheet>
+            """;
+
+    private final Processor processor = new Processor(false);
+
+    @Test
+    void transformationProducingEndlessOutputIsStoppedAtTheTimeout() throws SaxonApiException {
+        XsltTransformer transformer = load(ENDLESS_OUTPUT);
+        BuildingContentHandler destination = processor.newDocumentBuilder().newBuildingContentHandler();
+        transformer.setDestination(new SAXDestination(ResourceGuard.forOutput("xslt-to-xr", LIMITS, destination)));
+
+        SaxonApiException e = assertThrows(SaxonApiException.class, transformer::transform);
+
+        assertNotNull(CauseRetriever.findCause(e, ResourceLimitExceededException.class));
+    }
+
+    @Test
+    void transformationWithinTheLimitsCompletes() throws SaxonApiException {
+        XsltTransformer transformer = load(COPY);
+        BuildingContentHandler destination = processor.newDocumentBuilder().newBuildingContentHandler();
+        transformer.setDestination(new SAXDestination(ResourceGuard.forOutput("xslt-to-xr", LIMITS, destination)));
+
+        transformer.transform();
+
+        assertEquals("INV-1", destination.getDocumentNode().getStringValue());
+    }
+
+    private XsltTransformer load(String stylesheet) throws SaxonApiException {
+        XsltTransformer transformer = processor.newXsltCompiler()
+                .compile(new StreamSource(new StringReader(stylesheet))).load();
+        transformer.setSource(new StreamSource(new StringReader("<invoice><id>INV-1</id></invoice>")));
+        return transformer;
+    }
+}
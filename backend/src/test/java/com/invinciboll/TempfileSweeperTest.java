@@ -0,0 +1,100 @@
+package com.invinciboll;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import com.invinciboll.configuration.AppConfig;
+import com.invinciboll.database.ReviewInvoiceStore;
+import com.invinciboll.entities.TempInvoice;
+
+class TempfileSweeperTest {
+
+    @TempDir
+    Path tempfilesPath;
+
+    private AppConfig appConfig;
+    private PendingInvoiceStore pendingInvoiceStore;
+    private TempfileSweeper sweeper;
+
+    @BeforeEach
+    void setUp() {
+        appConfig = mock(AppConfig.class);
+        when(appConfig.getTempfilesPath()).thenReturn(tempfilesPath);
+        when(appConfig.getRenderScratchPath()).thenReturn(tempfilesPath.resolve("render"));
+        when(appConfig.getTempfilesOrphanGracePeriod()).thenReturn(Duration.ofMinutes(15));
+        when(appConfig.getUploadChunkedExpireAfter()).thenReturn(Duration.ofHours(24));
+        when(appConfig.getTempfilesQuota()).thenReturn(DataSize.ofBytes(100));
+        when(appConfig.getTempfilesMinFreeSpace()).thenReturn(DataSize.ofBytes(0));
+        pendingInvoiceStore = mock(PendingInvoiceStore.class);
+        sweeper = new TempfileSweeper(appConfig, pendingInvoiceStore, mock(ReviewInvoiceStore.class),
+                mock(ChunkedUploadService.class));
+    }
+
+    @Test
+    void sweepDeletesOnlyStaleRenderScratchFiles() throws IOException {
+        Path renderPath = Files.createDirectories(tempfilesPath.resolve("render"));
+        Path staleScratchDir = Files.createDirectory(renderPath.resolve("thumbnail123"));
+        Files.writeString(staleScratchDir.resolve("page.png"), "png");
+        makeOld(staleScratchDir);
+        Path activeScratchDir = Files.createDirectory(renderPath.resolve("thumbnail456"));
+        // Not written by a render, even though named like one
+        Path foreignFile = Files.writeString(tempfilesPath.resolve("thumbnail-notes.txt"), "keep");
+        makeOld(foreignFile);
+
+        sweeper.sweep();
+
+        assertFalse(Files.exists(staleScratchDir));
+        assertTrue(Files.exists(activeScratchDir));
+        assertTrue(Files.exists(foreignFile));
+    }
+
+    @Test
+    void reservationsAreRolledBackWhenOverQuota() {
+        assertTrue(sweeper.tryReserve(60));
+        assertFalse(sweeper.tryReserve(60));
+        assertEquals(60L, sweeper.getStatistics().get("usedBytes"));
+
+        sweeper.release(60);
+        assertTrue(sweeper.tryReserve(100));
+        assertFalse(sweeper.tryReserve(1));
+    }
+
+    @Test
+    void writesRecordedDuringSweepAreKept() throws IOException {
+        UUID invoiceId = UUID.randomUUID();
+        Path tempFile = Files.write(tempfilesPath.resolve("org_" + invoiceId + ".xml"), new byte[30]);
+        makeOld(tempFile);
+        // An upload finishes while the sweep checks the pending invoices
+        when(pendingInvoiceStore.get(any())).thenAnswer(invocation -> {
+            sweeper.recordWrite(10);
+            return mock(TempInvoice.class);
+        });
+
+        sweeper.recordWrite(5);
+        sweeper.sweep();
+
+        // 5 bytes recorded before the sweep are replaced by the 30 found, the 10 written meanwhile stay
+        assertEquals(40L, sweeper.getStatistics().get("usedBytes"));
+    }
+
+    private static void makeOld(Path file) throws IOException {
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(Duration.ofHours(1))));
+    }
+}
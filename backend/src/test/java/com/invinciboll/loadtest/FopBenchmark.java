@@ -0,0 +1,196 @@
+package com.invinciboll.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.fop.apps.Fop;
+import org.apache.fop.apps.FopFactory;
+import org.apache.fop.apps.MimeConstants;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.invinciboll.FormatDetector;
+import com.invinciboll.ServerApplication;
+import com.invinciboll.XRechnungTransformer;
+import com.invinciboll.enums.FileFormat;
+
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Compares PDF rendering with an unconfigured FOP factory, as used before the managed fop.xconf,
+ * against the rendering of XRechnungTransformer: time per render and size of the generated PDF.
+ * The FO trees are prepared once per sample, only the FOP stage is measured.
+ *
+ * <pre>
+ * mvn -Ploadtest test-compile exec:exec@fop-benchmark -Dloadtest.files=/path/to/e-invoices
+ * </pre>
+ */
+public class FopBenchmark {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .enable(SerializationFeature.INDENT_OUTPUT);
+
+    private record Sample(String fileName, XdmNode foContent) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filesDir = System.getProperty("loadtest.files", "");
+        if (filesDir.isBlank()) {
+            throw new IllegalArgumentException("Set loadtest.files to a directory with sample e-invoices");
+        }
+        int warmupIterations = Integer.getInteger("loadtest.fop-warmup-iterations", 2);
+        int iterations = Integer.getInteger("loadtest.fop-iterations", 5);
+        Path reportDir = Path.of(System.getProperty("loadtest.report-dir", "target/loadtest"));
+
+        Path workDir = Files.createTempDirectory("fop-benchmark");
+        ConfigurableApplicationContext context = startBackend(workDir);
+        try {
+            List<Sample> samples = loadSamples(Path.of(filesDir));
+            System.out.println("Benchmarking " + samples.size() + " e-invoices, " + iterations + " renders each");
+
+            FopFactory unconfiguredFactory = FopFactory.newInstance(new File(".").toURI());
+            List<Map<String, Object>> results = new ArrayList<>();
+            long baselineNanos = 0;
+            long configuredNanos = 0;
+            long baselineBytes = 0;
+            long configuredBytes = 0;
+            for (Sample sample : samples) {
+                Path baselinePdf = workDir.resolve("baseline.pdf");
+                Path configuredPdf = workDir.resolve("configured.pdf");
+                for (int i = 0; i < warmupIterations; i++) {
+                    renderUnconfigured(unconfiguredFactory, sample.foContent(), baselinePdf);
+                    XRechnungTransformer.renderPDF(sample.foContent(), configuredPdf.toString());
+                }
+
+                long sampleBaselineNanos = 0;
+                long sampleConfiguredNanos = 0;
+                for (int i = 0; i < iterations; i++) {
+                    long started = System.nanoTime();
+                    renderUnconfigured(unconfiguredFactory, sample.foContent(), baselinePdf);
+                    sampleBaselineNanos += System.nanoTime() - started;
+
+                    started = System.nanoTime();
+                    XRechnungTransformer.renderPDF(sample.foContent(), configuredPdf.toString());
+                    sampleConfiguredNanos += System.nanoTime() - started;
+                }
+
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("file", sample.fileName());
+                result.put("baselineMillis", sampleBaselineNanos / iterations / 1_000_000.0);
+                result.put("configuredMillis", sampleConfiguredNanos / iterations / 1_000_000.0);
+                result.put("baselineBytes", Files.size(baselinePdf));
+                result.put("configuredBytes", Files.size(configuredPdf));
+                results.add(result);
+
+                baselineNanos += sampleBaselineNanos;
+                configuredNanos += sampleConfiguredNanos;
+                baselineBytes += Files.size(baselinePdf);
+                configuredBytes += Files.size(configuredPdf);
+            }
+
+            long renders = (long) samples.size() * iterations;
+            Map<String, Object> totals = new LinkedHashMap<>();
+            totals.put("baselineMillisPerRender", renders > 0 ? baselineNanos / renders / 1_000_000.0 : 0.0);
+            totals.put("configuredMillisPerRender", renders > 0 ? configuredNanos / renders / 1_000_000.0 : 0.0);
+            totals.put("baselineBytes", baselineBytes);
+            totals.put("configuredBytes", configuredBytes);
+            totals.put("sizeRatio", baselineBytes > 0 ? (double) configuredBytes / baselineBytes : 0.0);
+            totals.put("timeRatio", baselineNanos > 0 ? (double) configuredNanos / baselineNanos : 0.0);
+
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("timestamp", LocalDateTime.now().toString());
+            report.put("fopConfig", context.getEnvironment().getProperty("fop.config"));
+            report.put("pdfAMode", context.getEnvironment().getProperty("fop.pdf-a-mode"));
+            report.put("iterations", iterations);
+            report.put("totals", totals);
+            report.put("samples", results);
+
+            Files.createDirectories(reportDir);
+            Path reportFile = reportDir.resolve("fop-benchmark.json");
+            objectMapper.writeValue(reportFile.toFile(), report);
+            System.out.println(objectMapper.writeValueAsString(totals));
+            System.out.println("Report written to " + reportFile);
+        } finally {
+            context.close();
+            FileUtils.deleteQuietly(workDir.toFile());
+        }
+    }
+
+    private static ConfigurableApplicationContext startBackend(Path workDir) {
+        // Only for the configuration of XRechnungTransformer, no web server and no background jobs
+        return new SpringApplicationBuilder(ServerApplication.class)
+                .web(WebApplicationType.NONE)
+                .run(
+                    "--spring.datasource.url=jdbc:h2:mem:fop-benchmark",
+                    "--output.dir=" + workDir.resolve("output"),
+                    "--tempfiles.dir=" + workDir.resolve("tempfiles"),
+                    "--thumbnails.dir=" + workDir.resolve("thumbnails"),
+                    "--hotfolder.enabled=false",
+                    "--reprocess.on-startup=false",
+                    "--archive.enabled=false",
+                    "--warmup.enabled=false",
+                    "--logging.level.com.invinciboll=WARN");
+    }
+
+    private static List<Sample> loadSamples(Path filesDir) throws Exception {
+        List<Sample> samples = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(filesDir, 3)) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                FileFormat format = FormatDetector.detectFileFormat(file);
+                if (format != FileFormat.XML && format != FileFormat.ZF_PDF) {
+                    continue;
+                }
+                try {
+                    XdmNode xmlContent = XRechnungTransformer.parseXmlContent(file, format);
+                    XdmNode xrContent = XRechnungTransformer.transformToXR(xmlContent, FormatDetector.detectXmlFormat(xmlContent));
+                    samples.add(new Sample(file.getFileName().toString(), XRechnungTransformer.transformToFO(xrContent)));
+                } catch (Exception e) {
+                    System.err.println("Skipping " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("No e-invoices in " + filesDir);
+        }
+        return samples;
+    }
+
+    // Rendering as before the managed configuration: serialized FO file, parsed again into FOP
+    private static void renderUnconfigured(FopFactory fopFactory, XdmNode foContent, Path outputPdf) throws Exception {
+        File tempFOFile = File.createTempFile("benchmark", ".fo");
+        try {
+            try (OutputStream foOut = new FileOutputStream(tempFOFile)) {
+                Serializer serializer = foContent.getProcessor().newSerializer(foOut);
+                serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
+                serializer.setOutputProperty(Serializer.Property.INDENT, "yes");
+                serializer.serializeNode(foContent);
+            }
+            try (OutputStream pdfOut = new FileOutputStream(outputPdf.toFile())) {
+                Fop fop = fopFactory.newFop(MimeConstants.MIME_PDF, fopFactory.newFOUserAgent(), pdfOut);
+                Transformer transformer = TransformerFactory.newInstance().newTransformer();
+                transformer.transform(new StreamSource(tempFOFile), new SAXResult(fop.getDefaultHandler()));
+            }
+        } finally {
+            tempFOFile.delete();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.invinciboll.loadtest;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the latencies and outcomes of the requests to one endpoint.
+ */
+public class LatencyRecorder {
+
+    private long[] latencies = new long[1024];
+    private int count;
+    private long errors;
+
+    public synchronized void record(long latencyNanos, boolean success) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latencyNanos;
+        if (!success) {
+            errors++;
+        }
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized Map<String, Object> summarize(double durationSeconds) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("requests", count);
+        summary.put("errors", errors);
+        summary.put("errorRate", count > 0 ? (double) errors / count : 0.0);
+        summary.put("throughputPerSecond", count / durationSeconds);
+        summary.put("p50Millis", percentileMillis(sorted, 0.50));
+        summary.put("p95Millis", percentileMillis(sorted, 0.95));
+        summary.put("p99Millis", percentileMillis(sorted, 0.99));
+        summary.put("maxMillis", count > 0 ? sorted[count - 1] / 1_000_000.0 : 0.0);
+        return summary;
+    }
+
+    // Nearest rank percentile
+    private static double percentileMillis(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1_000_000.0;
+    }
+}
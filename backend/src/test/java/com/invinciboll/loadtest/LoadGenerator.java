@@ -0,0 +1,496 @@
+package com.invinciboll.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.invinciboll.FormatDetector;
+import com.invinciboll.ServerApplication;
+import com.invinciboll.enums.FileFormat;
+
+/**
+ * Load test harness for the REST API. Starts the backend with H2 and all file directories in a
+ * temp directory and a local TCP sink as printer, then drives /upload, /persist, /print,
+ * /invoices and /meta/sellers from concurrent clients for a fixed time after a warm-up.
+ * Throughput, latency percentiles, error rate and heap/GC figures are printed and written as JSON
+ * report, optionally compared against the report of an earlier run.
+ *
+ * Run it through the loadtest profile, see pom.xml for all options:
+ * mvn -Ploadtest test-compile exec:exec -Dloadtest.files=/path/to/sample/invoices
+ */
+public class LoadGenerator {
+
+    private static final String UPLOAD = "/upload";
+    private static final String PERSIST = "/persist";
+    private static final String PRINT = "/print";
+    private static final String INVOICES = "/invoices";
+    private static final String SELLERS = "/meta/sellers";
+    private static final List<String> ENDPOINTS = List.of(UPLOAD, PERSIST, PRINT, INVOICES, SELLERS);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .enable(SerializationFeature.INDENT_OUTPUT);
+
+    private record Config(Path filesDir, int concurrency, Duration warmup, Duration duration,
+            Map<FileFormat, Integer> mix, double readRatio, double printRatio, Path reportDir,
+            Path baseline, String label) {
+
+        static Config fromSystemProperties() {
+            String filesDir = System.getProperty("loadtest.files", "");
+            if (filesDir.isBlank()) {
+                throw new IllegalArgumentException("Set loadtest.files to a directory with sample invoices");
+            }
+            String baseline = System.getProperty("loadtest.baseline", "");
+            return new Config(
+                    Path.of(filesDir),
+                    Integer.getInteger("loadtest.concurrency", 8),
+                    Duration.ofSeconds(Integer.getInteger("loadtest.warmup-seconds", 10)),
+                    Duration.ofSeconds(Integer.getInteger("loadtest.duration-seconds", 60)),
+                    parseMix(System.getProperty("loadtest.mix", "xml:5,zugferd:3,pdf:2")),
+                    Double.parseDouble(System.getProperty("loadtest.read-ratio", "0.3")),
+                    Double.parseDouble(System.getProperty("loadtest.print-ratio", "0.5")),
+                    Path.of(System.getProperty("loadtest.report-dir", "target/loadtest")),
+                    baseline.isBlank() ? null : Path.of(baseline),
+                    System.getProperty("loadtest.label", "loadtest"));
+        }
+
+        // e.g. "xml:5,zugferd:3,pdf:2"
+        private static Map<FileFormat, Integer> parseMix(String mix) {
+            Map<FileFormat, Integer> weights = new EnumMap<>(FileFormat.class);
+            for (String entry : mix.split(",")) {
+                String[] parts = entry.trim().split(":");
+                FileFormat format = switch (parts[0].trim().toLowerCase()) {
+                    case "xml" -> FileFormat.XML;
+                    case "zugferd" -> FileFormat.ZF_PDF;
+                    case "pdf" -> FileFormat.PDF;
+                    default -> throw new IllegalArgumentException("Unknown file type in loadtest.mix: " + parts[0]);
+                };
+                weights.put(format, Integer.parseInt(parts[1].trim()));
+            }
+            return weights;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("concurrency", concurrency);
+            map.put("warmupSeconds", warmup.toSeconds());
+            map.put("durationSeconds", duration.toSeconds());
+            map.put("mix", mix);
+            map.put("readRatio", readRatio);
+            map.put("printRatio", printRatio);
+            return map;
+        }
+    }
+
+    private record Sample(String fileName, FileFormat format, byte[] content) {
+    }
+
+    private final Config config;
+    private final Map<FileFormat, List<Sample>> samples;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    private final AtomicLong uploadCounter = new AtomicLong();
+    private URI baseUri;
+    private Map<String, Object> coldStart;
+
+    private LoadGenerator(Config config, Map<FileFormat, List<Sample>> samples) {
+        this.config = config;
+        this.samples = samples;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.fromSystemProperties();
+        Map<FileFormat, List<Sample>> samples = loadSamples(config);
+
+        Path workDir = Files.createTempDirectory("loadtest");
+        try (PrinterSink printer = new PrinterSink()) {
+            boolean pipelineWarmup = Boolean.parseBoolean(System.getProperty("loadtest.pipeline-warmup", "true"));
+            long startupStarted = System.nanoTime();
+            ConfigurableApplicationContext context = startBackend(workDir, printer.getPort(), pipelineWarmup);
+            long startupMillis = (System.nanoTime() - startupStarted) / 1_000_000;
+            try {
+                LoadGenerator loadGenerator = new LoadGenerator(config, samples);
+                loadGenerator.baseUri = URI.create("http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort());
+                loadGenerator.coldStart = loadGenerator.measureColdStart(startupMillis, pipelineWarmup);
+                System.out.println("Started in " + startupMillis + " ms, first upload took " + loadGenerator.coldStart.get("firstUploadMillis") + " ms");
+
+                System.out.println("Warming up for " + config.warmup().toSeconds() + "s");
+                loadGenerator.runPhase(config.warmup());
+
+                System.out.println("Measuring for " + config.duration().toSeconds() + "s with " + config.concurrency() + " clients");
+                JvmStatistics jvmStatistics = JvmStatistics.start();
+                long started = System.nanoTime();
+                Map<String, LatencyRecorder> recorders = loadGenerator.runPhase(config.duration());
+                double seconds = (System.nanoTime() - started) / 1_000_000_000.0;
+
+                Map<String, Object> report = loadGenerator.buildReport(recorders, seconds, jvmStatistics.stop(seconds), printer);
+                writeReport(config, report);
+            } finally {
+                context.close();
+            }
+        } finally {
+            FileUtils.deleteQuietly(workDir.toFile());
+        }
+    }
+
+    private static ConfigurableApplicationContext startBackend(Path workDir, int printerPort, boolean pipelineWarmup) {
+        // Command line arguments, so they take precedence over application.properties
+        return new SpringApplicationBuilder(ServerApplication.class).run(
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:file:" + workDir.resolve("data/invoices"),
+                "--output.dir=" + workDir.resolve("output"),
+                "--tempfiles.dir=" + workDir.resolve("tempfiles"),
+                "--thumbnails.dir=" + workDir.resolve("thumbnails"),
+                "--printer.ip=127.0.0.1",
+                "--printer.port=" + printerPort,
+                "--hotfolder.enabled=false",
+                "--reprocess.on-startup=false",
+                "--warmup.enabled=" + pipelineWarmup,
+                "--logging.level.com.invinciboll=" + System.getProperty("loadtest.log-level", "WARN"));
+    }
+
+    private static Map<FileFormat, List<Sample>> loadSamples(Config config) throws IOException {
+        Map<FileFormat, List<Sample>> samples = new EnumMap<>(FileFormat.class);
+        try (Stream<Path> files = Files.walk(config.filesDir(), 3)) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                String fileName = file.getFileName().toString().toLowerCase();
+                if (!fileName.endsWith(".xml") && !fileName.endsWith(".pdf")) {
+                    continue;
+                }
+                FileFormat format = FormatDetector.detectFileFormat(file);
+                if (format == FileFormat.INVALID) {
+                    continue;
+                }
+                samples.computeIfAbsent(format, key -> new ArrayList<>())
+                        .add(new Sample(file.getFileName().toString(), format, Files.readAllBytes(file)));
+            }
+        }
+
+        for (Map.Entry<FileFormat, Integer> entry : config.mix().entrySet()) {
+            if (entry.getValue() > 0 && !samples.containsKey(entry.getKey())) {
+                throw new IllegalArgumentException("No " + entry.getKey() + " samples in " + config.filesDir());
+            }
+        }
+        samples.forEach((format, list) -> System.out.println("Loaded " + list.size() + " " + format + " samples"));
+        return samples;
+    }
+
+    private Map<String, LatencyRecorder> runPhase(Duration duration) throws InterruptedException {
+        Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+        ENDPOINTS.forEach(endpoint -> recorders.put(endpoint, new LatencyRecorder()));
+
+        long deadline = System.nanoTime() + duration.toNanos();
+        ExecutorService clients = Executors.newFixedThreadPool(config.concurrency());
+        for (int i = 0; i < config.concurrency(); i++) {
+            clients.submit(() -> {
+                while (System.nanoTime() < deadline) {
+                    runIteration(recorders);
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(duration.toSeconds() + 300, TimeUnit.SECONDS);
+        return recorders;
+    }
+
+    // One user action: either a read or the upload of an invoice, optionally printed, then persisted
+    private void runIteration(Map<String, LatencyRecorder> recorders) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < config.readRatio()) {
+            String endpoint = random.nextBoolean() ? INVOICES : SELLERS;
+            send(recorders.get(endpoint), HttpRequest.newBuilder(baseUri.resolve(endpoint)).GET().build());
+            return;
+        }
+
+        Sample sample = pickSample(random);
+        long number = uploadCounter.incrementAndGet();
+        HttpResponse<String> response = send(recorders.get(UPLOAD), buildUploadRequest(sample, number));
+        if (response == null || response.statusCode() != 200) {
+            return;
+        }
+
+        String invoiceId;
+        try {
+            invoiceId = objectMapper.readTree(response.body()).path("invoiceId").asText();
+        } catch (IOException e) {
+            return;
+        }
+
+        if (random.nextDouble() < config.printRatio()) {
+            send(recorders.get(PRINT), HttpRequest.newBuilder(baseUri.resolve(PRINT + "?invoiceId=" + invoiceId))
+                    .POST(HttpRequest.BodyPublishers.noBody()).build());
+        }
+
+        HttpRequest.Builder persist = HttpRequest.newBuilder(baseUri.resolve(PERSIST + "?invoiceId=" + invoiceId));
+        if (sample.format() == FileFormat.PDF) {
+            // Plain PDFs need the key information from the user
+            persist.header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(buildKeyInformation(number)));
+        } else {
+            persist.POST(HttpRequest.BodyPublishers.noBody());
+        }
+        send(recorders.get(PERSIST), persist.build());
+    }
+
+    // Time to first fast request: startup until ready, then the latency of the very first upload
+    private Map<String, Object> measureColdStart(long startupMillis, boolean pipelineWarmup) {
+        LatencyRecorder recorder = new LatencyRecorder();
+        long started = System.nanoTime();
+        HttpResponse<String> response = send(recorder, buildUploadRequest(pickSample(ThreadLocalRandom.current()), uploadCounter.incrementAndGet()));
+        long firstUploadMillis = (System.nanoTime() - started) / 1_000_000;
+
+        Map<String, Object> coldStart = new LinkedHashMap<>();
+        coldStart.put("pipelineWarmup", pipelineWarmup);
+        coldStart.put("startupMillis", startupMillis);
+        coldStart.put("firstUploadMillis", firstUploadMillis);
+        coldStart.put("firstUploadStatus", response != null ? response.statusCode() : -1);
+        coldStart.put("timeToFirstResponseMillis", startupMillis + firstUploadMillis);
+        return coldStart;
+    }
+
+    private Sample pickSample(ThreadLocalRandom random) {
+        int totalWeight = config.mix().values().stream().mapToInt(Integer::intValue).sum();
+        int pick = random.nextInt(totalWeight);
+        for (Map.Entry<FileFormat, Integer> entry : config.mix().entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                List<Sample> candidates = samples.get(entry.getKey());
+                return candidates.get(random.nextInt(candidates.size()));
+            }
+        }
+        throw new IllegalStateException("Empty loadtest.mix");
+    }
+
+    private HttpRequest buildUploadRequest(Sample sample, long number) {
+        // Every upload gets a unique hash, otherwise persisting collides with the earlier copy
+        String marker = sample.format() == FileFormat.XML
+                ? "\n<!-- loadtest " + number + " -->\n"
+                : "\n%loadtest " + number + "\n";
+        String contentType = sample.format() == FileFormat.XML ? "application/xml" : "application/pdf";
+        String boundary = "loadtest-" + UUID.randomUUID();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(sample.content().length + 512);
+        body.writeBytes(("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + sample.fileName() + "\"\r\n"
+                + "Content-Type: " + contentType + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(sample.content());
+        body.writeBytes(marker.getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        return HttpRequest.newBuilder(baseUri.resolve(UPLOAD))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build();
+    }
+
+    private static String buildKeyInformation(long number) {
+        Map<String, Object> keyInformation = new LinkedHashMap<>();
+        keyInformation.put("invoiceReference", "LT-" + number);
+        keyInformation.put("sellerName", "Loadtest Seller " + (number % 25));
+        keyInformation.put("invoiceType", "380");
+        keyInformation.put("invoiceDate", LocalDate.of(2024, 1, 1).plusDays(number % 365).toString());
+        keyInformation.put("totalSum", "119.00");
+        try {
+            return objectMapper.writeValueAsString(keyInformation);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private HttpResponse<String> send(LatencyRecorder recorder, HttpRequest request) {
+        long started = System.nanoTime();
+        try {
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            recorder.record(System.nanoTime() - started, response.statusCode() < 400);
+            return response;
+        } catch (IOException e) {
+            recorder.record(System.nanoTime() - started, false);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private Map<String, Object> buildReport(Map<String, LatencyRecorder> recorders, double seconds,
+            Map<String, Object> jvm, PrinterSink printer) {
+        Map<String, Object> endpoints = new LinkedHashMap<>();
+        long requests = 0;
+        long errors = 0;
+        for (Map.Entry<String, LatencyRecorder> entry : recorders.entrySet()) {
+            Map<String, Object> summary = entry.getValue().summarize(seconds);
+            endpoints.put(entry.getKey(), summary);
+            requests += ((Number) summary.get("requests")).longValue();
+            errors += ((Number) summary.get("errors")).longValue();
+        }
+
+        Map<String, Object> totals = new LinkedHashMap<>();
+        totals.put("requests", requests);
+        totals.put("errors", errors);
+        totals.put("errorRate", requests > 0 ? (double) errors / requests : 0.0);
+        totals.put("throughputPerSecond", requests / seconds);
+
+        Map<String, Object> printed = new LinkedHashMap<>();
+        printed.put("jobs", printer.getJobs());
+        printed.put("bytes", printer.getBytes());
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("label", config.label());
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("config", config.toMap());
+        report.put("coldStart", coldStart);
+        report.put("measuredSeconds", seconds);
+        report.put("totals", totals);
+        report.put("endpoints", endpoints);
+        report.put("jvm", jvm);
+        report.put("printer", printed);
+        return report;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeReport(Config config, Map<String, Object> report) throws IOException {
+        System.out.println();
+        System.out.printf("%-15s %9s %8s %9s %9s %9s %9s %8s%n",
+                "endpoint", "requests", "req/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "errors");
+        Map<String, Map<String, Object>> endpoints = (Map<String, Map<String, Object>>) report.get("endpoints");
+        endpoints.forEach((endpoint, summary) -> System.out.printf("%-15s %9d %8.1f %9.1f %9.1f %9.1f %9.1f %7.2f%%%n",
+                endpoint, summary.get("requests"), summary.get("throughputPerSecond"), summary.get("p50Millis"),
+                summary.get("p95Millis"), summary.get("p99Millis"), summary.get("maxMillis"),
+                (double) summary.get("errorRate") * 100));
+        System.out.println();
+        System.out.println("Totals: " + report.get("totals"));
+        System.out.println("JVM:    " + report.get("jvm"));
+
+        if (config.baseline() != null) {
+            printComparison(objectMapper.readTree(config.baseline().toFile()), endpoints);
+        }
+
+        Files.createDirectories(config.reportDir());
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        Path reportFile = config.reportDir().resolve(config.label() + "-" + timestamp + ".json");
+        objectMapper.writeValue(reportFile.toFile(), report);
+        System.out.println("Report written to " + reportFile.toAbsolutePath());
+    }
+
+    private static void printComparison(JsonNode baseline, Map<String, Map<String, Object>> endpoints) {
+        System.out.println();
+        System.out.println("Compared to " + baseline.path("label").asText() + " (" + baseline.path("timestamp").asText() + "):");
+        System.out.printf("%-15s %10s %10s %10s %12s%n", "endpoint", "req/s", "p95", "p99", "error rate");
+        endpoints.forEach((endpoint, summary) -> {
+            JsonNode before = baseline.path("endpoints").path(endpoint);
+            if (before.isMissingNode()) {
+                return;
+            }
+            System.out.printf("%-15s %10s %10s %10s %+11.2fpp%n", endpoint,
+                    change(before.path("throughputPerSecond").asDouble(), (double) summary.get("throughputPerSecond")),
+                    change(before.path("p95Millis").asDouble(), (double) summary.get("p95Millis")),
+                    change(before.path("p99Millis").asDouble(), (double) summary.get("p99Millis")),
+                    ((double) summary.get("errorRate") - before.path("errorRate").asDouble()) * 100);
+        });
+    }
+
+    private static String change(double before, double after) {
+        if (before == 0) {
+            return "n/a";
+        }
+        return String.format("%+.1f%%", (after - before) / before * 100);
+    }
+
+    /**
+     * Heap and GC figures of the measured phase. The backend runs in this JVM, so they cover the
+     * server and the clients, which is fine for comparing runs of the same harness.
+     */
+    private static class JvmStatistics {
+        private final Map<String, long[]> gcBefore = new LinkedHashMap<>();
+        private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "loadtest-heap-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final AtomicLong heapSamples = new AtomicLong();
+        private final AtomicLong heapUsedSum = new AtomicLong();
+
+        static JvmStatistics start() {
+            JvmStatistics statistics = new JvmStatistics();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                statistics.gcBefore.put(gc.getName(), new long[] {gc.getCollectionCount(), gc.getCollectionTime()});
+            }
+            heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+            statistics.sampler.scheduleAtFixedRate(() -> {
+                statistics.heapUsedSum.addAndGet(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+                statistics.heapSamples.incrementAndGet();
+            }, 0, 100, TimeUnit.MILLISECONDS);
+            return statistics;
+        }
+
+        Map<String, Object> stop(double seconds) {
+            sampler.shutdownNow();
+
+            Map<String, Object> collectors = new LinkedHashMap<>();
+            long totalCount = 0;
+            long totalTime = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                long[] before = gcBefore.getOrDefault(gc.getName(), new long[] {0, 0});
+                long count = gc.getCollectionCount() - before[0];
+                long time = gc.getCollectionTime() - before[1];
+                totalCount += count;
+                totalTime += time;
+                collectors.put(gc.getName(), Map.of("collections", count, "timeMillis", time));
+            }
+
+            // Sum of the pool peaks, an upper bound of the actual heap peak
+            long peakHeap = heapPools().stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+
+            Map<String, Object> jvm = new LinkedHashMap<>();
+            jvm.put("javaVersion", System.getProperty("java.version"));
+            jvm.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+            jvm.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+            jvm.put("avgHeapUsedBytes", heapSamples.get() > 0 ? heapUsedSum.get() / heapSamples.get() : 0);
+            jvm.put("peakHeapUsedBytes", peakHeap);
+            jvm.put("gcCollections", totalCount);
+            jvm.put("gcTimeMillis", totalTime);
+            jvm.put("gcTimeRatio", totalTime / (seconds * 1000));
+            jvm.put("collectors", collectors);
+            return jvm;
+        }
+
+        private static List<MemoryPoolMXBean> heapPools() {
+            return ManagementFactory.getMemoryPoolMXBeans().stream()
+                    .filter(pool -> pool.getType() == MemoryType.HEAP)
+                    .toList();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.invinciboll.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for the network printer: accepts raw print jobs on a local port and discards them.
+ */
+public class PrinterSink implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "printer-sink");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong jobs = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    public PrinterSink() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.submit(this::acceptJobs);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getJobs() {
+        return jobs.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    private void acceptJobs() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.submit(() -> readJob(socket));
+            } catch (SocketException e) {
+                // Closed
+            } catch (IOException e) {
+                System.err.println("Printer sink failed to accept a job: " + e.getMessage());
+            }
+        }
+    }
+
+    private void readJob(Socket socket) {
+        try (socket; InputStream in = socket.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.addAndGet(read);
+            }
+            jobs.incrementAndGet();
+        } catch (IOException e) {
+            System.err.println("Printer sink failed to read a job: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+}
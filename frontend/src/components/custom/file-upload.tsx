@@ -2,7 +2,7 @@ import { Card, CardContent } from "@/components/ui/card";
 import { backendUrl } from "@/Envs";
 import { FileInfo, Progress } from "@/types";
 import { DocumentCurrencyEuroIcon } from "@heroicons/react/24/solid";
-import { AlertCircle, XIcon } from "lucide-react";
+import { AlertCircle, Info, XIcon } from "lucide-react";
 import React, {
     forwardRef,
     useImperativeHandle,
@@ -14,14 +14,112 @@ import { useTranslation } from "react-i18next";
 import { Alert, AlertDescription, AlertTitle } from "@/components/ui/alert";
 import AnimatedButton from "./animated-button";
 
+// Same hash as stored by the backend (FormatDetector.FILE_HASH_ALGORITHM). Web Crypto is only
+// available in secure contexts, without it the pre-check is skipped.
+const computeFileHash = async (file: File): Promise<string | null> => {
+    if (!window.crypto?.subtle) {
+        return null;
+    }
+    const digest = await window.crypto.subtle.digest("SHA-256", await file.arrayBuffer());
+    return Array.from(new Uint8Array(digest))
+        .map((b) => b.toString(16).padStart(2, "0"))
+        .join("");
+};
+
+// Asks the backend whether a file with this hash is already stored, unknown on any failure
+const isKnownFile = async (fileHash: string | null): Promise<boolean> => {
+    if (fileHash === null) {
+        return false;
+    }
+    try {
+        const response = await fetch(`${backendUrl}/upload/known-hashes`, {
+            method: "POST",
+            headers: { "Content-Type": "application/json" },
+            body: JSON.stringify([fileHash]),
+        });
+        if (!response.ok) {
+            return false;
+        }
+        const { known } = await response.json();
+        return known.includes(fileHash);
+    } catch (err) {
+        return false;
+    }
+};
+
+// Files above this size are sent as resumable chunked upload instead of a single request
+const CHUNKED_UPLOAD_THRESHOLD = 8 * 1024 * 1024;
+const CHUNK_RETRIES = 5;
+
+const sleep = (millis: number) => new Promise((resolve) => setTimeout(resolve, millis));
+
+// Sends the file in chunks, after a failed chunk it continues from the offset the backend has
+// received instead of starting over. Resolves with the response of the final processing request.
+const uploadChunked = async (file: File, fileHash: string | null, language: string): Promise<Response> => {
+    const params = new URLSearchParams({
+        filename: file.name,
+        size: String(file.size),
+        contentType: file.type,
+    });
+    const startResponse = await fetch(`${backendUrl}/upload/chunked?${params}`, { method: "POST" });
+    if (!startResponse.ok) {
+        return startResponse;
+    }
+    const { uploadId, chunkSize } = await startResponse.json();
+    const uploadUrl = `${backendUrl}/upload/chunked/${uploadId}`;
+
+    let offset = 0;
+    let failures = 0;
+    while (offset < file.size) {
+        try {
+            const response = await fetch(`${uploadUrl}?offset=${offset}`, {
+                method: "PUT",
+                headers: { "Content-Type": "application/octet-stream" },
+                body: file.slice(offset, offset + chunkSize),
+            });
+            if (response.ok) {
+                offset = (await response.json()).offset;
+                failures = 0;
+                continue;
+            }
+            if (response.status !== 409 && response.status < 500) {
+                return response;
+            }
+        } catch (err) {
+            // Connection lost, resume below
+        }
+
+        failures++;
+        if (failures > CHUNK_RETRIES) {
+            throw new Error("Chunked upload failed");
+        }
+        await sleep(1000 * failures);
+        try {
+            const offsetResponse = await fetch(uploadUrl);
+            if (offsetResponse.ok) {
+                offset = (await offsetResponse.json()).offset;
+            }
+        } catch (err) {
+            // Still offline, the next attempt will tell
+        }
+    }
+
+    const completeParams = new URLSearchParams({ language });
+    if (fileHash !== null) {
+        completeParams.set("fileHash", fileHash);
+    }
+    return fetch(`${uploadUrl}/complete?${completeParams}`, { method: "POST" });
+};
+
 type FileUploadProps = {
     onUpload: (fileInfo: FileInfo) => void;
 };
 
 const FileUpload = forwardRef(({ onUpload }: FileUploadProps, ref) => {
-    const { t } = useTranslation();
+    const { t, i18n } = useTranslation();
     const [file, setFile] = useState<File | null>(null);
     const [error, setError] = useState("");
+    const [alreadyKnown, setAlreadyKnown] = useState(false);
     const [uploadStatus, setUploadStatus] =
         React.useState<Progress>("NOT_STARTED");
     const fileInputRef = useRef<HTMLInputElement>(null);
@@ -46,6 +144,7 @@ const FileUpload = forwardRef(({ onUpload }: FileUploadProps, ref) => {
             setError("Only PDF and XML files are allowed.");
         } else {
             setFile(validFiles[0]);
+            setAlreadyKnown(false);
             setUploadStatus("NOT_STARTED");
         }
     };
@@ -63,6 +162,7 @@ const FileUpload = forwardRef(({ onUpload }: FileUploadProps, ref) => {
     const clearFiles = () => {
         setFile(null);
         setError("");
+        setAlreadyKnown(false);
         setUploadStatus("NOT_STARTED");
     };
 
@@ -81,14 +181,29 @@ const FileUpload = forwardRef(({ onUpload }: FileUploadProps, ref) => {
         setError("");
         setUploadStatus("IN_PROGRESS");
 
-        const formData = new FormData();
-        formData.append("file", file);
+        // Files that are already stored are neither uploaded nor processed again
+        const fileHash = await computeFileHash(file).catch(() => null);
+        if (await isKnownFile(fileHash)) {
+            setAlreadyKnown(true);
+            setUploadStatus("NOT_STARTED");
+            return;
+        }
 
         try {
-            const response = await fetch(`${backendUrl}/upload`, {
-                method: "POST",
-                body: formData,
-            });
+            // Send the raw file, the backend streams it straight to disk. Large files go in
+            // chunks, so an interrupted upload does not start from zero. The generated PDF is
+            // rendered in the language of the UI.
+            const language = i18n.resolvedLanguage ?? "en";
+            const response = file.size > CHUNKED_UPLOAD_THRESHOLD
+                ? await uploadChunked(file, fileHash, language)
+                : await fetch(
+                    `${backendUrl}/upload/stream?filename=${encodeURIComponent(file.name)}&language=${language}`,
+                    {
+                        method: "POST",
+                        headers: { "Content-Type": file.type },
+                        body: file,
+                    }
+                );
 
             if (response.ok) {
                 const jsonResponse = await response.json();
@@ -99,6 +214,7 @@ const FileUpload = forwardRef(({ onUpload }: FileUploadProps, ref) => {
                     xmlFormat,
                     keyInformation,
                     alreadyExists,
+                    possibleDuplicates,
                 } = jsonResponse;
 
                 const fileInfo: FileInfo = {
@@ -108,6 +224,7 @@ const FileUpload = forwardRef(({ onUpload }: FileUploadProps, ref) => {
                     technicalStandard: xmlFormat,
                     keyInformation,
                     alreadyExists,
+                    possibleDuplicates: possibleDuplicates ?? [],
                 };
                 setUploadStatus("DONE");
                 setFile(null);
@@ -178,6 +295,15 @@ const FileUpload = forwardRef(({ onUpload }: FileUploadProps, ref) => {
                 </Alert>
             )}
 
+            {/* Already imported */}
+            {alreadyKnown && (
+                <Alert className="max-w-lg">
+                    <Info className="h-4 w-4" />
+                    <AlertTitle>{t("alert.info.file-exists-header")}</AlertTitle>
+                    <AlertDescription>{t("alert.info.file-exists-message")}</AlertDescription>
+                </Alert>
+            )}
+
             {/* Process Button */}
             <div className="mt-6">
                 <AnimatedButton
@@ -185,7 +311,7 @@ const FileUpload = forwardRef(({ onUpload }: FileUploadProps, ref) => {
                     progress={uploadStatus}
                     onClick={uploadFile}
                     disabled={
-                        file === null || error !== "" || uploadStatus !== "NOT_STARTED"
+                        file === null || error !== "" || alreadyKnown || uploadStatus !== "NOT_STARTED"
                     }
                 />
             </div>
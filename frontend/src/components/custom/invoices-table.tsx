@@ -44,6 +44,33 @@ interface InvoiceTableProps {
     filteredInvoices: Invoice[];
 }
 
+const THUMBNAIL_RETRIES = 3;
+const THUMBNAIL_RETRY_DELAY_MS = 2000;
+
+// Previews are generated in the background (again, after eviction), retry a few times and hide
+// the image if it is still not available
+const InvoiceThumbnail: React.FC<{ invoiceId: string }> = ({ invoiceId }) => {
+    const [attempt, setAttempt] = useState(0);
+    const [hidden, setHidden] = useState(false);
+
+    return (
+        <img
+            src={`${backendUrl}/invoices/${invoiceId}/thumbnail${attempt > 0 ? `?attempt=${attempt}` : ""}`}
+            alt=""
+            loading="lazy"
+            className="h-12 w-auto rounded border"
+            style={{ visibility: hidden ? "hidden" : "visible" }}
+            onError={() => {
+                setHidden(true);
+                if (attempt < THUMBNAIL_RETRIES) {
+                    setTimeout(() => setAttempt(attempt + 1), THUMBNAIL_RETRY_DELAY_MS);
+                }
+            }}
+            onLoad={() => setHidden(false)}
+        />
+    );
+};
+
 export const InvoiceTable: React.FC<InvoiceTableProps> = ({
     searchTerm,
     setSearchTerm,
@@ -53,7 +80,7 @@ export const InvoiceTable: React.FC<InvoiceTableProps> = ({
     setSortOrder,
     filteredInvoices,
 }) => {
-    const { t } = useTranslation();
+    const { t, i18n } = useTranslation();
     const { translateInvoiceType } = useInvoiceTypeTranslator();
     const [currentPage, setCurrentPage] = useState(1);
     const rowsPerPage = 10;
@@ -96,6 +123,7 @@ export const InvoiceTable: React.FC<InvoiceTableProps> = ({
             <Table>
                 <TableHeader>
                     <TableRow>
+                        <TableHead />
                         <TableHead onClick={() => handleSort("issuedDate")}>
                             {t("invoices.table.issue-date")}{" "}
                             {sortColumn === "issuedDate" && (sortOrder === "asc" ? "↑" : "↓")}
@@ -127,6 +155,9 @@ export const InvoiceTable: React.FC<InvoiceTableProps> = ({
                 <TableBody>
                     {paginatedInvoices.map((invoice) => (
                         <TableRow key={invoice.invoiceId}>
+                            <TableCell>
+                                <InvoiceThumbnail invoiceId={invoice.invoiceId} />
+                            </TableCell>
                             <TableCell>{formatDate(invoice.issuedDate)}</TableCell>
                             <TableCell>{invoice.sellerName}</TableCell>
                             <TableCell>{invoice.invoiceReference}</TableCell>
@@ -143,7 +174,8 @@ export const InvoiceTable: React.FC<InvoiceTableProps> = ({
                                 <ArrowTopRightOnSquareIcon
                                     onClick={() => {
                                         // Send request with invoice.id
-                                        fetch(`${backendUrl}/invoices/${invoice.invoiceId}`, {
+                                        // The PDF in the language of the UI
+                                        fetch(`${backendUrl}/invoices/${invoice.invoiceId}?language=${i18n.resolvedLanguage ?? "en"}`, {
                                             method: "GET",
                                         })
                                             .then((response) => response.json())
@@ -105,6 +105,20 @@ const Overview: React.FC<OverviewProps> = ({ fileInfo, handleResetPage }) => {
                 </Alert>
             )}
 
+            {/* Same invoice stored before, e.g. as XML and as ZUGFeRD PDF */}
+            {!fileInfo.alreadyExists && fileInfo.possibleDuplicates?.length > 0 && (
+                <Alert className="w-full">
+                    <InformationCircleIcon className="h-5 w-5" />
+                    <AlertTitle>{t("alert.info.possible-duplicate-header")}</AlertTitle>
+                    <AlertDescription>
+                        {t("alert.info.possible-duplicate-message", {
+                            count: fileInfo.possibleDuplicates.length,
+                            fileFormat: fileInfo.possibleDuplicates[0].fileFormat,
+                        })}
+                    </AlertDescription>
+                </Alert>
+            )}
+
             {/* Buttons Section */}
             <div className="flex flex-col items-center space-y-4 w-full">
                 <div className="flex space-x-4 w-full justify-center">
@@ -16,6 +16,8 @@ i18n
             de: { translation: de }
         },
         fallbackLng: "en", // Default language
+        supportedLngs: ["en", "de"], // Languages the backend renders invoices in
+        nonExplicitSupportedLngs: true, // Regional browser locales, e.g. "de-AT", resolve to "de"
         interpolation: {
             escapeValue: false // React already escapes values to prevent XSS
         }
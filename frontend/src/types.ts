@@ -18,6 +18,17 @@ export type FileInfo = {
     technicalStandard: TechnicalStandard;
     keyInformation: KeyInformation;
     alreadyExists: boolean;
+    // Stored invoices with the same seller, reference, issue date and total
+    possibleDuplicates: PossibleDuplicate[];
+};
+
+export type PossibleDuplicate = {
+    invoiceId: string;
+    fileFormat: string;
+    sellerName: string;
+    invoiceReference: string;
+    issuedDate: string;
+    totalSum: number;
 };
 
 export interface Invoice {